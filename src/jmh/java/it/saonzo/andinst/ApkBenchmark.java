@@ -0,0 +1,203 @@
+package it.saonzo.andinst;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Whole APKs: end-to-end instrumentation, written and signed in one pass, also with v2 or with the dex files
+ * stored, through temporary files, in low-memory mode, from memory to memory or matching the invocations through
+ * the class hierarchy, the scan-only analysis, and the copy and the signing of the entries on their own,
+ * serially, in parallel and reusing the digests of a signed input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ApkBenchmark {
+    private static final int N_TARGETS = 50;
+    private static final int N_RESOURCES = 200;
+    private static final int RESOURCE_SIZE = 16 * 1024;
+
+    @Param({"100", "1000", "5000"})
+    public int nClasses;
+
+    private File inputApk;
+    private byte[] inputApkBytes;
+    private File outputApk;
+    private ForkJoinPool pool;
+    private ApkSigner signer;
+    private ApkSigner reusingSigner;
+    private File signedApk;
+    private ApkInstrumenter instrumenter;
+    private ApkInstrumenter spoolingInstrumenter;
+    private ApkInstrumenter lowMemoryInstrumenter;
+    private ApkInstrumenter v2Instrumenter;
+    private ApkInstrumenter storingInstrumenter;
+    private ApkInstrumenter hierarchyInstrumenter;
+    private ApkAnalyzer analyzer;
+
+    @Setup
+    public void setUp() throws Exception {
+        inputApk = SyntheticApk.write(SyntheticDex.generate(nClasses, 10, 10, 0.05, N_TARGETS, 42),
+                                      N_RESOURCES, RESOURCE_SIZE, 42);
+        outputApk = SyntheticApk.tempFile(".apk");
+        inputApkBytes = Files.readAllBytes(inputApk.toPath());
+        pool = new ForkJoinPool();
+        signer = ApkSigner.withTestKey(false, false);
+        reusingSigner = ApkSigner.withTestKey(false, true);
+        final InstrDefinitions definitions = new InstrDefinitions(
+                new LinkedHashSet<>(SyntheticDex.definitionClasses(N_TARGETS)),
+                SyntheticDex.redirections(N_TARGETS), new byte[0]);
+        instrumenter = new ApkInstrumenter(SilentOutput.INSTANCE, definitions, pool, signer, false, null, false,
+                                           Deflater.DEFAULT_COMPRESSION, false, null);
+        spoolingInstrumenter = new ApkInstrumenter(SilentOutput.INSTANCE, definitions, pool, signer, true, null, false,
+                                                   Deflater.DEFAULT_COMPRESSION, false, null);
+        lowMemoryInstrumenter = new ApkInstrumenter(SilentOutput.INSTANCE, definitions, pool, signer, false, null, true,
+                                                    Deflater.DEFAULT_COMPRESSION, false, null);
+        v2Instrumenter = new ApkInstrumenter(SilentOutput.INSTANCE, definitions, pool, ApkSigner.withTestKey(true, false),
+                                             false, null, false, Deflater.DEFAULT_COMPRESSION, false, null);
+        storingInstrumenter = new ApkInstrumenter(SilentOutput.INSTANCE, definitions, pool, signer, false, null, false,
+                                                  Deflater.NO_COMPRESSION, false, null);
+        hierarchyInstrumenter = new ApkInstrumenter(SilentOutput.INSTANCE, definitions, pool, signer, false, null,
+                                                    false, Deflater.DEFAULT_COMPRESSION, true, null);
+        analyzer = new ApkAnalyzer(SilentOutput.INSTANCE, definitions, pool, false, null);
+        signedApk = SyntheticApk.tempFile(".apk");
+        checkVariants(instrumenter.instrument(inputApk, signedApk));
+    }
+
+    /**
+     * Fails the setup unless every variant redirects the same invocations, so that no score measures a path that
+     * breaks or skips the work.
+     */
+    private void checkVariants(int nInstrumented) throws Exception {
+        if (nInstrumented == 0)
+            throw new IllegalStateException("The fixture has no invocation to redirect");
+        final Map<String, Integer> counts = new LinkedHashMap<>();
+        counts.put("spooled", spoolingInstrumenter.instrument(inputApk, outputApk));
+        counts.put("low-memory", lowMemoryInstrumenter.instrument(inputApk, outputApk));
+        counts.put("v2", v2Instrumenter.instrument(inputApk, outputApk));
+        counts.put("stored", storingInstrumenter.instrument(inputApk, outputApk));
+        counts.put("hierarchy", hierarchyInstrumenter.instrument(inputApk, outputApk));
+        counts.put("in-memory", instrumenter.instrument(ByteBuffer.wrap(inputApkBytes), new Metrics())
+                                            .getInstrumentedInvocations());
+        counts.put("analysis", analyzer.analyze(inputApk).countCallSites());
+        for (Map.Entry<String, Integer> e : counts.entrySet())
+            if (e.getValue() != nInstrumented)
+                throw new IllegalStateException("The " + e.getKey() + " variant redirects " + e.getValue()
+                                                + " invocation(s) instead of " + nInstrumented);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+        inputApk.delete();
+        outputApk.delete();
+        signedApk.delete();
+    }
+
+    @Benchmark
+    public int instrument() throws Exception {
+        return instrumenter.instrument(inputApk, outputApk);
+    }
+
+    @Benchmark
+    public int instrumentSpooled() throws Exception {
+        return spoolingInstrumenter.instrument(inputApk, outputApk);
+    }
+
+    @Benchmark
+    public int instrumentLowMemory() throws Exception {
+        return lowMemoryInstrumenter.instrument(inputApk, outputApk);
+    }
+
+    @Benchmark
+    public int instrumentSignedV2() throws Exception {
+        return v2Instrumenter.instrument(inputApk, outputApk);
+    }
+
+    @Benchmark
+    public int instrumentInMemory() throws Exception {
+        return instrumenter.instrument(ByteBuffer.wrap(inputApkBytes), new Metrics()).getOutput().length;
+    }
+
+    @Benchmark
+    public int instrumentStored() throws Exception {
+        return storingInstrumenter.instrument(inputApk, outputApk);
+    }
+
+    @Benchmark
+    public int instrumentMatchingHierarchy() throws Exception {
+        return hierarchyInstrumenter.instrument(inputApk, outputApk);
+    }
+
+    @Benchmark
+    public int analyze() {
+        return analyzer.analyze(inputApk).countCallSites();
+    }
+
+    @Benchmark
+    public long copyEntries() throws IOException {
+        try (ApkZipFile input = ApkZipFile.open(inputApk);
+             ApkZipWriter writer = new ApkZipWriter(new FileOutputStream(outputApk).getChannel())) {
+            for (ApkZipFile.Entry entry : input.getEntries())
+                writer.copyEntry(input, entry);
+            return writer.getPosition();
+        }
+    }
+
+    @Benchmark
+    public long signEntries() throws IOException, GeneralSecurityException {
+        final ApkSigner.Digests digests = signer.newDigests();
+        try (ApkZipFile input = ApkZipFile.open(inputApk);
+             ApkZipWriter writer = new ApkZipWriter(new FileOutputStream(outputApk).getChannel())) {
+            for (ApkZipFile.Entry entry : input.getEntries())
+                try (InputStream data = input.getInputStream(entry)) {
+                    digests.add(entry.name, data);
+                }
+            digests.writeSignature(writer);
+            return writer.getPosition();
+        }
+    }
+
+    @Benchmark
+    public long signEntriesInParallel() throws IOException, GeneralSecurityException {
+        final ApkSigner.Digests digests = signer.newDigests(pool, new Metrics());
+        try (ApkZipFile input = ApkZipFile.open(inputApk);
+             ApkZipWriter writer = new ApkZipWriter(new FileOutputStream(outputApk).getChannel())) {
+            for (ApkZipFile.Entry entry : input.getEntries())
+                digests.add(input, entry);
+            digests.writeSignature(writer);
+            return writer.getPosition();
+        }
+    }
+
+    @Benchmark
+    public long signEntriesReusingDigests() throws IOException, GeneralSecurityException {
+        final ApkSigner.Digests digests = reusingSigner.newDigests(pool, new Metrics());
+        try (ApkZipFile input = ApkZipFile.open(signedApk);
+             ApkZipWriter writer = new ApkZipWriter(new FileOutputStream(outputApk).getChannel())) {
+            for (ApkZipFile.Entry entry : input.getEntries())
+                if (!ApkSigner.isSignatureEntry(entry.name)) {
+                    writer.copyEntry(input, entry);
+                    digests.addCopy(input, entry);
+                }
+            digests.writeSignature(writer);
+            return writer.getPosition();
+        }
+    }
+}
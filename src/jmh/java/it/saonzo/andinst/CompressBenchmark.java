@@ -0,0 +1,56 @@
+package it.saonzo.andinst;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression of a rewritten dex at several levels, on the calling thread and split into blocks deflated on
+ * a pool, pigz-style.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class CompressBenchmark {
+    @Param({"1000", "5000"})
+    public int nClasses;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"1", "4"})
+    public int nThreads;
+
+    private byte[] dex;
+    private ForkJoinPool pool;
+    private EntryCompressor serialCompressor;
+    private EntryCompressor parallelCompressor;
+
+    @Setup
+    public void setUp() throws IOException {
+        dex = SyntheticDex.generate(nClasses, 10, 10, 0.05, 50, 42);
+        pool = new ForkJoinPool(nThreads);
+        serialCompressor = new EntryCompressor(null, level, new Metrics());
+        parallelCompressor = new EntryCompressor(pool, level, new Metrics());
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int compress() {
+        return serialCompressor.compress(dex).data.length;
+    }
+
+    @Benchmark
+    public int compressInBlocks() {
+        return parallelCompressor.compress(dex).data.length;
+    }
+}
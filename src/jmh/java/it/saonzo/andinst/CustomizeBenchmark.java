@@ -0,0 +1,90 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewriting of a single dex: the raw scan alone, and the whole customization (scan, rewrite of the invocations
+ * and dexlib2 write), with and without the instrumentation classes added to the dex, and the streaming
+ * customization of the low-memory mode, which rewrites the classes on one thread while the writer consumes them.
+ * Run with -prof gc: gc.alloc.rate.norm divided by nClasses gives the bytes allocated per class scanned, which the
+ * raw scan keeps independent of the number of instructions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class CustomizeBenchmark {
+    private static final int METHODS_PER_CLASS = 10;
+    private static final int INVOKES_PER_METHOD = 10;
+    private static final double HIT_RATIO = 0.05;
+    private static final int N_TARGETS = 50;
+
+    @Param({"100", "1000", "5000"})
+    public int nClasses;
+
+    @Param({"1", "4"})
+    public int nThreads;
+
+    private byte[] dex;
+    private Map<MethodReference, MethodReference> redirections;
+    private Set<ClassDef> classesWithInstrMeths;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() throws IOException {
+        dex = SyntheticDex.generate(nClasses, METHODS_PER_CLASS, INVOKES_PER_METHOD, HIT_RATIO, N_TARGETS, 42);
+        redirections = SyntheticDex.redirections(N_TARGETS);
+        classesWithInstrMeths = new LinkedHashSet<>(SyntheticDex.definitionClasses(N_TARGETS));
+        pool = new ForkJoinPool(nThreads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int scan() throws IOException {
+        final RawDex rawDex = new RawDex(dex);
+        return InvokeScanner.findHits(rawDex, InvokeScanner.resolveRedirections(rawDex, redirections)).size();
+    }
+
+    @Benchmark
+    public int customize() throws IOException {
+        return customize(Collections.<ClassDef>emptySet());
+    }
+
+    @Benchmark
+    public int customizeWithPayload() throws IOException {
+        return customize(classesWithInstrMeths);
+    }
+
+    @Benchmark
+    public int customizeStreaming() throws IOException {
+        return customize(Collections.<ClassDef>emptySet(), true);
+    }
+
+    private int customize(Set<ClassDef> payload) throws IOException {
+        return customize(payload, false);
+    }
+
+    private int customize(Set<ClassDef> payload, boolean streaming) throws IOException {
+        final MemoryDataStore outputDex = new MemoryDataStore(dex.length * 2);
+        new BytecodeCustomizer(SilentOutput.INSTANCE, "classes.dex", ByteBuffer.wrap(dex), payload, redirections,
+                               null, null, outputDex, pool, null, new Metrics(), streaming).customize();
+        return outputDex.size();
+    }
+}
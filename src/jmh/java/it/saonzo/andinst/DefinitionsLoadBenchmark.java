@@ -0,0 +1,49 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a definitions dex into the instrumentation classes and the redirections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class DefinitionsLoadBenchmark {
+    @Param({"10", "100", "1000"})
+    public int nRedirections;
+
+    private File definitionsFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        definitionsFile = SyntheticApk.tempFile(SyntheticDex.write(SyntheticDex.definitionClasses(nRedirections)),
+                                                ".dex");
+    }
+
+    @TearDown
+    public void tearDown() {
+        definitionsFile.delete();
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        final Set<ClassDef> classesWithInstrMeths = new LinkedHashSet<>();
+        final Map<MethodReference, MethodReference> redirections = new HashMap<>();
+        new InstrMethodsLoader(SilentOutput.INSTANCE).load(definitionsFile.getPath(), classesWithInstrMeths,
+                                                           redirections);
+        return redirections.size();
+    }
+}
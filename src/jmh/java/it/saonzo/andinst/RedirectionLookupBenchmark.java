@@ -0,0 +1,86 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.instruction.DexBackedInstruction;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.formats.Instruction35c;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invocations scanned per second when matching invoke instructions against the redirections:
+ * by hashing their MethodReference (the old lookup) or by the method index they encode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class RedirectionLookupBenchmark {
+    private static final int N_CLASSES = 1000;
+    private static final int METHODS_PER_CLASS = 10;
+    private static final int INVOKES_PER_METHOD = 20;
+    private static final int N_INVOKES = N_CLASSES * METHODS_PER_CLASS * INVOKES_PER_METHOD;
+    private static final int N_TARGETS = 50;
+
+    @Param({"0.01", "0.2"})
+    public double hitRatio;
+
+    private Map<MethodReference, MethodReference> redirections;
+    private MethodReference[] redirectionsByMethodIndex;
+    private Instruction35c[] invokes;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] dex = SyntheticDex.generate(N_CLASSES, METHODS_PER_CLASS, INVOKES_PER_METHOD, hitRatio,
+                                                 N_TARGETS, 42);
+        redirections = SyntheticDex.redirections(N_TARGETS);
+        redirectionsByMethodIndex = InvokeScanner.resolveRedirections(new RawDex(dex), redirections);
+        final List<Instruction35c> found = new ArrayList<>(N_INVOKES);
+        for (ClassDef classDef : new DexBackedDexFile(Opcodes.forApi(19), dex).getClasses())
+            for (Method method : classDef.getMethods()) {
+                MethodImplementation implementation = method.getImplementation();
+                if (implementation != null)
+                    for (Instruction instruction : implementation.getInstructions())
+                        if (instruction.getOpcode() == Opcode.INVOKE_VIRTUAL)
+                            found.add((Instruction35c) instruction);
+            }
+        invokes = found.toArray(new Instruction35c[found.size()]);
+        if (invokes.length != N_INVOKES)
+            throw new IllegalStateException("Expected " + N_INVOKES + " invokes, found " + invokes.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_INVOKES)
+    public int referenceHashLookup() {
+        int hits = 0;
+        for (Instruction35c invoke : invokes)
+            if (redirections.get(invoke.getReference()) != null)
+                ++hits;
+        return hits;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N_INVOKES)
+    public int methodIndexLookup() {
+        int hits = 0;
+        for (Instruction35c invoke : invokes) {
+            final DexBackedInstruction instruction = (DexBackedInstruction) invoke;
+            if (redirectionsByMethodIndex[instruction.dexFile.readUshort(instruction.instructionStart + 2)] != null)
+                ++hits;
+        }
+        return hits;
+    }
+}
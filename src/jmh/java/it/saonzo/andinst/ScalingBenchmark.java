@@ -0,0 +1,360 @@
+package it.saonzo.andinst;
+
+import org.apache.commons.cli.*;
+import org.jf.dexlib2.iface.reference.MethodReference;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end scaling runs. For every size of a sweep it generates an APK with {@link SyntheticCorpus}, then
+ * instruments it with {@link Main}, with the definitions loaded, the dex files rewritten, the APK written and
+ * signed. Each run gets a JVM of its own, so that its peak RSS is that of one instrumentation.
+ * <p>
+ * For every size and repetition the runner reports the wall time of the process, the throughput in MB and in
+ * classes per second, the peak RSS, and the wall time of every phase taken from the --report of Main. The
+ * results go out as CSV, on the standard output or to a file, and as JSON with the reports embedded.
+ * <pre>
+ * gradle scaling -Pargs="--sizes 1000x10,10000x100,100000x500 --json scaling.json -- -v -z 1"
+ * </pre>
+ * A size is a number of classes and megabytes of assets. The arguments after -- are given to Main.
+ */
+public class ScalingBenchmark {
+    private static final String OPTION_SIZES = "sizes";
+    private static final String OPTION_METHODS = "methods";
+    private static final String OPTION_INVOKES = "invokes";
+    private static final String OPTION_HIT_RATIO = "hit-ratio";
+    private static final String OPTION_DEX_FILES = "dex-files";
+    private static final String OPTION_DEFINITIONS = "definitions";
+    private static final String OPTION_TARGETS = "targets";
+    private static final String OPTION_REPEAT = "repeat";
+    private static final String OPTION_JVM_ARGS = "jvm-args";
+    private static final String OPTION_KEEP = "keep";
+    private static final String OPTION_CSV = "csv";
+    private static final String OPTION_JSON = "json";
+    private static final String DEFAULT_SIZES = "1000x10,10000x100,100000x500";
+    private static final String RSS_FILE_PROPERTY = "andinst.bench.rssFile";
+    private static final long SEED = 42;
+    private static final double MB = 1024 * 1024;
+
+    /**
+     * Runs Main in the JVM of a run, and writes the peak RSS of the process when it exits, however it exits.
+     */
+    public static class Child {
+        public static void main(String[] args) {
+            final File rssFile = new File(System.getProperty(RSS_FILE_PROPERTY));
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Files.write(rssFile.toPath(), Long.toString(peakRssKB()).getBytes(StandardCharsets.US_ASCII));
+                    } catch (IOException e) {
+                        System.err.println("Cannot write the peak RSS: " + e);
+                    }
+                }
+            });
+            Main.main(args);
+            System.exit(0);
+        }
+    }
+
+    private static class Run {
+        int nClasses;
+        int assetsMB;
+        int nDexFiles;
+        long apkBytes;
+        int repetition;
+        int exitCode;
+        long wallMillis;
+        long peakRssKB;
+        /**
+         * The --report of Main, null if it wrote none.
+         */
+        String report;
+
+        /**
+         * @return true if Main exited normally and wrote its report, without which the phases are unknown
+         */
+        boolean isSuccess() {
+            return exitCode == 0 && report != null;
+        }
+
+        double seconds() {
+            return wallMillis / 1000.0;
+        }
+
+        /**
+         * @return the wall time of a phase in the report, -1 if unknown
+         */
+        long phaseMillis(Metrics.Phase phase) {
+            if (report == null)
+                return -1;
+            final Matcher m = Pattern.compile("\"" + phase.name().toLowerCase(Locale.ROOT)
+                                              + "\":\\{\"wallMillis\":(\\d+)").matcher(report);
+            return m.find() ? Long.parseLong(m.group(1)) : -1;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final CommandLine cmdLine;
+        final Options options = setupOptions();
+        try {
+            cmdLine = new GnuParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("scaling [options] [-- main options]", options);
+            System.exit(-1);
+            return;
+        }
+        final int methodsPerClass = intOption(cmdLine, OPTION_METHODS, 10);
+        final int invokesPerMethod = intOption(cmdLine, OPTION_INVOKES, 10);
+        final double hitRatio = cmdLine.hasOption(OPTION_HIT_RATIO)
+                                ? Double.parseDouble(cmdLine.getOptionValue(OPTION_HIT_RATIO)) : 0.05;
+        final int minDexFiles = intOption(cmdLine, OPTION_DEX_FILES, 1);
+        final int repeat = intOption(cmdLine, OPTION_REPEAT, 1);
+        final String keep = cmdLine.getOptionValue(OPTION_KEEP);
+        final File workDir = keep == null ? null : new File(keep);
+        if (workDir != null && !workDir.isDirectory() && !workDir.mkdirs())
+            throw new IOException("Cannot create " + workDir);
+
+        final File definitions;
+        final Map<MethodReference, MethodReference> redirections;
+        if (cmdLine.hasOption(OPTION_DEFINITIONS)) {
+            definitions = new File(cmdLine.getOptionValue(OPTION_DEFINITIONS));
+            redirections = InstrDefinitions.load(SilentOutput.INSTANCE, definitions.getPath()).getRedirections();
+        } else {
+            final int nTargets = intOption(cmdLine, OPTION_TARGETS, 50);
+            redirections = SyntheticDex.redirections(nTargets);
+            definitions = SyntheticApk.write(SyntheticDex.write(SyntheticDex.definitionClasses(nTargets)), 0, 0, SEED);
+        }
+
+        final List<Run> runs = new ArrayList<>();
+        final String sizes = cmdLine.hasOption(OPTION_SIZES) ? cmdLine.getOptionValue(OPTION_SIZES) : DEFAULT_SIZES;
+        for (String size : sizes.split(",")) {
+            final String[] classesAndMB = size.trim().split("x");
+            if (classesAndMB.length != 2)
+                throw new IllegalArgumentException("A size is <classes>x<MB of assets>, not " + size);
+            final int nClasses = Integer.parseInt(classesAndMB[0]);
+            final int assetsMB = Integer.parseInt(classesAndMB[1]);
+            final SyntheticCorpus corpus = new SyntheticCorpus(nClasses, methodsPerClass, invokesPerMethod, hitRatio,
+                                                               minDexFiles, assetsMB * (long) MB, redirections);
+            final File apk = workDir == null ? SyntheticApk.tempFile(".apk")
+                                             : new File(workDir, "corpus-" + nClasses + "x" + assetsMB + ".apk");
+            corpus.write(apk, SEED);
+            System.err.printf("Generated %s: %d classes in %d dex file(s), %.1f MB%n",
+                              apk, nClasses, corpus.countDexFiles(), apk.length() / MB);
+            for (int r = 1; r <= repeat; ++r) {
+                final Run run = instrument(apk, definitions, cmdLine.getOptionValue(OPTION_JVM_ARGS),
+                                           cmdLine.getArgs());
+                run.nClasses = nClasses;
+                run.assetsMB = assetsMB;
+                run.nDexFiles = corpus.countDexFiles();
+                run.apkBytes = apk.length();
+                run.repetition = r;
+                runs.add(run);
+                System.err.printf("%d classes, %d MB of assets, run %d: exit %d, %d ms, peak RSS %d MB%s%n",
+                                  nClasses, assetsMB, r, run.exitCode, run.wallMillis, run.peakRssKB / 1024,
+                                  run.isSuccess() ? "" : ", FAILED");
+            }
+            if (workDir == null)
+                Files.delete(apk.toPath());
+        }
+
+        final String csv = cmdLine.getOptionValue(OPTION_CSV);
+        if (csv == null)
+            writeCsv(System.out, runs);
+        else
+            try (PrintStream out = new PrintStream(new FileOutputStream(csv), false, "UTF-8")) {
+                writeCsv(out, runs);
+            }
+        final String json = cmdLine.getOptionValue(OPTION_JSON);
+        if (json != null)
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(json), StandardCharsets.UTF_8)) {
+                out.write(toJson(runs));
+            }
+        for (Run run : runs)
+            if (!run.isSuccess())
+                System.exit(-1);
+    }
+
+    private static Run instrument(File apk, File definitions, String jvmArgs, String[] mainArgs)
+            throws IOException, InterruptedException {
+        final File output = SyntheticApk.tempFile(".apk");
+        final File report = SyntheticApk.tempFile(".json");
+        final File rss = SyntheticApk.tempFile(".rss");
+        report.delete();
+        final List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        if (jvmArgs != null && !jvmArgs.trim().isEmpty())
+            command.addAll(Arrays.asList(jvmArgs.trim().split("\\s+")));
+        command.addAll(Arrays.asList("-D" + RSS_FILE_PROPERTY + "=" + rss.getPath(),
+                                     "-cp", System.getProperty("java.class.path"),
+                                     Child.class.getName(),
+                                     "-d", definitions.getPath(),
+                                     "-i", apk.getPath(),
+                                     "-o", output.getPath(),
+                                     "-r", report.getPath(),
+                                     "-l", "ERROR"));
+        command.addAll(Arrays.asList(mainArgs));
+
+        final Run run = new Run();
+        final long start = System.nanoTime();
+        final Process process = new ProcessBuilder(command).inheritIO().start();
+        run.exitCode = process.waitFor();
+        run.wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        run.peakRssKB = rss.length() > 0 ? Long.parseLong(readString(rss).trim()) : -1;
+        run.report = report.isFile() ? readString(report).trim() : null;
+        output.delete();
+        report.delete();
+        rss.delete();
+        return run;
+    }
+
+    /**
+     * @return the peak resident set size of this process in KB, -1 where /proc is not available
+     */
+    static long peakRssKB() throws IOException {
+        final File status = new File("/proc/self/status");
+        if (!status.isFile())
+            return -1;
+        for (String line : Files.readAllLines(status.toPath(), StandardCharsets.US_ASCII))
+            if (line.startsWith("VmHWM:"))
+                return Long.parseLong(line.substring("VmHWM:".length()).trim().split("\\s+")[0]);
+        return -1;
+    }
+
+    private static void writeCsv(PrintStream out, List<Run> runs) {
+        final StringBuilder header = new StringBuilder("classes,assets_mb,dex_files,apk_mb,run,exit_code,wall_ms,"
+                                                       + "mb_per_s,classes_per_s,peak_rss_mb");
+        for (Metrics.Phase phase : Metrics.Phase.values())
+            header.append(',').append(phase.name().toLowerCase(Locale.ROOT)).append("_ms");
+        out.println(header);
+        for (Run run : runs) {
+            final StringBuilder row = new StringBuilder();
+            row.append(run.nClasses).append(',')
+                    .append(run.assetsMB).append(',')
+                    .append(run.nDexFiles).append(',')
+                    .append(String.format(Locale.ROOT, "%.1f", run.apkBytes / MB)).append(',')
+                    .append(run.repetition).append(',')
+                    .append(run.exitCode).append(',')
+                    .append(run.wallMillis).append(',')
+                    .append(String.format(Locale.ROOT, "%.2f", run.apkBytes / MB / run.seconds())).append(',')
+                    .append(String.format(Locale.ROOT, "%.0f", run.nClasses / run.seconds())).append(',')
+                    .append(run.peakRssKB < 0 ? -1 : run.peakRssKB / 1024);
+            for (Metrics.Phase phase : Metrics.Phase.values())
+                row.append(',').append(run.phaseMillis(phase));
+            out.println(row);
+        }
+    }
+
+    private static String toJson(List<Run> runs) {
+        final StringBuilder sb = new StringBuilder("{\"version\":");
+        Metrics.appendString(sb, Main.VERSION);
+        sb.append(",\"runs\":[");
+        for (int i = 0; i < runs.size(); ++i) {
+            final Run run = runs.get(i);
+            if (i > 0)
+                sb.append(',');
+            sb.append("\n{\"classes\":").append(run.nClasses)
+                    .append(",\"assetsMB\":").append(run.assetsMB)
+                    .append(",\"dexFiles\":").append(run.nDexFiles)
+                    .append(",\"apkBytes\":").append(run.apkBytes)
+                    .append(",\"run\":").append(run.repetition)
+                    .append(",\"exitCode\":").append(run.exitCode)
+                    .append(",\"success\":").append(run.isSuccess())
+                    .append(",\"wallMillis\":").append(run.wallMillis)
+                    .append(",\"mbPerSecond\":").append(String.format(Locale.ROOT, "%.2f",
+                                                                      run.apkBytes / MB / run.seconds()))
+                    .append(",\"classesPerSecond\":").append(String.format(Locale.ROOT, "%.0f",
+                                                                           run.nClasses / run.seconds()))
+                    .append(",\"peakRssBytes\":").append(run.peakRssKB < 0 ? -1 : run.peakRssKB * 1024)
+                    .append(",\"report\":").append(run.report == null ? "null" : run.report)
+                    .append('}');
+        }
+        return sb.append("]}\n").toString();
+    }
+
+    private static int intOption(CommandLine cmdLine, String option, int defaultValue) {
+        final String value = cmdLine.getOptionValue(option);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static String readString(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static Options setupOptions() {
+        Option s = new Option(OPTION_SIZES.substring(0, 1), "Sizes to run, as <classes>x<MB of assets> separated by commas (default: " + DEFAULT_SIZES + ")");
+        s.setArgs(1);
+        s.setLongOpt(OPTION_SIZES);
+
+        Option m = new Option(OPTION_METHODS.substring(0, 1), "Methods per class (default: 10)");
+        m.setArgs(1);
+        m.setLongOpt(OPTION_METHODS);
+
+        Option i = new Option(OPTION_INVOKES.substring(0, 1), "Invocations per method (default: 10)");
+        i.setArgs(1);
+        i.setLongOpt(OPTION_INVOKES);
+
+        Option h = new Option(OPTION_HIT_RATIO.substring(0, 1), "Fraction of the invocations calling a redirected method (default: 0.05)");
+        h.setArgs(1);
+        h.setLongOpt(OPTION_HIT_RATIO);
+
+        Option x = new Option("x", "Minimum number of dex files; more are used when the classes exceed the method reference limit (default: 1)");
+        x.setArgs(1);
+        x.setLongOpt(OPTION_DEX_FILES);
+
+        Option d = new Option(OPTION_DEFINITIONS.substring(0, 1), "Definitions APK, whose redirected methods are the ones invoked (default: synthetic definitions)");
+        d.setArgs(1);
+        d.setLongOpt(OPTION_DEFINITIONS);
+
+        Option t = new Option(OPTION_TARGETS.substring(0, 1), "Number of redirected methods of the synthetic definitions (default: 50)");
+        t.setArgs(1);
+        t.setLongOpt(OPTION_TARGETS);
+
+        Option r = new Option(OPTION_REPEAT.substring(0, 1), "Runs of every size (default: 1)");
+        r.setArgs(1);
+        r.setLongOpt(OPTION_REPEAT);
+
+        Option j = new Option(OPTION_JVM_ARGS.substring(0, 1), "Options of the JVM of every run, e.g. \"-Xmx2g\"");
+        j.setArgs(1);
+        j.setLongOpt(OPTION_JVM_ARGS);
+
+        Option k = new Option(OPTION_KEEP.substring(0, 1), "Keep the generated APKs in this directory instead of deleting them");
+        k.setArgs(1);
+        k.setLongOpt(OPTION_KEEP);
+
+        Option c = new Option(OPTION_CSV.substring(0, 1), "Write the CSV to this file instead of the standard output");
+        c.setArgs(1);
+        c.setLongOpt(OPTION_CSV);
+
+        Option o = new Option("o", "Also write the results, with the report of every run, to this JSON file");
+        o.setArgs(1);
+        o.setLongOpt(OPTION_JSON);
+
+        final Options options = new Options();
+        options.addOption(s)
+                .addOption(m)
+                .addOption(i)
+                .addOption(h)
+                .addOption(x)
+                .addOption(d)
+                .addOption(t)
+                .addOption(r)
+                .addOption(j)
+                .addOption(k)
+                .addOption(c)
+                .addOption(o);
+        return options;
+    }
+}
@@ -0,0 +1,20 @@
+package it.saonzo.andinst;
+
+/**
+ * Drops every message, so that the benchmarks measure the work and not the console.
+ */
+class SilentOutput implements IFilteredOutput {
+    static final IOutput INSTANCE = new SilentOutput();
+
+    private SilentOutput() {
+    }
+
+    @Override
+    public void printf(Level l, String format, Object... args) {
+    }
+
+    @Override
+    public boolean isEnabled(Level l) {
+        return false;
+    }
+}
@@ -0,0 +1,58 @@
+package it.saonzo.andinst;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Builds APK fixtures around a dex: besides classes.dex they hold nResources resources of resourceSize bytes,
+ * half compressible text stored deflated and half random bytes stored uncompressed, like the images of a real APK.
+ */
+class SyntheticApk {
+    private SyntheticApk() {
+    }
+
+    static File write(byte[] classesDex, int nResources, int resourceSize, long seed) throws IOException {
+        final Random random = new Random(seed);
+        final File apk = tempFile(".apk");
+        try (ApkZipWriter writer = new ApkZipWriter(new FileOutputStream(apk).getChannel())) {
+            writer.writeEntry("AndroidManifest.xml", text(random, 4096), Deflater.DEFAULT_COMPRESSION, null);
+            writer.writeEntry(MultiDex.entryName(1), classesDex, Deflater.DEFAULT_COMPRESSION, null);
+            for (int i = 0; i < nResources; ++i) {
+                if (i % 2 == 0)
+                    writer.writeEntry("res/xml/r" + i + ".xml", text(random, resourceSize),
+                                      Deflater.DEFAULT_COMPRESSION, null);
+                else {
+                    final byte[] data = new byte[resourceSize];
+                    random.nextBytes(data);
+                    writer.writeEntry("res/drawable/r" + i + ".png", data, Deflater.NO_COMPRESSION, null);
+                }
+            }
+        }
+        return apk;
+    }
+
+    static File tempFile(String suffix) throws IOException {
+        final File file = File.createTempFile("bench", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+
+    static File tempFile(byte[] content, String suffix) throws IOException {
+        final File file = tempFile(suffix);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    static byte[] text(Random random, int size) {
+        final StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size)
+            sb.append("<item name=\"key").append(random.nextInt(100)).append("\">value</item>\n");
+        sb.setLength(size);
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
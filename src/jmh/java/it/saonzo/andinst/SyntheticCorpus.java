@@ -0,0 +1,81 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.iface.reference.MethodReference;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Generates APKs of any size for the scaling runs, without real apps: nClasses classes as built by
+ * {@link SyntheticDex}, spread over as many dex files as the method reference limit requires, and at least
+ * minDexFiles, plus assetBytes of assets, half random bytes stored uncompressed and half text stored deflated.
+ * The hits are drawn from the redirections of a definitions set, synthetic or real. The dex files are generated
+ * and written one at a time, so that the heap grows with the largest dex rather than with the APK.
+ */
+class SyntheticCorpus {
+    private static final int ASSET_SIZE = 1024 * 1024;
+
+    private final int nClasses;
+    private final int methodsPerClass;
+    private final int invokesPerMethod;
+    private final double hitRatio;
+    private final int minDexFiles;
+    private final long assetBytes;
+    private final Map<MethodReference, MethodReference> redirections;
+
+    /**
+     * @param invokesPerMethod the invoke density: invoke-virtual/direct/static instructions per method
+     * @param hitRatio         the fraction of the invokes calling a redirected method
+     */
+    SyntheticCorpus(int nClasses, int methodsPerClass, int invokesPerMethod, double hitRatio, int minDexFiles,
+                    long assetBytes, Map<MethodReference, MethodReference> redirections) {
+        this.nClasses = nClasses;
+        this.methodsPerClass = methodsPerClass;
+        this.invokesPerMethod = invokesPerMethod;
+        this.hitRatio = hitRatio;
+        this.minDexFiles = minDexFiles;
+        this.assetBytes = assetBytes;
+        this.redirections = redirections;
+    }
+
+    int countDexFiles() {
+        final int maxClasses = SyntheticDex.maxClassesPerDex(methodsPerClass, redirections.size());
+        if (maxClasses <= 0)
+            throw new IllegalArgumentException("Too many methods per class for a dex: " + methodsPerClass);
+        return Math.max(minDexFiles, (nClasses + maxClasses - 1) / maxClasses);
+    }
+
+    void write(File apk, long seed) throws IOException {
+        final Random random = new Random(seed);
+        final int nDexFiles = countDexFiles();
+        try (ApkZipWriter writer = new ApkZipWriter(new FileOutputStream(apk).getChannel())) {
+            writer.writeEntry("AndroidManifest.xml", SyntheticApk.text(random, 4096), Deflater.DEFAULT_COMPRESSION,
+                              null);
+            int firstClass = 0;
+            for (int d = 0; d < nDexFiles; ++d) {
+                final int n = nClasses / nDexFiles + (d < nClasses % nDexFiles ? 1 : 0);
+                final byte[] dex = SyntheticDex.write(SyntheticDex.classes(firstClass, n, methodsPerClass,
+                                                                           invokesPerMethod, hitRatio,
+                                                                           redirections, random));
+                writer.writeEntry(MultiDex.entryName(d + 1), dex, Deflater.DEFAULT_COMPRESSION, null);
+                firstClass += n;
+            }
+            long remaining = assetBytes;
+            for (int i = 0; remaining > 0; ++i) {
+                final int size = (int) Math.min(ASSET_SIZE, remaining);
+                if (i % 2 == 0) {
+                    final byte[] data = new byte[size];
+                    random.nextBytes(data);
+                    writer.writeEntry("assets/a" + i + ".bin", data, Deflater.NO_COMPRESSION, null);
+                } else
+                    writer.writeEntry("assets/a" + i + ".txt", SyntheticApk.text(random, size),
+                                      Deflater.DEFAULT_COMPRESSION, null);
+                remaining -= size;
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.AnnotationVisibility;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.immutable.*;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction35c;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.value.ImmutableBooleanEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Generates dex files for the benchmarks: nClasses classes with methodsPerClass methods each, every method
+ * made of invokesPerMethod invoke-virtual instructions. A hitRatio fraction of the invokes calls one of the
+ * nTargets methods of API_CLASS, which {@link #redirections(int)} redirects to HOOKS_CLASS.
+ */
+class SyntheticDex {
+    static final String API_CLASS = "Lbench/Api;";
+    static final String OTHER_CLASS = "Lbench/Other;";
+    static final String HOOKS_CLASS = "Lbench/Hooks;";
+    private static final int N_OTHER_METHODS = 1000;
+    private static final int MAX_METHOD_IDS = 65536;
+    private static final String CLASS_ANNOTATION = "Lit/saonzo/annotations/ClassWithInstrMethods;";
+    private static final String METHOD_ANNOTATION = "Lit/saonzo/annotations/InstrumentedMethod;";
+
+    private SyntheticDex() {
+    }
+
+    static MethodReference target(int i) {
+        return new DexMethod(API_CLASS, "api" + i, Collections.<String>emptyList(), "V");
+    }
+
+    static Map<MethodReference, MethodReference> redirections(int nTargets) {
+        Map<MethodReference, MethodReference> redirections = new HashMap<>();
+        for (int i = 0; i < nTargets; ++i)
+            redirections.put(target(i), new DexMethod(HOOKS_CLASS, "api" + i, Collections.singletonList(API_CLASS), "V"));
+        return redirections;
+    }
+
+    static List<ClassDef> classes(int nClasses, int methodsPerClass, int invokesPerMethod, double hitRatio,
+                                  int nTargets, long seed) {
+        return classes(0, nClasses, methodsPerClass, invokesPerMethod, hitRatio, redirections(nTargets),
+                       new Random(seed));
+    }
+
+    /**
+     * Like {@link #classes(int, int, int, double, int, long)}, with the hits drawn from the redirected methods of
+     * a definitions set, invoked as the instrumentation expects: invoke-direct for a constructor, invoke-static
+     * when the instrumentation method takes the same parameters, invoke-virtual when it takes the receiver too.
+     * The methods whose arguments do not fit the 5 registers of an invoke are left out.
+     *
+     * @param firstClass the number of the first class, to split the classes of an APK over several dex files
+     */
+    static List<ClassDef> classes(int firstClass, int nClasses, int methodsPerClass, int invokesPerMethod,
+                                  double hitRatio, Map<MethodReference, MethodReference> redirections,
+                                  Random random) {
+        final List<MethodReference> targets = new ArrayList<>();
+        final List<Opcode> opcodes = new ArrayList<>();
+        final List<Integer> slots = new ArrayList<>();
+        int nRegisters = 1;
+        for (Map.Entry<MethodReference, MethodReference> e : redirections.entrySet()) {
+            final MethodReference target = e.getKey();
+            final Opcode opcode;
+            if (target.getName().equals("<init>"))
+                opcode = Opcode.INVOKE_DIRECT;
+            else if (e.getValue().getParameterTypes().size() == target.getParameterTypes().size())
+                opcode = Opcode.INVOKE_STATIC;
+            else
+                opcode = Opcode.INVOKE_VIRTUAL;
+            int n = opcode == Opcode.INVOKE_STATIC ? 0 : 1;
+            for (CharSequence type : target.getParameterTypes())
+                n += type.charAt(0) == 'J' || type.charAt(0) == 'D' ? 2 : 1;
+            if (n > 5)
+                continue;
+            targets.add(target);
+            opcodes.add(opcode);
+            slots.add(n);
+            nRegisters = Math.max(nRegisters, n);
+        }
+        if (targets.isEmpty() && hitRatio > 0)
+            throw new IllegalArgumentException("No redirected method can be invoked with at most 5 registers");
+        // sorted, so that a seed gives the same classes whatever the order of the map
+        final List<Integer> order = new ArrayList<>(targets.size());
+        for (int i = 0; i < targets.size(); ++i)
+            order.add(i);
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return targets.get(a).toString().compareTo(targets.get(b).toString());
+            }
+        });
+
+        final List<ClassDef> classes = new ArrayList<>(nClasses);
+        for (int c = firstClass; c < firstClass + nClasses; ++c) {
+            final String type = "Lbench/app/C" + c + ";";
+            final List<Method> methods = new ArrayList<>(methodsPerClass);
+            for (int m = 0; m < methodsPerClass; ++m) {
+                final List<Instruction> instructions = new ArrayList<>(invokesPerMethod + 1);
+                for (int i = 0; i < invokesPerMethod; ++i) {
+                    if (random.nextDouble() < hitRatio) {
+                        final int t = order.get(random.nextInt(targets.size()));
+                        instructions.add(invoke(opcodes.get(t), slots.get(t), targets.get(t)));
+                    } else
+                        instructions.add(invoke(Opcode.INVOKE_VIRTUAL, 1, new ImmutableMethodReference(
+                                OTHER_CLASS, "other" + random.nextInt(N_OTHER_METHODS),
+                                Collections.<String>emptyList(), "V")));
+                }
+                instructions.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+                methods.add(new ImmutableMethod(type, "m" + m, Collections.<MethodParameter>emptyList(), "V",
+                                                AccessFlags.PUBLIC.getValue(), null,
+                                                new ImmutableMethodImplementation(nRegisters, instructions, null, null)));
+            }
+            classes.add(new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null,
+                                              null, null, methods));
+        }
+        return classes;
+    }
+
+    /**
+     * @return the number of classes that fit in a dex under the limit of 65536 method references
+     */
+    static int maxClassesPerDex(int methodsPerClass, int nTargets) {
+        return (MAX_METHOD_IDS - N_OTHER_METHODS - nTargets) / methodsPerClass;
+    }
+
+    /**
+     * An invoke passing v0, v1, ... as arguments.
+     */
+    private static Instruction invoke(Opcode opcode, int nRegisters, MethodReference method) {
+        final int last = Math.max(0, nRegisters - 1);
+        return new ImmutableInstruction35c(opcode, nRegisters, 0, Math.min(1, last), Math.min(2, last),
+                                           Math.min(3, last), Math.min(4, last), method);
+    }
+
+    /**
+     * @return the classes of a definitions dex, as InstrApp would build it, for {@link #redirections(int)}
+     */
+    static List<ClassDef> definitionClasses(int nTargets) {
+        final List<Method> methods = new ArrayList<>(nTargets);
+        for (int i = 0; i < nTargets; ++i) {
+            final Annotation annotation = new ImmutableAnnotation(
+                    AnnotationVisibility.RUNTIME, METHOD_ANNOTATION, Arrays.asList(
+                    new ImmutableAnnotationElement("isStatic", ImmutableBooleanEncodedValue.FALSE_VALUE),
+                    new ImmutableAnnotationElement("isInit", ImmutableBooleanEncodedValue.FALSE_VALUE),
+                    new ImmutableAnnotationElement("defClass", new ImmutableStringEncodedValue("bench.Api"))));
+            final List<Instruction> instructions = Collections.<Instruction>singletonList(
+                    new ImmutableInstruction10x(Opcode.RETURN_VOID));
+            methods.add(new ImmutableMethod(HOOKS_CLASS, "api" + i,
+                                            Collections.singletonList(new ImmutableMethodParameter(API_CLASS, null, null)),
+                                            "V", AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(),
+                                            Collections.singleton(annotation),
+                                            new ImmutableMethodImplementation(1, instructions, null, null)));
+        }
+        final Annotation classAnnotation = new ImmutableAnnotation(AnnotationVisibility.RUNTIME, CLASS_ANNOTATION,
+                                                                   null);
+        return Collections.<ClassDef>singletonList(new ImmutableClassDef(
+                HOOKS_CLASS, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null,
+                Collections.singleton(classAnnotation), null, methods));
+    }
+
+    static byte[] generate(int nClasses, int methodsPerClass, int invokesPerMethod, double hitRatio, int nTargets,
+                           long seed) throws IOException {
+        return write(classes(nClasses, methodsPerClass, invokesPerMethod, hitRatio, nTargets, seed));
+    }
+
+    static byte[] write(Collection<? extends ClassDef> classes) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.forApi(19), classes));
+        return dataStore.toByteArray();
+    }
+}
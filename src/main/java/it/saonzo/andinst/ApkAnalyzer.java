@@ -0,0 +1,195 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.iface.reference.MethodReference;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Scan-only analysis: finds the invocations that the instrumentation would redirect, straight from the raw bytes
+ * of the dex files as {@link InvokeScanner} does, and counts them by hooked method, calling class and calling method.
+ * Nothing is decoded through dexlib2, rewritten, written, zipped or signed, so it runs at the speed of the
+ * invoke scan: the dex files of an APK are scanned in parallel on the pool, and nJobs APKs at the same time.
+ */
+class ApkAnalyzer {
+    /**
+     * Call sites by hooked method, calling class and calling method (name and prototype).
+     */
+    static class CallSites extends TreeMap<String, SortedMap<String, SortedMap<String, Integer>>> {
+        private static final long serialVersionUID = 1L;
+
+        void add(String hooked, String callerClass, String callerMethod, int n) {
+            SortedMap<String, SortedMap<String, Integer>> byClass = get(hooked);
+            if (byClass == null) {
+                byClass = new TreeMap<>();
+                put(hooked, byClass);
+            }
+            SortedMap<String, Integer> byMethod = byClass.get(callerClass);
+            if (byMethod == null) {
+                byMethod = new TreeMap<>();
+                byClass.put(callerClass, byMethod);
+            }
+            final Integer old = byMethod.get(callerMethod);
+            byMethod.put(callerMethod, old == null ? n : old + n);
+        }
+
+        void addAll(CallSites other) {
+            for (Map.Entry<String, SortedMap<String, SortedMap<String, Integer>>> h : other.entrySet())
+                for (Map.Entry<String, SortedMap<String, Integer>> c : h.getValue().entrySet())
+                    for (Map.Entry<String, Integer> m : c.getValue().entrySet())
+                        add(h.getKey(), c.getKey(), m.getKey(), m.getValue());
+        }
+    }
+
+    public static class Result {
+        public final File input;
+        public final long millis;
+        public final int nDexFiles;
+        public final CallSites callSites;
+        public final Throwable error;
+
+        private Result(File input, long millis, int nDexFiles, CallSites callSites, Throwable error) {
+            this.input = input;
+            this.millis = millis;
+            this.nDexFiles = nDexFiles;
+            this.callSites = callSites;
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public int countCallSites() {
+            int n = 0;
+            for (SortedMap<String, SortedMap<String, Integer>> byClass : callSites.values())
+                for (SortedMap<String, Integer> byMethod : byClass.values())
+                    for (int count : byMethod.values())
+                        n += count;
+            return n;
+        }
+    }
+
+    private final IOutput out;
+    private final Map<MethodReference, MethodReference> redirections;
+    private final ForkJoinPool pool;
+    private final boolean matchHierarchy;
+    private final ClassFilter filter;
+
+    /**
+     * @param matchHierarchy if true, also count the invocations made through a subtype of the class of a hooked
+     *                       method, listed under the method they reference
+     * @param filter         the calling classes to count, null for all of them
+     */
+    public ApkAnalyzer(IOutput out, InstrDefinitions definitions, ForkJoinPool pool, boolean matchHierarchy,
+                       ClassFilter filter) {
+        this.out = out;
+        this.redirections = definitions.getRedirections();
+        this.pool = pool;
+        this.matchHierarchy = matchHierarchy;
+        this.filter = filter;
+    }
+
+    /**
+     * Analyzes the APKs, nJobs at a time. An APK that cannot be read gets a failed result, the others go on.
+     */
+    public List<Result> analyzeAll(List<File> inputs, int nJobs) throws InterruptedException {
+        final ExecutorService workers = Executors.newFixedThreadPool(nJobs);
+        try {
+            final List<Future<Result>> futures = new ArrayList<>(inputs.size());
+            for (final File input : inputs)
+                futures.add(workers.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return analyze(input);
+                    }
+                }));
+            final List<Result> results = new ArrayList<>(futures.size());
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    public Result analyze(File input) {
+        final long start = System.nanoTime();
+        try {
+            final SortedMap<String, ByteBuffer> dexEntries = MultiDex.readDexEntries(input);
+            final ClassHierarchy hierarchy = matchHierarchy
+                                             ? ClassHierarchy.build(dexEntries.values(), redirections, new Metrics())
+                                             : null;
+            final List<Callable<CallSites>> jobs = new ArrayList<>(dexEntries.size());
+            for (final ByteBuffer dex : dexEntries.values())
+                jobs.add(new Callable<CallSites>() {
+                    @Override
+                    public CallSites call() throws IOException {
+                        return scan(new RawDex(dex), hierarchy);
+                    }
+                });
+            final CallSites callSites = new CallSites();
+            for (Future<CallSites> job : pool.invokeAll(jobs))
+                callSites.addAll(ApkInstrumenter.waitFor(job));
+            final Result result = new Result(input, elapsedMillis(start), dexEntries.size(), callSites, null);
+            out.printf(IOutput.Level.NORMAL, "%d call site(s) of %d hooked method(s) in %s\n",
+                       result.countCallSites(), callSites.size(), input);
+            return result;
+        } catch (Exception | LinkageError e) {
+            out.printf(IOutput.Level.ERROR, "Failed to analyze %s: %s\n", input, e.toString());
+            return new Result(input, elapsedMillis(start), 0, new CallSites(), e);
+        }
+    }
+
+    /**
+     * Counts the hits of every calling method in an array indexed by the method_id of the hooked method, so that
+     * only the methods with call sites produce names.
+     */
+    private CallSites scan(RawDex dex, ClassHierarchy hierarchy) throws IOException {
+        final CallSites callSites = new CallSites();
+        final MethodReference[] targets = InvokeScanner.resolveRedirections(dex, redirections, hierarchy);
+        final InvokeScanner.Hits hits = InvokeScanner.findHits(dex, targets, filter);
+        if (hits.size() == 0)
+            return callSites;
+        final int[] counts = new int[targets.length];
+        final int[] hooked = new int[targets.length];
+        for (int first = 0, end; first < hits.size(); first = end) {
+            end = hits.endHit(first);
+            int nHooked = 0;
+            for (int hit = first; hit < end; ++hit)
+                if (counts[hits.invokedMethod(hit)]++ == 0)
+                    hooked[nHooked++] = hits.invokedMethod(hit);
+            collect(dex, hits.caller(first), counts, hooked, nHooked, callSites);
+        }
+        return callSites;
+    }
+
+    /**
+     * Moves the counts of the hooked methods invoked by a method into callSites, and clears them.
+     */
+    private static void collect(RawDex dex, int callerIndex, int[] counts, int[] hooked, int nHooked,
+                                CallSites callSites) throws IOException {
+        final DexMethod caller = dex.getMethod(callerIndex);
+        final StringBuilder callerMethod = new StringBuilder(caller.getName()).append('(');
+        for (CharSequence parameterType : caller.getParameterTypes())
+            callerMethod.append(parameterType);
+        callerMethod.append(')').append(caller.getReturnType());
+        for (int i = 0; i < nHooked; ++i) {
+            final int m = hooked[i];
+            callSites.add(dex.getMethod(m).toString(), caller.getDefiningClass(), callerMethod.toString(), counts[m]);
+            counts[m] = 0;
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
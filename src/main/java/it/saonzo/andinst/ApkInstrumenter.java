@@ -0,0 +1,467 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.io.DexDataStore;
+import org.jf.dexlib2.writer.io.FileDataStore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Instruments one APK at a time with a given set of definitions: rewrites its dex files, rebuilds the APK
+ * and signs it. It keeps no per-APK state, so several threads can share one instance.
+ */
+class ApkInstrumenter {
+    private final IOutput out;
+    private final InstrDefinitions definitions;
+    private final ForkJoinPool pool;
+    private final ApkSigner signer;
+    private final boolean spoolToDisk;
+    private final DexCache cache;
+    private final boolean lowMemory;
+    private final int compressionLevel;
+    private final boolean matchHierarchy;
+    private final ClassFilter filter;
+
+    /**
+     * @param spoolToDisk if true, write the dex files and the unsigned APK to temporary files and sign the APK
+     *                    afterwards, instead of building and signing the APK in one pass
+     * @param cache       cache of the rewritten dex files, null to rewrite every dex
+     * @param lowMemory   if true, map the input dex files instead of reading them on the heap, rewrite them one
+     *                    at a time streaming their classes into the writer, and write them to temporary files, so
+     *                    that the heap grows with the largest rewritten dex rather than with the size of the APK.
+     *                    The dex being rewritten is still copied to an array for dexlib2, whose writer interns all
+     *                    of its classes, and every rewritten dex is read back whole to be compressed and digested
+     * @param compressionLevel the Deflater level of the rewritten dex files, Deflater.NO_COMPRESSION to store them
+     * @param matchHierarchy if true, also redirect the invocations of a redirected method made through a subtype
+     *                       of its class, which makes the rewriting of a dex depend on the other dex files of the
+     *                       APK: the cache must not be used then
+     * @param filter      the classes whose invocations are redirected, null for all of them
+     */
+    public ApkInstrumenter(IOutput out, InstrDefinitions definitions, ForkJoinPool pool, ApkSigner signer,
+                           boolean spoolToDisk, DexCache cache, boolean lowMemory, int compressionLevel,
+                           boolean matchHierarchy, ClassFilter filter) {
+        this.out = out;
+        this.definitions = definitions;
+        this.pool = pool;
+        this.signer = signer;
+        this.spoolToDisk = spoolToDisk;
+        this.cache = cache;
+        this.lowMemory = lowMemory;
+        this.compressionLevel = compressionLevel;
+        this.matchHierarchy = matchHierarchy;
+        this.filter = filter;
+    }
+
+    /**
+     * @return the number of instrumented invocations
+     */
+    public int instrument(File inApkFile, File outApkFile) throws Exception {
+        return instrument(inApkFile, outApkFile, new Metrics());
+    }
+
+    /**
+     * @param metrics receives the times and the counters of this APK
+     * @return the number of instrumented invocations
+     */
+    public int instrument(File inApkFile, File outApkFile, Metrics metrics) throws Exception {
+        if (spoolToDisk || lowMemory)
+            return instrumentThroughTempFiles(inApkFile, outApkFile, metrics);
+        final Map<String, DexDataStore> newDexFiles = new TreeMap<>(MultiDex.ENTRY_ORDER);
+        final int nInstrumented = customizeBytecode(inApkFile.toString(), loadDexEntries(inApkFile, metrics),
+                                                    newDexFiles, null, metrics);
+        writeApk(inApkFile, toByteArrays(newDexFiles), Collections.<String, File>emptyMap(), outApkFile,
+                 signer.newDigests(pool, metrics), metrics);
+        return nInstrumented;
+    }
+
+    /**
+     * Instruments an APK held in memory into a signed APK in memory, with neither temporary files nor the
+     * spooling of this instrumenter. The dex files are read on the heap even in low-memory mode.
+     *
+     * @param inputApk the APK, from offset 0 to its limit
+     */
+    public Instrumenter.Result instrument(ByteBuffer inputApk, Metrics metrics)
+            throws IOException, GeneralSecurityException {
+        final ApkZipFile apk = new ApkZipFile(inputApk);
+        final SortedMap<String, ByteBuffer> dexEntries;
+        final Metrics.Timer loadDexTimer = metrics.time(Metrics.Phase.LOAD_DEX);
+        try {
+            dexEntries = MultiDex.readDexEntries(apk);
+        } finally {
+            loadDexTimer.stop();
+        }
+        final Map<String, DexDataStore> newDexFiles = new TreeMap<>(MultiDex.ENTRY_ORDER);
+        final int nInstrumented = customizeBytecode("the input APK", dexEntries, newDexFiles, null, metrics);
+        final ByteArrayOutputStream outputApk = new ByteArrayOutputStream(inputApk.limit() + inputApk.limit() / 8);
+        final ApkSigner.Digests digests = signer.newDigests(pool, metrics);
+        writeApk(apk, toByteArrays(newDexFiles), Collections.<String, File>emptyMap(), Channels.newChannel(outputApk),
+                 digests, metrics);
+        final Metrics.Timer signTimer = metrics.time(Metrics.Phase.SIGN);
+        try {
+            return new Instrumenter.Result(digests.writeSigningBlock(outputApk.toByteArray()), nInstrumented, metrics);
+        } finally {
+            signTimer.stop();
+        }
+    }
+
+    /**
+     * Instruments a single dex held in memory, adding the instrumentation classes to it.
+     *
+     * @param inputDex the dex, from offset 0 to its limit
+     * @throws IOException if the dex has no room for the instrumentation classes
+     */
+    public Instrumenter.Result instrumentDex(ByteBuffer inputDex, Metrics metrics) throws IOException {
+        final String dexName = MultiDex.entryName(1);
+        final SortedMap<String, ByteBuffer> dexEntries = new TreeMap<>(MultiDex.ENTRY_ORDER);
+        dexEntries.put(dexName, inputDex);
+        if (findPayloadDex(dexEntries) == null)
+            throw new IOException("The dex has no room for the instrumentation classes");
+        final Map<String, DexDataStore> newDexFiles = new TreeMap<>(MultiDex.ENTRY_ORDER);
+        final int nInstrumented = customizeBytecode("the input dex", dexEntries, newDexFiles, null, metrics);
+        final DexDataStore outputDex = newDexFiles.get(dexName);
+        final byte[] output;
+        if (outputDex != null)
+            output = ((MemoryDataStore) outputDex).toByteArray();
+        else {
+            output = new byte[inputDex.remaining()];
+            inputDex.duplicate().get(output);
+        }
+        return new Instrumenter.Result(output, nInstrumented, metrics);
+    }
+
+    /**
+     * Empties newDexFiles, kept in memory, into a map of their bytes.
+     */
+    private static Map<String, byte[]> toByteArrays(Map<String, DexDataStore> newDexFiles) {
+        final Map<String, byte[]> newDexBytes = new HashMap<>();
+        for (Map.Entry<String, DexDataStore> e : newDexFiles.entrySet())
+            newDexBytes.put(e.getKey(), ((MemoryDataStore) e.getValue()).toByteArray());
+        newDexFiles.clear();
+        return newDexBytes;
+    }
+
+    /**
+     * Writes the dex files to temporary files, read back one at a time while the APK is written. Unless spooling
+     * to disk, the APK is then built and signed in one pass as in memory; otherwise an unsigned APK is written to
+     * a temporary file first, and signed while being copied to the output.
+     */
+    private int instrumentThroughTempFiles(File inApkFile, File outApkFile, Metrics metrics) throws Exception {
+        File tmpApkFile = null;
+        final Map<String, File> tmpDexFiles = new TreeMap<>(MultiDex.ENTRY_ORDER);
+        final Map<String, byte[]> noDexBytes = Collections.emptyMap();
+        try {
+            final int nInstrumented = customizeBytecode(inApkFile.toString(), loadDexEntries(inApkFile, metrics),
+                                                        new HashMap<String, DexDataStore>(), tmpDexFiles, metrics);
+            if (!spoolToDisk) {
+                writeApk(inApkFile, noDexBytes, tmpDexFiles, outApkFile, signer.newDigests(pool, metrics), metrics);
+                return nInstrumented;
+            }
+            tmpApkFile = File.createTempFile("OutputApk", null);
+            tmpApkFile.deleteOnExit();
+            writeApk(inApkFile, noDexBytes, tmpDexFiles, tmpApkFile, null, metrics);
+            for (File tmpClassesDex : tmpDexFiles.values())
+                tmpClassesDex.delete();
+            out.printf(IOutput.Level.VERBOSE, "Signing %s into %s\n", tmpApkFile, outApkFile);
+            writeApk(tmpApkFile, noDexBytes, Collections.<String, File>emptyMap(), outApkFile,
+                     signer.newDigests(pool, metrics), metrics);
+            return nInstrumented;
+        } finally {
+            if (tmpApkFile != null)
+                tmpApkFile.delete();
+            for (File tmpClassesDex : tmpDexFiles.values())
+                tmpClassesDex.delete();
+        }
+    }
+
+    /**
+     * Copies the input APK into outApkFile, replacing or adding the rewritten dex files, given either in memory
+     * (newDexBytes) or as files, read only when their entry is written (newDexFiles).
+     * If digests is not null, the old signature is dropped, every entry is digested as it is written, the
+     * new signature is appended at the end and the v2 signing block, if any, inserted once the APK is closed.
+     */
+    private void writeApk(File inApkFile, Map<String, byte[]> newDexBytes, Map<String, File> newDexFiles,
+                          File outApkFile, ApkSigner.Digests digests, Metrics metrics)
+            throws IOException, GeneralSecurityException {
+        out.printf(IOutput.Level.VERBOSE, "Writing %sAPK %s\n", digests != null ? "signed " : "", outApkFile);
+        try (ApkZipFile inputApk = ApkZipFile.open(inApkFile)) {
+            writeApk(inputApk, newDexBytes, newDexFiles, new FileOutputStream(outApkFile).getChannel(), digests,
+                     metrics);
+        }
+        if (digests != null) {
+            final Metrics.Timer signTimer = metrics.time(Metrics.Phase.SIGN);
+            try {
+                digests.writeSigningBlock(outApkFile);
+            } finally {
+                signTimer.stop();
+            }
+        }
+    }
+
+    /**
+     * Writes the entries of the input APK to output, which is closed at the end, replacing or adding the
+     * rewritten dex files. The dex files in memory are all compressed on the pool while the entries before them
+     * are copied, the others when their turn comes. If digests is not null, the APK is v1-signed, and left to the
+     * caller to v2-sign.
+     */
+    private void writeApk(ApkZipFile inputApk, Map<String, byte[]> newDexBytes, Map<String, File> newDexFiles,
+                          WritableByteChannel output, ApkSigner.Digests digests, Metrics metrics)
+            throws IOException, GeneralSecurityException {
+        final Set<String> pendingDexFiles = new TreeSet<>(MultiDex.ENTRY_ORDER);
+        pendingDexFiles.addAll(newDexBytes.keySet());
+        pendingDexFiles.addAll(newDexFiles.keySet());
+        final EntryCompressor compressor = new EntryCompressor(pool, compressionLevel, metrics);
+        final Map<String, Future<EntryCompressor.Compressed>> compressedDexFiles = new HashMap<>();
+        for (Map.Entry<String, byte[]> e : newDexBytes.entrySet())
+            compressedDexFiles.put(e.getKey(), compressor.submit(e.getValue()));
+        // zip writing and signing are interleaved entry by entry, each step is timed in its own phase
+        try (ApkZipWriter outputApk = new ApkZipWriter(output)) {
+            for (ApkZipFile.Entry entry : inputApk.getEntries()) {
+                final byte[] newClassesDex = MultiDex.isDexEntry(entry.name) && pendingDexFiles.contains(entry.name)
+                                             ? readNewDex(entry.name, newDexBytes, newDexFiles) : null;
+                if (newClassesDex != null) {
+                    pendingDexFiles.remove(entry.name);
+                    final EntryCompressor.Compressed compressed = compress(entry.name, newClassesDex,
+                                                                           compressedDexFiles, compressor, metrics);
+                    final Metrics.Timer writeZipTimer = metrics.time(Metrics.Phase.WRITE_ZIP);
+                    try {
+                        outputApk.writeEntry(entry.name, compressed, entry);
+                    } finally {
+                        writeZipTimer.stop();
+                    }
+                    if (digests != null)
+                        digests.add(entry.name, newClassesDex);
+                }
+                else if (digests == null || !ApkSigner.isSignatureEntry(entry.name)) {
+                    final Metrics.Timer writeZipTimer = metrics.time(Metrics.Phase.WRITE_ZIP);
+                    try {
+                        outputApk.copyEntry(inputApk, entry);
+                    } finally {
+                        writeZipTimer.stop();
+                    }
+                    if (digests != null && digests.addCopy(inputApk, entry))
+                        metrics.add(Metrics.Counter.DIGESTS_REUSED, 1);
+                }
+            }
+            for (String name : pendingDexFiles) {
+                final byte[] newClassesDex = readNewDex(name, newDexBytes, newDexFiles);
+                final EntryCompressor.Compressed compressed = compress(name, newClassesDex, compressedDexFiles,
+                                                                       compressor, metrics);
+                final Metrics.Timer writeZipTimer = metrics.time(Metrics.Phase.WRITE_ZIP);
+                try {
+                    outputApk.writeEntry(name, compressed, null);
+                } finally {
+                    writeZipTimer.stop();
+                }
+                if (digests != null)
+                    digests.add(name, newClassesDex);
+            }
+            if (digests != null) {
+                // waits for the entries still being digested
+                final Metrics.Timer signTimer = metrics.time(Metrics.Phase.SIGN);
+                try {
+                    digests.writeSignature(outputApk);
+                } finally {
+                    signTimer.stop();
+                }
+            }
+            final Metrics.Timer writeZipTimer = metrics.time(Metrics.Phase.WRITE_ZIP);
+            try {
+                outputApk.finish();
+            } finally {
+                writeZipTimer.stop();
+            }
+            metrics.add(Metrics.Counter.BYTES_COPIED, outputApk.getBytesCopied());
+            metrics.add(Metrics.Counter.BYTES_COMPRESSED, outputApk.getBytesCompressed());
+        }
+    }
+
+    /**
+     * @return the dex compressed ahead, once ready, or compressed now if it was not in memory
+     */
+    private static EntryCompressor.Compressed compress(String name, byte[] newClassesDex,
+                                                       Map<String, Future<EntryCompressor.Compressed>> compressedAhead,
+                                                       EntryCompressor compressor, Metrics metrics)
+            throws IOException {
+        final Metrics.Timer compressTimer = metrics.timeWall(Metrics.Phase.COMPRESS);
+        try {
+            final Future<EntryCompressor.Compressed> compressed = compressedAhead.get(name);
+            return compressed != null ? waitFor(compressed) : compressor.compress(newClassesDex);
+        } finally {
+            compressTimer.stop();
+        }
+    }
+
+    private static byte[] readNewDex(String name, Map<String, byte[]> newDexBytes, Map<String, File> newDexFiles)
+            throws IOException {
+        final byte[] bytes = newDexBytes.get(name);
+        return bytes != null ? bytes : Files.readAllBytes(newDexFiles.get(name).toPath());
+    }
+
+    /**
+     * Instruments every classes*.dex of the input APK as an independent job on the pool, or one after the
+     * other in low-memory mode. The instrumentation
+     * classes go into the first dex with room for them under the method reference limit, or into a new dex
+     * if none has room.
+     */
+    private int customizeBytecode(String source, SortedMap<String, ByteBuffer> dexEntries,
+                                  Map<String, DexDataStore> newDexFiles, Map<String, File> tmpDexFiles,
+                                  final Metrics metrics) throws IOException {
+        final Set<ClassDef> classesWithInstrMeths = definitions.getClassesWithInstrMeths();
+        metrics.add(Metrics.Counter.DEX_FILES, dexEntries.size());
+        if (dexEntries.isEmpty())
+            throw new IOException("No classes.dex found in " + source);
+        final String payloadDex = findPayloadDex(dexEntries);
+        final ClassHierarchy hierarchy;
+        if (matchHierarchy) {
+            final Metrics.Timer scanTimer = metrics.time(Metrics.Phase.SCAN);
+            try {
+                hierarchy = ClassHierarchy.build(dexEntries.values(), definitions.getRedirections(), metrics);
+            } finally {
+                scanTimer.stop();
+            }
+        } else
+            hierarchy = null;
+
+        final List<Callable<Integer>> jobs = new ArrayList<>();
+        final Map<String, BytecodeCustomizer> customizers = new HashMap<>();
+        for (Map.Entry<String, ByteBuffer> e : dexEntries.entrySet()) {
+            final String dexName = e.getKey();
+            final DexDataStore outputDex = newDexDataStore(dexName, newDexFiles, tmpDexFiles);
+            final BytecodeCustomizer c = new BytecodeCustomizer(
+                    out,
+                    dexName,
+                    e.getValue(),
+                    dexName.equals(payloadDex) ? classesWithInstrMeths : Collections.<ClassDef>emptySet(),
+                    definitions.getRedirections(),
+                    hierarchy,
+                    filter,
+                    outputDex,
+                    pool,
+                    cache,
+                    metrics,
+                    lowMemory
+                    );
+            customizers.put(dexName, c);
+            jobs.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return c.customize();
+                }
+            });
+        }
+        if (payloadDex == null) {
+            final String dexName = MultiDex.entryName(MultiDex.dexIndex(dexEntries.lastKey()) + 1);
+            out.printf(IOutput.Level.VERBOSE, "No dex has room for the instrumentation classes, adding %s\n", dexName);
+            final DexDataStore outputDex = newDexDataStore(dexName, newDexFiles, tmpDexFiles);
+            jobs.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    final Metrics.Timer writeDexTimer = metrics.time(Metrics.Phase.WRITE_DEX);
+                    try {
+                        BytecodeCustomizer.writeDexFile(out, dexName, classesWithInstrMeths, outputDex);
+                    } finally {
+                        writeDexTimer.stop();
+                    }
+                    return 0;
+                }
+            });
+        }
+
+        int nInstrumented = 0;
+        if (lowMemory) {
+            // a single dexlib2 writer alive at any time
+            for (Callable<Integer> job : jobs) {
+                final FutureTask<Integer> task = new FutureTask<>(job);
+                task.run();
+                nInstrumented += waitFor(task);
+            }
+        } else {
+            for (Future<Integer> job : pool.invokeAll(jobs))
+                nInstrumented += waitFor(job);
+        }
+        for (Map.Entry<String, BytecodeCustomizer> e : customizers.entrySet()) {
+            if (e.getValue().isRewritten())
+                continue;
+            // untouched dex files are copied from the input APK as they are
+            newDexFiles.remove(e.getKey()).close();
+            if (tmpDexFiles != null)
+                tmpDexFiles.remove(e.getKey()).delete();
+        }
+        metrics.add(Metrics.Counter.DEX_FILES_REWRITTEN, newDexFiles.size());
+        out.printf(IOutput.Level.VERBOSE, "Instrumented %d invocation(s) in %d dex file(s)\n",
+                   nInstrumented, dexEntries.size());
+        return nInstrumented;
+    }
+
+    /**
+     * @return the first dex with room for the instrumentation classes under the method reference limit, null if none
+     */
+    private String findPayloadDex(SortedMap<String, ByteBuffer> dexEntries) {
+        final int payloadMethodRefs = MultiDex.countMethodReferences(definitions.getClassesWithInstrMeths());
+        for (Map.Entry<String, ByteBuffer> e : dexEntries.entrySet()) {
+            final int methodRefs = MultiDex.methodIdsSize(e.getValue())
+                                   + definitions.getRedirections().size()
+                                   + payloadMethodRefs;
+            if (methodRefs <= MultiDex.MAX_METHOD_REFERENCES)
+                return e.getKey();
+        }
+        return null;
+    }
+
+    private SortedMap<String, ByteBuffer> loadDexEntries(File inApkFile, Metrics metrics) throws IOException {
+        final Metrics.Timer loadDexTimer = metrics.time(Metrics.Phase.LOAD_DEX);
+        try {
+            return lowMemory ? MultiDex.mapDexEntries(inApkFile) : MultiDex.readDexEntries(inApkFile);
+        } finally {
+            loadDexTimer.stop();
+        }
+    }
+
+    /**
+     * @param tmpDexFiles if null the dex is kept in memory, otherwise it is written to a new temporary file
+     */
+    private static DexDataStore newDexDataStore(String dexName, Map<String, DexDataStore> newDexFiles,
+                                                Map<String, File> tmpDexFiles) throws IOException {
+        final DexDataStore dataStore;
+        if (tmpDexFiles == null)
+            dataStore = new MemoryDataStore();
+        else {
+            File tmpClassesDex = File.createTempFile("NewClasseDex", null);
+            tmpClassesDex.deleteOnExit();
+            tmpDexFiles.put(dexName, tmpClassesDex);
+            dataStore = new FileDataStore(tmpClassesDex);
+        }
+        newDexFiles.put(dexName, dataStore);
+        return dataStore;
+    }
+
+    static <T> T waitFor(Future<T> job) throws IOException {
+        try {
+            return job.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.toString());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // the pool wraps the checked exceptions of the callables into plain RuntimeExceptions
+            while (cause.getClass() == RuntimeException.class && cause.getCause() != null)
+                cause = cause.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
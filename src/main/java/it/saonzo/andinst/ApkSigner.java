@@ -0,0 +1,458 @@
+package it.saonzo.andinst;
+
+import kellinwood.security.zipsigner.Base64;
+import kellinwood.security.zipsigner.KeySet;
+import kellinwood.security.zipsigner.ZipSigner;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.*;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.Certificate;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.Deflater;
+
+/**
+ * JAR (v1) signer that works while the APK is being written: the digest of every entry is added as the entry
+ * goes into the output, and MANIFEST.MF, CERT.SF and CERT.RSA (CERT.EC for an EC key) are appended at the end,
+ * so the APK is written and signed in a single pass. With a pool the entries are digested on its threads while
+ * the APK is being written, or, if asked, not digested at all when they are copied unchanged from an APK whose
+ * MANIFEST.MF already has their digest. Optionally, the written APK is then signed with APK Signature Scheme v2 too.
+ * An ApkSigner only holds the key and can be shared; the per-APK state lives in {@link Digests}.
+ */
+class ApkSigner {
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+    private static final String SIGNATURE_FILE = "META-INF/CERT.SF";
+    private static final String CREATED_BY = "1.0 (AndInst)";
+    private static final String DIGEST_ALGORITHM = "SHA1";
+    private static final int MAX_LINE_LENGTH = 72;
+
+    private final X509Certificate certificate;
+    private final PrivateKey privateKey;
+    private final String signatureBlockName;
+    private final String signatureAlgorithm;
+    private final AlgorithmIdentifier signatureAlgorithmId;
+    private final ApkSignerV2 v2Signer;
+    private final boolean reuseInputDigests;
+
+    /**
+     * @param v2                if true, sign with APK Signature Scheme v2 besides v1
+     * @param reuseInputDigests if true, take the SHA1-Digest of the entries copied unchanged from the MANIFEST.MF of
+     *                          the input APK instead of computing them, see {@link Digests#addCopy}. The result
+     *                          is only as good as that manifest: an entry rewritten after signing with consistent
+     *                          zip headers gets a broken signature
+     */
+    public ApkSigner(X509Certificate certificate, PrivateKey privateKey, boolean v2, boolean reuseInputDigests)
+            throws GeneralSecurityException {
+        this.certificate = certificate;
+        this.privateKey = privateKey;
+        this.reuseInputDigests = reuseInputDigests;
+        switch (privateKey.getAlgorithm()) {
+            case "RSA":
+                signatureBlockName = "META-INF/CERT.RSA";
+                signatureAlgorithm = "SHA1withRSA";
+                signatureAlgorithmId = new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption, DERNull.INSTANCE);
+                break;
+            case "EC":
+                signatureBlockName = "META-INF/CERT.EC";
+                signatureAlgorithm = "SHA1withECDSA";
+                signatureAlgorithmId = new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA1);
+                break;
+            default:
+                throw new GeneralSecurityException("Unsupported key algorithm: " + privateKey.getAlgorithm());
+        }
+        this.v2Signer = v2 ? new ApkSignerV2(certificate, privateKey) : null;
+    }
+
+    /**
+     * The Android test key bundled with ZipSigner, the same one the "auto-testkey" mode falls back to.
+     */
+    public static ApkSigner withTestKey(boolean v2, boolean reuseInputDigests)
+            throws IOException, GeneralSecurityException {
+        final KeySet keySet;
+        try {
+            ZipSigner zipSigner = new ZipSigner();
+            zipSigner.loadKeys(ZipSigner.KEY_TESTKEY);
+            keySet = zipSigner.getKeySet();
+        } catch (ClassNotFoundException | IllegalAccessException | InstantiationException e) {
+            throw new GeneralSecurityException(e);
+        }
+        return new ApkSigner(keySet.getPublicKey(), keySet.getPrivateKey(), v2, reuseInputDigests);
+    }
+
+    /**
+     * A key of a JKS or PKCS#12 (.p12, .pfx) keystore.
+     *
+     * @param alias    the alias of the key, null for the first key of the keystore
+     * @param keyPassword the password of the key, null if it is the one of the keystore
+     */
+    public static ApkSigner fromKeyStore(File keyStoreFile, char[] storePassword, String alias, char[] keyPassword,
+                                         boolean v2, boolean reuseInputDigests)
+            throws IOException, GeneralSecurityException {
+        final String name = keyStoreFile.getName().toLowerCase(Locale.ROOT);
+        final KeyStore keyStore = KeyStore.getInstance(name.endsWith(".p12") || name.endsWith(".pfx")
+                                                       ? "PKCS12" : KeyStore.getDefaultType());
+        try (InputStream in = new FileInputStream(keyStoreFile)) {
+            keyStore.load(in, storePassword);
+        }
+        if (alias == null)
+            for (String a : Collections.list(keyStore.aliases()))
+                if (keyStore.isKeyEntry(a)) {
+                    alias = a;
+                    break;
+                }
+        if (alias == null || !keyStore.isKeyEntry(alias))
+            throw new GeneralSecurityException("No key " + (alias == null ? "" : "'" + alias + "' ") + "in "
+                                               + keyStoreFile);
+        final Key key = keyStore.getKey(alias, keyPassword != null ? keyPassword : storePassword);
+        final java.security.cert.Certificate certificate = keyStore.getCertificate(alias);
+        if (!(key instanceof PrivateKey) || !(certificate instanceof X509Certificate))
+            throw new GeneralSecurityException("'" + alias + "' in " + keyStoreFile
+                                               + " is not a private key with an X.509 certificate");
+        return new ApkSigner((X509Certificate) certificate, (PrivateKey) key, v2, reuseInputDigests);
+    }
+
+    /**
+     * @return true for the files of an existing JAR signature, which are dropped and generated again
+     */
+    public static boolean isSignatureEntry(String name) {
+        final String upper = name.toUpperCase(Locale.ROOT);
+        if (!upper.startsWith("META-INF/") || upper.indexOf('/', "META-INF/".length()) != -1)
+            return false;
+        return upper.equals(MANIFEST)
+               || upper.endsWith(".SF")
+               || upper.endsWith(".RSA")
+               || upper.endsWith(".DSA")
+               || upper.endsWith(".EC")
+               || upper.startsWith("META-INF/SIG-");
+    }
+
+    /**
+     * Digests computed on the calling thread.
+     */
+    public Digests newDigests() {
+        return new Digests(null, null);
+    }
+
+    /**
+     * Digests computed on the pool, which report their CPU time to the SIGN phase of metrics.
+     */
+    public Digests newDigests(ForkJoinPool pool, Metrics metrics) {
+        return new Digests(pool, metrics);
+    }
+
+    public class Digests {
+        private final SortedMap<String, byte[]> entryDigests = new ConcurrentSkipListMap<>();
+        private final ForkJoinPool pool;
+        private final Metrics metrics;
+        private final List<Future<Void>> pending = new ArrayList<>();
+        private ApkZipFile manifestSource;
+        private Map<String, byte[]> inputDigests = Collections.emptyMap();
+
+        private Digests(ForkJoinPool pool, Metrics metrics) {
+            this.pool = pool;
+            this.metrics = metrics;
+        }
+
+        public void add(final String name, final byte[] data) throws IOException, NoSuchAlgorithmException {
+            if (isDirectory(name))
+                return;
+            run(new Callable<Void>() {
+                @Override
+                public Void call() throws NoSuchAlgorithmException {
+                    MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+                    md.update(data);
+                    entryDigests.put(name, md.digest());
+                    return null;
+                }
+            });
+        }
+
+        public void add(String name, InputStream data) throws IOException, NoSuchAlgorithmException {
+            if (isDirectory(name))
+                return;
+            entryDigests.put(name, digest(data));
+        }
+
+        /**
+         * Adds an entry of an archive that stays open until {@link #writeSignature(ApkZipWriter)}.
+         */
+        public void add(final ApkZipFile apk, final ApkZipFile.Entry entry) throws IOException,
+                                                                                   NoSuchAlgorithmException {
+            if (isDirectory(entry.name))
+                return;
+            run(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, NoSuchAlgorithmException {
+                    try (InputStream data = apk.getInputStream(entry)) {
+                        entryDigests.put(entry.name, digest(data));
+                    }
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Adds an entry copied as is from apk to the output, reusing the digest of the MANIFEST.MF of apk if the
+         * signer is asked to, the manifest has a SHA1-Digest for it and the entry passes two checks that do not
+         * read its data:
+         * <ul>
+         * <li>a signature file of apk has the SHA1-Digest-Manifest of the manifest, so the manifest is the one
+         * that was signed, with SHA-1;</li>
+         * <li>the CRC-32 and sizes of the central directory record of the entry are those written with its data,
+         * in its local header or data descriptor.</li>
+         * </ul>
+         * Otherwise the entry is digested as with {@link #add(ApkZipFile, ApkZipFile.Entry)}. The checks do not
+         * prove that the data is the one digested, which would take as long as digesting it: an entry rewritten
+         * with consistent headers after signing still gets the digest of the manifest.
+         * <p>
+         * Only SHA1-Digest attributes are reused, because the output manifest is written with SHA-1. APKs signed
+         * with SHA-256 only, as apksigner does for a minSdkVersion of 18 or more, have every entry digested again.
+         *
+         * @return true if the digest was reused
+         */
+        public boolean addCopy(ApkZipFile apk, ApkZipFile.Entry entry) throws IOException, NoSuchAlgorithmException {
+            if (reuseInputDigests && !isDirectory(entry.name)) {
+                if (apk != manifestSource) {
+                    manifestSource = apk;
+                    inputDigests = readManifestDigests(apk);
+                }
+                final byte[] digest = inputDigests.get(entry.name);
+                if (digest != null && apk.hasConsistentHeaders(entry)) {
+                    entryDigests.put(entry.name, digest);
+                    return true;
+                }
+            }
+            add(apk, entry);
+            return false;
+        }
+
+        private void run(final Callable<Void> digest) throws IOException, NoSuchAlgorithmException {
+            if (pool == null) {
+                try {
+                    digest.call();
+                } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                return;
+            }
+            pending.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    final long cpuStart = Metrics.currentThreadCpuTime();
+                    try {
+                        return digest.call();
+                    } finally {
+                        metrics.addCpuTime(Metrics.Phase.SIGN, Metrics.currentThreadCpuTime() - cpuStart);
+                    }
+                }
+            }));
+        }
+
+        /**
+         * Writes MANIFEST.MF, CERT.SF and the signature block for all the digests added so far, once they are
+         * computed.
+         */
+        public void writeSignature(ApkZipWriter writer) throws IOException, GeneralSecurityException {
+            for (Future<Void> digest : pending)
+                ApkInstrumenter.waitFor(digest);
+            pending.clear();
+            final ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            writeMainSection(manifest, "Manifest-Version: 1.0");
+            final Map<String, byte[]> sections = new TreeMap<>();
+            for (Map.Entry<String, byte[]> e : entryDigests.entrySet()) {
+                byte[] section = section(e.getKey(), DIGEST_ALGORITHM + "-Digest", base64(e.getValue()));
+                manifest.write(section);
+                sections.put(e.getKey(), section);
+            }
+            final byte[] manifestBytes = manifest.toByteArray();
+
+            final ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+            final String manifestDigest = DIGEST_ALGORITHM + "-Digest-Manifest: " + base64(digest(manifestBytes));
+            if (v2Signer != null)
+                // tells v2-aware verifiers that stripping the v2 signature is an attack
+                writeMainSection(signatureFile, "Signature-Version: 1.0", "X-Android-APK-Signed: 2", manifestDigest);
+            else
+                writeMainSection(signatureFile, "Signature-Version: 1.0", manifestDigest);
+            for (Map.Entry<String, byte[]> e : sections.entrySet())
+                signatureFile.write(section(e.getKey(), DIGEST_ALGORITHM + "-Digest", base64(digest(e.getValue()))));
+            final byte[] signatureFileBytes = signatureFile.toByteArray();
+
+            writer.writeEntry(MANIFEST, manifestBytes, Deflater.DEFAULT_COMPRESSION, null);
+            writer.writeEntry(SIGNATURE_FILE, signatureFileBytes, Deflater.DEFAULT_COMPRESSION, null);
+            writer.writeEntry(signatureBlockName, signatureBlock(signatureFileBytes), Deflater.DEFAULT_COMPRESSION,
+                              null);
+        }
+
+        /**
+         * Signs with APK Signature Scheme v2, if enabled, the APK written with {@link #writeSignature(ApkZipWriter)}
+         * and closed.
+         */
+        public void writeSigningBlock(File apkFile) throws IOException, GeneralSecurityException {
+            if (v2Signer != null)
+                v2Signer.sign(apkFile, pool);
+        }
+
+        /**
+         * Like {@link #writeSigningBlock(File)}, for an APK written in memory.
+         *
+         * @return apk with the v2 signing block, or apk itself if v2 is not enabled
+         */
+        public byte[] writeSigningBlock(byte[] apk) throws IOException, GeneralSecurityException {
+            return v2Signer != null ? v2Signer.sign(apk, pool) : apk;
+        }
+    }
+
+    /**
+     * @return the digests of the MANIFEST.MF of apk made with our digest algorithm, by entry name; none if apk has
+     * no manifest or it cannot be parsed
+     */
+    private static Map<String, byte[]> readManifestDigests(ApkZipFile apk) throws IOException {
+        final ApkZipFile.Entry manifestEntry = apk.getEntry(MANIFEST);
+        if (manifestEntry == null)
+            return Collections.emptyMap();
+        final ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        final Manifest manifest;
+        try (InputStream in = apk.getInputStream(manifestEntry)) {
+            StreamUtils.copy(in, manifestBytes);
+            if (!isSignedManifest(apk, manifestBytes.toByteArray()))
+                return Collections.emptyMap();
+            manifest = new Manifest(new ByteArrayInputStream(manifestBytes.toByteArray()));
+        } catch (IOException | RuntimeException | NoSuchAlgorithmException e) {
+            return Collections.emptyMap();
+        }
+        final String attributeName = DIGEST_ALGORITHM + "-Digest";
+        final Map<String, byte[]> digests = new HashMap<>();
+        for (Map.Entry<String, Attributes> e : manifest.getEntries().entrySet()) {
+            final String value = e.getValue().getValue(attributeName);
+            if (value == null)
+                continue;
+            try {
+                final byte[] digest = Base64.decode(value.trim().getBytes(StandardCharsets.US_ASCII));
+                if (digest != null && digest.length == MessageDigest.getInstance(DIGEST_ALGORITHM).getDigestLength())
+                    digests.put(e.getKey(), digest);
+            } catch (RuntimeException | NoSuchAlgorithmException ignored) {
+                // a malformed digest is computed again
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * @return true if a signature file of apk has the SHA-1 digest of the whole manifest
+     */
+    private static boolean isSignedManifest(ApkZipFile apk, byte[] manifest)
+            throws IOException, NoSuchAlgorithmException {
+        final String expected = base64(digest(manifest));
+        for (ApkZipFile.Entry entry : apk.getEntries()) {
+            if (!isSignatureEntry(entry.name) || !entry.name.toUpperCase(Locale.ROOT).endsWith(".SF"))
+                continue;
+            final Manifest signatureFile;
+            try (InputStream in = apk.getInputStream(entry)) {
+                signatureFile = new Manifest(in);
+            }
+            final String value = signatureFile.getMainAttributes().getValue(DIGEST_ALGORITHM + "-Digest-Manifest");
+            if (value != null && value.trim().equals(expected))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The detached PKCS#7 SignedData of the signature file, with the certificate and no signed attributes.
+     */
+    private byte[] signatureBlock(byte[] signatureFile) throws IOException, GeneralSecurityException {
+        Signature signature = Signature.getInstance(signatureAlgorithm);
+        signature.initSign(privateKey);
+        signature.update(signatureFile);
+        final Certificate x509 = Certificate.getInstance(certificate.getEncoded());
+        final AlgorithmIdentifier digestAlgorithmId = new AlgorithmIdentifier(OIWObjectIdentifiers.idSHA1,
+                                                                              DERNull.INSTANCE);
+        final SignerInfo signerInfo = new SignerInfo(new SignerIdentifier(new IssuerAndSerialNumber(x509)),
+                                                     digestAlgorithmId,
+                                                     (ASN1Set) null,
+                                                     signatureAlgorithmId,
+                                                     new DEROctetString(signature.sign()),
+                                                     (ASN1Set) null);
+        final SignedData signedData = new SignedData(new DERSet(digestAlgorithmId),
+                                                     new ContentInfo(CMSObjectIdentifiers.data, null),
+                                                     new DERSet(x509),
+                                                     null,
+                                                     new DERSet(signerInfo));
+        return new ContentInfo(CMSObjectIdentifiers.signedData, signedData).getEncoded(ASN1Encoding.DER);
+    }
+
+    private static boolean isDirectory(String name) {
+        return name.endsWith("/");
+    }
+
+    private static void writeMainSection(ByteArrayOutputStream out, String... attributes) throws IOException {
+        for (String attribute : attributes)
+            writeLine(out, attribute);
+        writeLine(out, "Created-By: " + CREATED_BY);
+        writeLine(out, "");
+    }
+
+    private static byte[] section(String name, String attributeName, String value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeLine(out, "Name: " + name);
+        writeLine(out, attributeName + ": " + value);
+        writeLine(out, "");
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a manifest line, continuing it on lines starting with a space after 72 bytes.
+     */
+    private static void writeLine(ByteArrayOutputStream out, String line) {
+        final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        int offset = 0;
+        int lineLength = MAX_LINE_LENGTH;
+        while (bytes.length - offset > lineLength) {
+            out.write(bytes, offset, lineLength);
+            out.write('\r');
+            out.write('\n');
+            out.write(' ');
+            offset += lineLength;
+            lineLength = MAX_LINE_LENGTH - 1;
+        }
+        out.write(bytes, offset, bytes.length - offset);
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static byte[] digest(InputStream data) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        final byte[] buf = new byte[64 * 1024];
+        int nRead;
+        while ((nRead = data.read(buf)) != -1)
+            md.update(buf, 0, nRead);
+        return md.digest();
+    }
+
+    private static byte[] digest(byte[] data) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(data);
+    }
+
+    private static String base64(byte[] data) {
+        return Base64.encode(data);
+    }
+}
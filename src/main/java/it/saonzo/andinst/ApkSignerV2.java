@@ -0,0 +1,257 @@
+package it.saonzo.andinst;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * APK Signature Scheme v2: signs a ZIP already written and v1-signed by inserting an APK Signing Block between
+ * its entries and its central directory. The entries are neither read through ZIP nor rewritten: the file is
+ * digested in 1 MB chunks, in parallel, and the central directory is written again after the block, with the
+ * end of central directory pointing to its new offset.
+ */
+class ApkSignerV2 {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int CHUNKS_PER_TASK = 16;
+    private static final int SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    private static final int RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
+    private static final int ECDSA_WITH_SHA256 = 0x0201;
+    private static final byte[] MAGIC = "APK Sig Block 42".getBytes(StandardCharsets.US_ASCII);
+    private static final int EOCD_CD_OFFSET = 16;
+
+    private final X509Certificate certificate;
+    private final PrivateKey privateKey;
+    private final int algorithmId;
+    private final String signatureAlgorithm;
+
+    ApkSignerV2(X509Certificate certificate, PrivateKey privateKey) throws GeneralSecurityException {
+        this.certificate = certificate;
+        this.privateKey = privateKey;
+        switch (privateKey.getAlgorithm()) {
+            case "RSA":
+                algorithmId = RSA_PKCS1_V1_5_WITH_SHA256;
+                signatureAlgorithm = "SHA256withRSA";
+                break;
+            case "EC":
+                algorithmId = ECDSA_WITH_SHA256;
+                signatureAlgorithm = "SHA256withECDSA";
+                break;
+            default:
+                throw new GeneralSecurityException("Unsupported key algorithm for v2 signing: "
+                                                   + privateKey.getAlgorithm());
+        }
+    }
+
+    /**
+     * @param pool digests the chunks, null to digest them on the calling thread
+     */
+    public void sign(File apkFile, ForkJoinPool pool) throws IOException, GeneralSecurityException {
+        try (RandomAccessFile raf = new RandomAccessFile(apkFile, "rw");
+             FileChannel channel = raf.getChannel()) {
+            final long size = channel.size();
+            final ByteBuffer eocd = readEndOfCentralDirectory(channel, size);
+            final long cdOffset = eocd.getInt(EOCD_CD_OFFSET) & 0xFFFFFFFFL;
+            final long cdSize = size - ApkZipFile.END_OF_CENTRAL_DIR_SIZE - cdOffset;
+            if (cdSize < 0)
+                throw new IOException("Bad central directory offset in " + apkFile);
+            final ByteBuffer centralDirectory = ByteBuffer.allocate((int) cdSize);
+            readFully(channel, centralDirectory, cdOffset);
+            centralDirectory.flip();
+
+            final MappedByteBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, cdOffset);
+            final byte[] digest = digest(pool, entries, centralDirectory.duplicate(), eocd.duplicate());
+            final byte[] block = signingBlock(digest);
+
+            // the file only grows, so the central directory is overwritten in place without truncating
+            eocd.putInt(EOCD_CD_OFFSET, (int) (cdOffset + block.length));
+            channel.position(cdOffset);
+            writeFully(channel, ByteBuffer.wrap(block));
+            writeFully(channel, centralDirectory);
+            eocd.position(0);
+            writeFully(channel, eocd);
+        }
+    }
+
+    /**
+     * Like {@link #sign(File, ForkJoinPool)}, for an APK in memory.
+     *
+     * @return a copy of apk with the signing block
+     */
+    public byte[] sign(byte[] apk, ForkJoinPool pool) throws IOException, GeneralSecurityException {
+        final ByteBuffer eocd = ByteBuffer.allocate(ApkZipFile.END_OF_CENTRAL_DIR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (apk.length < eocd.capacity())
+            throw new IOException("Not a ZIP archive");
+        final int eocdOffset = apk.length - eocd.capacity();
+        eocd.put(apk, eocdOffset, eocd.capacity());
+        checkEndOfCentralDirectory(eocd);
+        final int cdOffset = eocd.getInt(EOCD_CD_OFFSET);
+        if (cdOffset < 0 || cdOffset > eocdOffset)
+            throw new IOException("Bad central directory offset");
+        final byte[] block = signingBlock(digest(pool, ByteBuffer.wrap(apk, 0, cdOffset).slice(),
+                                                 ByteBuffer.wrap(apk, cdOffset, eocdOffset - cdOffset).slice(),
+                                                 eocd.duplicate()));
+
+        final byte[] signed = new byte[apk.length + block.length];
+        System.arraycopy(apk, 0, signed, 0, cdOffset);
+        System.arraycopy(block, 0, signed, cdOffset, block.length);
+        System.arraycopy(apk, cdOffset, signed, cdOffset + block.length, eocdOffset - cdOffset);
+        eocd.putInt(EOCD_CD_OFFSET, cdOffset + block.length);
+        System.arraycopy(eocd.array(), 0, signed, eocdOffset + block.length, eocd.capacity());
+        return signed;
+    }
+
+    /**
+     * The end of central directory of an APK written by {@link ApkZipWriter}, which has no comment.
+     */
+    private static ByteBuffer readEndOfCentralDirectory(FileChannel channel, long size) throws IOException {
+        final ByteBuffer eocd = ByteBuffer.allocate(ApkZipFile.END_OF_CENTRAL_DIR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (size < eocd.capacity())
+            throw new IOException("Not a ZIP archive");
+        readFully(channel, eocd, size - eocd.capacity());
+        checkEndOfCentralDirectory(eocd);
+        return eocd;
+    }
+
+    private static void checkEndOfCentralDirectory(ByteBuffer eocd) throws IOException {
+        if (eocd.getInt(0) != ApkZipFile.END_OF_CENTRAL_DIR_SIGNATURE)
+            throw new IOException("Cannot v2-sign a ZIP archive with a comment");
+    }
+
+    /**
+     * The digest of the three sections, each one split into chunks of 1 MB: 0x5a, the number of chunks and
+     * the digests of the chunks, each one the digest of 0xa5, its size and its bytes.
+     */
+    private static byte[] digest(ForkJoinPool pool, ByteBuffer... sections) throws NoSuchAlgorithmException {
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        for (ByteBuffer section : sections)
+            for (int offset = 0; offset < section.limit(); offset += CHUNK_SIZE) {
+                final ByteBuffer chunk = section.duplicate();
+                chunk.position(offset);
+                chunk.limit(Math.min(offset + CHUNK_SIZE, section.limit()));
+                chunks.add(chunk.slice());
+            }
+        final byte[][] chunkDigests = new byte[chunks.size()][];
+        final DigestChunksTask task = new DigestChunksTask(chunks, chunkDigests, 0, chunks.size());
+        if (ForkJoinTask.inForkJoinPool())
+            task.invoke();
+        else if (pool != null)
+            pool.invoke(task);
+        else
+            digestChunks(chunks, chunkDigests, 0, chunks.size());
+
+        final MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update((byte) 0x5a);
+        md.update(uint32(chunks.size()));
+        for (byte[] chunkDigest : chunkDigests)
+            md.update(chunkDigest);
+        return md.digest();
+    }
+
+    @SuppressWarnings("serial")
+    private static class DigestChunksTask extends RecursiveAction {
+        private final List<ByteBuffer> chunks;
+        private final byte[][] digests;
+        private final int from;
+        private final int to;
+
+        DigestChunksTask(List<ByteBuffer> chunks, byte[][] digests, int from, int to) {
+            this.chunks = chunks;
+            this.digests = digests;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNKS_PER_TASK) {
+                digestChunks(chunks, digests, from, to);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new DigestChunksTask(chunks, digests, from, middle),
+                      new DigestChunksTask(chunks, digests, middle, to));
+        }
+    }
+
+    private static void digestChunks(List<ByteBuffer> chunks, byte[][] digests, int from, int to) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = from; i < to; ++i) {
+            final ByteBuffer chunk = chunks.get(i);
+            md.update((byte) 0xa5);
+            md.update(uint32(chunk.remaining()));
+            md.update(chunk);
+            digests[i] = md.digest();
+        }
+    }
+
+    private byte[] signingBlock(byte[] digest) throws GeneralSecurityException {
+        final byte[] signedData = concat(
+                lengthPrefixed(lengthPrefixed(concat(uint32(algorithmId), lengthPrefixed(digest)))),
+                lengthPrefixed(lengthPrefixed(certificate.getEncoded())),
+                lengthPrefixed(new byte[0]));
+        final Signature signature = Signature.getInstance(signatureAlgorithm);
+        signature.initSign(privateKey);
+        signature.update(signedData);
+        final byte[] signer = concat(
+                lengthPrefixed(signedData),
+                lengthPrefixed(lengthPrefixed(concat(uint32(algorithmId), lengthPrefixed(signature.sign())))),
+                lengthPrefixed(certificate.getPublicKey().getEncoded()));
+        final byte[] v2Block = lengthPrefixed(lengthPrefixed(signer));
+
+        final long pairSize = 4 + v2Block.length;
+        final long blockSize = 8 + pairSize + 8 + MAGIC.length;
+        final ByteBuffer block = ByteBuffer.allocate((int) (8 + blockSize)).order(ByteOrder.LITTLE_ENDIAN);
+        block.putLong(blockSize)
+                .putLong(pairSize)
+                .putInt(SIGNATURE_SCHEME_V2_BLOCK_ID)
+                .put(v2Block)
+                .putLong(blockSize)
+                .put(MAGIC);
+        return block.array();
+    }
+
+    private static byte[] uint32(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    private static byte[] lengthPrefixed(byte[] data) {
+        return concat(uint32(data.length), data);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b, position + b.position()) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer b) throws IOException {
+        while (b.hasRemaining())
+            channel.write(b);
+    }
+}
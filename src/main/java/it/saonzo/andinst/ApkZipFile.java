@@ -0,0 +1,249 @@
+package it.saonzo.andinst;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read-only view of a ZIP archive held in a ByteBuffer, usually a memory-mapped APK.
+ * Only the central directory is parsed up front; entry data is exposed as slices of the buffer, still
+ * compressed, so it can be copied to another archive without inflating and deflating it again.
+ */
+class ApkZipFile implements Closeable {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+    static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_OF_CENTRAL_DIR_SIZE = 22;
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    static final int FLAG_UTF8 = 1 << 11;
+
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    public static class Entry {
+        public final String name;
+        final byte[] rawName;
+        public final int versionMadeBy;
+        public final int versionNeeded;
+        public final int flags;
+        public final int method;
+        public final int dosTime;
+        public final int dosDate;
+        public final int crc;
+        public final long compressedSize;
+        public final long size;
+        final byte[] centralExtra;
+        final byte[] comment;
+        public final int internalAttributes;
+        public final int externalAttributes;
+        public final long localHeaderOffset;
+        final byte[] localExtra;
+        public final long dataOffset;
+
+        private Entry(ByteBuffer buf, int cdOffset) throws IOException {
+            if (buf.getInt(cdOffset) != CENTRAL_HEADER_SIGNATURE)
+                throw new IOException("Bad central directory header at offset " + cdOffset);
+            versionMadeBy = buf.getShort(cdOffset + 4) & 0xFFFF;
+            versionNeeded = buf.getShort(cdOffset + 6) & 0xFFFF;
+            flags = buf.getShort(cdOffset + 8) & 0xFFFF;
+            method = buf.getShort(cdOffset + 10) & 0xFFFF;
+            dosTime = buf.getShort(cdOffset + 12) & 0xFFFF;
+            dosDate = buf.getShort(cdOffset + 14) & 0xFFFF;
+            crc = buf.getInt(cdOffset + 16);
+            compressedSize = buf.getInt(cdOffset + 20) & 0xFFFFFFFFL;
+            size = buf.getInt(cdOffset + 24) & 0xFFFFFFFFL;
+            final int nameLength = buf.getShort(cdOffset + 28) & 0xFFFF;
+            final int extraLength = buf.getShort(cdOffset + 30) & 0xFFFF;
+            final int commentLength = buf.getShort(cdOffset + 32) & 0xFFFF;
+            internalAttributes = buf.getShort(cdOffset + 36) & 0xFFFF;
+            externalAttributes = buf.getInt(cdOffset + 38);
+            localHeaderOffset = buf.getInt(cdOffset + 42) & 0xFFFFFFFFL;
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL)
+                throw new IOException("ZIP64 archives are not supported");
+            rawName = bytesAt(buf, cdOffset + CENTRAL_HEADER_SIZE, nameLength);
+            centralExtra = bytesAt(buf, cdOffset + CENTRAL_HEADER_SIZE + nameLength, extraLength);
+            comment = bytesAt(buf, cdOffset + CENTRAL_HEADER_SIZE + nameLength + extraLength, commentLength);
+            name = new String(rawName, StandardCharsets.UTF_8);
+
+            final int lh = checkedOffset(buf, localHeaderOffset, LOCAL_HEADER_SIZE);
+            if (buf.getInt(lh) != LOCAL_HEADER_SIGNATURE)
+                throw new IOException("Bad local header for " + name);
+            final int localNameLength = buf.getShort(lh + 26) & 0xFFFF;
+            final int localExtraLength = buf.getShort(lh + 28) & 0xFFFF;
+            localExtra = bytesAt(buf, lh + LOCAL_HEADER_SIZE + localNameLength, localExtraLength);
+            dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE + localNameLength + localExtraLength;
+            checkedOffset(buf, dataOffset, compressedSize);
+        }
+
+        int centralRecordSize() {
+            return CENTRAL_HEADER_SIZE + rawName.length + centralExtra.length + comment.length;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final ByteBuffer buf;
+    private final List<Entry> entries;
+    private final Map<String, Entry> entriesByName;
+    private final Closeable backingFile;
+
+    public ApkZipFile(ByteBuffer buf) throws IOException {
+        this(buf, null);
+    }
+
+    private ApkZipFile(ByteBuffer buf, Closeable backingFile) throws IOException {
+        this.buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.backingFile = backingFile;
+        final int eocd = findEndOfCentralDirectory(this.buf);
+        final int nEntries = this.buf.getShort(eocd + 10) & 0xFFFF;
+        int cdOffset = checkedOffset(this.buf, this.buf.getInt(eocd + 16) & 0xFFFFFFFFL,
+                                     this.buf.getInt(eocd + 12) & 0xFFFFFFFFL);
+        final List<Entry> entries = new ArrayList<>(nEntries);
+        final Map<String, Entry> entriesByName = new HashMap<>();
+        for (int i = 0; i < nEntries; ++i) {
+            Entry entry = new Entry(this.buf, cdOffset);
+            entries.add(entry);
+            entriesByName.put(entry.name, entry);
+            cdOffset += entry.centralRecordSize();
+        }
+        this.entries = Collections.unmodifiableList(entries);
+        this.entriesByName = entriesByName;
+    }
+
+    public static ApkZipFile open(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ApkZipFile(mapped, raf);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public Entry getEntry(String name) {
+        return entriesByName.get(name);
+    }
+
+    /**
+     * @return the entry data as stored in the archive (compressed if the entry is DEFLATED)
+     */
+    public ByteBuffer getRawData(Entry entry) {
+        ByteBuffer data = buf.duplicate();
+        data.limit((int) (entry.dataOffset + entry.compressedSize));
+        data.position((int) entry.dataOffset);
+        return data.slice();
+    }
+
+    /**
+     * @return true if the CRC-32 and sizes written along with the data of the entry, in its local header or in
+     * the data descriptor that follows it, are those of its central directory record
+     */
+    public boolean hasConsistentHeaders(Entry entry) {
+        final int lh = (int) entry.localHeaderOffset;
+        int offset = lh + 14;
+        if ((buf.getShort(lh + 6) & FLAG_DATA_DESCRIPTOR) != 0) {
+            offset = (int) (entry.dataOffset + entry.compressedSize);
+            if (offset + 16 <= buf.limit() && buf.getInt(offset) == DATA_DESCRIPTOR_SIGNATURE)
+                offset += 4;
+        }
+        if (offset + 12 > buf.limit())
+            return false;
+        return buf.getInt(offset) == entry.crc
+               && (buf.getInt(offset + 4) & 0xFFFFFFFFL) == entry.compressedSize
+               && (buf.getInt(offset + 8) & 0xFFFFFFFFL) == entry.size;
+    }
+
+    public InputStream getInputStream(Entry entry) throws IOException {
+        final InputStream raw = new ByteBufferInputStream(getRawData(entry));
+        switch (entry.method) {
+            case STORED:
+                return raw;
+            case DEFLATED:
+                return new InflaterInputStream(raw, new Inflater(true), 8192) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            default:
+                throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (backingFile != null)
+            backingFile.close();
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer buf) throws IOException {
+        final int last = buf.limit() - END_OF_CENTRAL_DIR_SIZE;
+        final int first = Math.max(0, last - MAX_COMMENT_SIZE);
+        for (int i = last; i >= first; --i)
+            if (buf.getInt(i) == END_OF_CENTRAL_DIR_SIGNATURE && (buf.getShort(i + 20) & 0xFFFF) == last - i)
+                return i;
+        throw new IOException("End of central directory not found: not a ZIP archive");
+    }
+
+    private static int checkedOffset(ByteBuffer buf, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buf.limit())
+            throw new IOException("Truncated ZIP archive");
+        return (int) offset;
+    }
+
+    private static byte[] bytesAt(ByteBuffer buf, int offset, int length) throws IOException {
+        checkedOffset(buf, offset, length);
+        byte[] bytes = new byte[length];
+        ByteBuffer src = buf.duplicate();
+        src.position(offset);
+        src.get(bytes);
+        return bytes;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining())
+                return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
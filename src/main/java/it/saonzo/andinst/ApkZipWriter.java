@@ -0,0 +1,308 @@
+package it.saonzo.andinst;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import static it.saonzo.andinst.ApkZipFile.*;
+
+/**
+ * Writes a ZIP archive to a channel. Entries of another ApkZipFile are copied as raw compressed bytes, keeping
+ * their compression method, CRC and sizes; new entries are compressed in memory by an {@link EntryCompressor}.
+ * STORED entries are aligned like zipalign does (4 bytes, 4096 for native libraries) through the 0xD935
+ * padding extra field.
+ * <p>
+ * A brand-new entry takes the latest timestamp among the entries written before it, like apksigner does, rather
+ * than the current time: the same input is then always written to the same bytes.
+ */
+class ApkZipWriter implements Closeable {
+    private static final int ALIGNMENT_EXTRA_ID = 0xD935;
+    private static final int ALIGNMENT_EXTRA_HEADER_SIZE = 6;
+    private static final int DEFAULT_ALIGNMENT = 4;
+    private static final int NATIVE_LIBRARY_ALIGNMENT = 4096;
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+
+    private static class CentralRecord {
+        int versionMadeBy;
+        int versionNeeded;
+        int flags;
+        int method;
+        int dosTime;
+        int dosDate;
+        int crc;
+        long compressedSize;
+        long size;
+        byte[] rawName;
+        byte[] extra = new byte[0];
+        byte[] comment = new byte[0];
+        int internalAttributes;
+        int externalAttributes;
+        long localHeaderOffset;
+    }
+
+    private final WritableByteChannel channel;
+    private final List<CentralRecord> centralDirectory = new ArrayList<>();
+    private long position;
+    private long bytesCopied;
+    private long bytesCompressed;
+    /**
+     * The latest DOS date (high 16 bits) and time (low 16 bits) written so far, -1 before the first entry.
+     */
+    private long latestDosDateTime = -1;
+    private boolean finished;
+    private boolean closed;
+
+    public ApkZipWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the compressed bytes of the entries copied with {@link #copyEntry(ApkZipFile, ApkZipFile.Entry)}
+     */
+    public long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    /**
+     * @return the uncompressed bytes of the entries deflated by {@link #writeEntry(String, byte[], int, ApkZipFile.Entry)}
+     */
+    public long getBytesCompressed() {
+        return bytesCompressed;
+    }
+
+    /**
+     * Copies an entry of source as is, without decompressing it.
+     */
+    public void copyEntry(ApkZipFile source, ApkZipFile.Entry entry) throws IOException {
+        CentralRecord r = new CentralRecord();
+        r.versionMadeBy = entry.versionMadeBy;
+        r.versionNeeded = entry.versionNeeded;
+        r.flags = entry.flags & ~FLAG_DATA_DESCRIPTOR;
+        r.method = entry.method;
+        r.dosTime = entry.dosTime;
+        r.dosDate = entry.dosDate;
+        r.crc = entry.crc;
+        r.compressedSize = entry.compressedSize;
+        r.size = entry.size;
+        r.rawName = entry.rawName;
+        r.extra = entry.centralExtra;
+        r.comment = entry.comment;
+        r.internalAttributes = entry.internalAttributes;
+        r.externalAttributes = entry.externalAttributes;
+        keepLatestDosDateTime(r);
+        writeLocalHeader(r, entry.localExtra);
+        writeFully(source.getRawData(entry));
+        bytesCopied += entry.compressedSize;
+        centralDirectory.add(r);
+    }
+
+    /**
+     * Adds a new entry, deflated at the given level (or STORED when level is Deflater.NO_COMPRESSION) on the
+     * calling thread.
+     *
+     * @param template an entry whose timestamp and attributes are kept, or null for a brand new entry
+     */
+    public void writeEntry(String name, byte[] data, int level, ApkZipFile.Entry template) throws IOException {
+        writeEntry(name, new EntryCompressor(null, level, new Metrics()).compress(data), template);
+    }
+
+    /**
+     * Adds a new entry already compressed by an {@link EntryCompressor}.
+     *
+     * @param template an entry whose timestamp and attributes are kept, or null for a brand new entry
+     */
+    public void writeEntry(String name, EntryCompressor.Compressed data, ApkZipFile.Entry template)
+            throws IOException {
+        CentralRecord r = new CentralRecord();
+        r.rawName = name.getBytes(StandardCharsets.UTF_8);
+        r.crc = data.crc;
+        r.size = data.size;
+        if (data.stored) {
+            r.method = STORED;
+            r.versionNeeded = VERSION_STORED;
+        } else {
+            bytesCompressed += data.size;
+            r.method = DEFLATED;
+            r.versionNeeded = VERSION_DEFLATED;
+        }
+        r.compressedSize = data.data.length;
+        r.versionMadeBy = VERSION_DEFLATED;
+        if (template != null) {
+            r.dosTime = template.dosTime;
+            r.dosDate = template.dosDate;
+            r.flags = template.flags & FLAG_UTF8;
+            r.internalAttributes = template.internalAttributes;
+            r.externalAttributes = template.externalAttributes;
+        } else {
+            final int[] dateTime = latestDosDateTime >= 0
+                                   ? new int[]{(int) (latestDosDateTime >>> 16), (int) (latestDosDateTime & 0xFFFF)}
+                                   : dosDateTime(System.currentTimeMillis());
+            r.dosDate = dateTime[0];
+            r.dosTime = dateTime[1];
+            r.flags = FLAG_UTF8;
+        }
+        keepLatestDosDateTime(r);
+        writeLocalHeader(r, new byte[0]);
+        writeFully(ByteBuffer.wrap(data.data));
+        centralDirectory.add(r);
+    }
+
+    /**
+     * Writes the central directory, no entry may be added afterwards. {@link #close()} does it if not done yet.
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        finished = true;
+        final long cdOffset = position;
+        for (CentralRecord r : centralDirectory)
+            writeCentralRecord(r);
+        final long cdSize = position - cdOffset;
+        if (centralDirectory.size() > 0xFFFF || cdOffset > 0xFFFFFFFFL)
+            throw new IOException("ZIP64 archives are not supported");
+        ByteBuffer eocd = header(END_OF_CENTRAL_DIR_SIZE);
+        eocd.putInt(END_OF_CENTRAL_DIR_SIGNATURE)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) centralDirectory.size())
+                .putShort((short) centralDirectory.size())
+                .putInt((int) cdSize)
+                .putInt((int) cdOffset)
+                .putShort((short) 0);
+        eocd.flip();
+        writeFully(eocd);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            finish();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void keepLatestDosDateTime(CentralRecord r) {
+        latestDosDateTime = Math.max(latestDosDateTime, (long) (r.dosDate & 0xFFFF) << 16 | r.dosTime & 0xFFFF);
+    }
+
+    private void writeLocalHeader(CentralRecord r, byte[] originalLocalExtra) throws IOException {
+        r.localHeaderOffset = position;
+        byte[] extra = stripAlignmentPadding(originalLocalExtra);
+        if (r.method == STORED)
+            extra = addAlignmentPadding(extra, position + LOCAL_HEADER_SIZE + r.rawName.length, alignmentFor(r));
+        ByteBuffer h = header(LOCAL_HEADER_SIZE + r.rawName.length + extra.length);
+        h.putInt(LOCAL_HEADER_SIGNATURE)
+                .putShort((short) r.versionNeeded)
+                .putShort((short) r.flags)
+                .putShort((short) r.method)
+                .putShort((short) r.dosTime)
+                .putShort((short) r.dosDate)
+                .putInt(r.crc)
+                .putInt((int) r.compressedSize)
+                .putInt((int) r.size)
+                .putShort((short) r.rawName.length)
+                .putShort((short) extra.length)
+                .put(r.rawName)
+                .put(extra);
+        h.flip();
+        writeFully(h);
+    }
+
+    private void writeCentralRecord(CentralRecord r) throws IOException {
+        ByteBuffer h = header(CENTRAL_HEADER_SIZE + r.rawName.length + r.extra.length + r.comment.length);
+        h.putInt(CENTRAL_HEADER_SIGNATURE)
+                .putShort((short) r.versionMadeBy)
+                .putShort((short) r.versionNeeded)
+                .putShort((short) r.flags)
+                .putShort((short) r.method)
+                .putShort((short) r.dosTime)
+                .putShort((short) r.dosDate)
+                .putInt(r.crc)
+                .putInt((int) r.compressedSize)
+                .putInt((int) r.size)
+                .putShort((short) r.rawName.length)
+                .putShort((short) r.extra.length)
+                .putShort((short) r.comment.length)
+                .putShort((short) 0)
+                .putShort((short) r.internalAttributes)
+                .putInt(r.externalAttributes)
+                .putInt((int) r.localHeaderOffset)
+                .put(r.rawName)
+                .put(r.extra)
+                .put(r.comment);
+        h.flip();
+        writeFully(h);
+    }
+
+    private static int alignmentFor(CentralRecord r) {
+        final String name = new String(r.rawName, StandardCharsets.UTF_8);
+        return name.endsWith(".so") ? NATIVE_LIBRARY_ALIGNMENT : DEFAULT_ALIGNMENT;
+    }
+
+    private static byte[] stripAlignmentPadding(byte[] extra) {
+        ByteBuffer in = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        ByteArrayOutputStream kept = new ByteArrayOutputStream(extra.length);
+        while (in.remaining() >= 4) {
+            final int start = in.position();
+            final int id = in.getShort() & 0xFFFF;
+            final int size = in.getShort() & 0xFFFF;
+            if (size > in.remaining())
+                return extra; // malformed, leave it alone
+            in.position(in.position() + size);
+            if (id != ALIGNMENT_EXTRA_ID)
+                kept.write(extra, start, 4 + size);
+        }
+        if (in.hasRemaining())
+            return extra;
+        return kept.toByteArray();
+    }
+
+    private static byte[] addAlignmentPadding(byte[] extra, long extraOffset, int alignment) {
+        final long dataOffset = extraOffset + extra.length + ALIGNMENT_EXTRA_HEADER_SIZE;
+        final int padding = (int) ((alignment - dataOffset % alignment) % alignment);
+        ByteBuffer padded = ByteBuffer.allocate(extra.length + ALIGNMENT_EXTRA_HEADER_SIZE + padding)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        padded.put(extra)
+                .putShort((short) ALIGNMENT_EXTRA_ID)
+                .putShort((short) (2 + padding))
+                .putShort((short) alignment);
+        return padded.array();
+    }
+
+    /**
+     * @return {dosDate, dosTime}
+     */
+    private static int[] dosDateTime(long millis) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        final int year = Math.max(c.get(Calendar.YEAR), 1980);
+        final int date = (year - 1980) << 9 | (c.get(Calendar.MONTH) + 1) << 5 | c.get(Calendar.DAY_OF_MONTH);
+        final int time = c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+        return new int[]{date, time};
+    }
+
+    private static ByteBuffer header(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining())
+            position += channel.write(b);
+    }
+}
@@ -0,0 +1,127 @@
+package it.saonzo.andinst;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands the messages to a background thread, which formats them and passes them to another IOutput, so that
+ * the threads doing the work neither format nor wait for the console.
+ * Messages below the level of the delegate are dropped before being queued. The queue is bounded: when it is
+ * full, printf waits for room rather than dropping messages. {@link #close()} prints the pending messages.
+ * <p>
+ * Only messages whose arguments are all immutable (strings, boxed primitives, enums, files) are formatted on the
+ * background thread. Any other argument may change before it is formatted, so such a message is formatted by
+ * the caller and only printed in the background.
+ */
+class AsyncOutput implements IFilteredOutput, Closeable {
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final Message END = new Message(null, null, null);
+
+    private final IOutput delegate;
+    private final BlockingQueue<Message> queue;
+    private final Thread drainer;
+    private volatile boolean closed;
+
+    private static class Message {
+        final Level level;
+        final String format;
+        final Object[] args;
+
+        Message(Level level, String format, Object[] args) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+        }
+    }
+
+    public AsyncOutput(IOutput delegate) {
+        this(delegate, DEFAULT_CAPACITY);
+    }
+
+    public AsyncOutput(IOutput delegate, int capacity) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        drainer = new Thread("output") {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @Override
+    public void printf(Level l, String format, Object... args) {
+        if (!isEnabled(l))
+            return;
+        if (closed) {
+            delegate.printf(l, format, args);
+            return;
+        }
+        final Message message;
+        if (areImmutable(args))
+            message = new Message(l, format, args);
+        else
+            message = new Message(l, "%s", new Object[] { String.format(format, args) });
+        try {
+            queue.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isEnabled(Level l) {
+        return OutputUtils.isEnabled(delegate, l);
+    }
+
+    private static boolean areImmutable(Object[] args) {
+        for (Object arg : args)
+            if (arg != null && !isImmutable(arg))
+                return false;
+        return true;
+    }
+
+    private static boolean isImmutable(Object arg) {
+        if (arg instanceof Number)
+            // boxed primitives, but not the atomic counters
+            return arg.getClass().getPackage() == Integer.class.getPackage();
+        return arg instanceof String || arg instanceof Boolean || arg instanceof Character || arg instanceof Enum
+               || arg instanceof File;
+    }
+
+    private void drain() {
+        try {
+            for (Message m = queue.take(); m != END; m = queue.take()) {
+                try {
+                    delegate.printf(m.level, m.format, m.args);
+                } catch (RuntimeException e) {
+                    System.err.println("Cannot print '" + m.format + "': " + e);
+                }
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Waits until every message queued so far has been printed, then stops the background thread.
+     * Messages printed afterwards are passed to the delegate directly.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            queue.put(END);
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.flush();
+        System.err.flush();
+    }
+}
@@ -0,0 +1,185 @@
+package it.saonzo.andinst;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Instruments many APKs in one JVM. At most nJobs APKs are instrumented at the same time and at most
+ * nJobs more are queued: submitting blocks until a slot frees up, so a huge input list never piles up in memory.
+ * Every result is printed and handed to the listener as soon as its APK is done, then dropped.
+ * A failing APK is recorded in the summary and the batch goes on.
+ */
+class BatchInstrumenter {
+    private final IOutput out;
+    private final ApkInstrumenter instrumenter;
+    private final int nJobs;
+
+    public static class Result {
+        public final File input;
+        public final File output;
+        public final long millis;
+        public final int nInstrumented;
+        public final Throwable error;
+        public final Metrics metrics;
+
+        private Result(File input, File output, long millis, int nInstrumented, Throwable error, Metrics metrics) {
+            this.input = input;
+            this.output = output;
+            this.millis = millis;
+            this.nInstrumented = nInstrumented;
+            this.error = error;
+            this.metrics = metrics;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    /**
+     * Receives the results in the order the APKs complete, on the thread that runs the batch.
+     */
+    public interface ResultListener {
+        void resultReady(Result result) throws IOException;
+    }
+
+    public BatchInstrumenter(IOutput out, ApkInstrumenter instrumenter, int nJobs) {
+        this.out = out;
+        this.instrumenter = instrumenter;
+        this.nJobs = nJobs;
+    }
+
+    /**
+     * @param source either a directory, whose *.apk files are instrumented, or a manifest file listing one
+     *               APK path per line (empty lines and lines starting with '#' are skipped)
+     */
+    public static List<File> listInputs(File source) throws IOException {
+        final List<File> inputs = new ArrayList<>();
+        if (source.isDirectory()) {
+            final File[] files = source.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File f) {
+                    return f.isFile() && f.getName().toLowerCase(Locale.ROOT).endsWith(".apk");
+                }
+            });
+            if (files == null)
+                throw new IOException("Cannot list " + source);
+            Arrays.sort(files);
+            inputs.addAll(Arrays.asList(files));
+            return inputs;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    inputs.add(new File(line));
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Every APK is written to the output directory under its own name, so the whole batch is rejected before
+     * anything runs if two inputs share a name: one would overwrite the output of the other, and the failure of
+     * one would delete it.
+     *
+     * @param listener may be null
+     * @return the number of APKs that failed
+     */
+    public int run(List<File> inputs, File outputDir, ResultListener listener)
+            throws IOException, InterruptedException {
+        final List<File> outputs = outputsOf(inputs, outputDir);
+        final ExecutorService workers = Executors.newFixedThreadPool(nJobs);
+        final CompletionService<Result> completion = new ExecutorCompletionService<>(workers);
+        final int maxPending = 2 * nJobs;
+        int nPending = 0;
+        int nFailed = 0;
+        try {
+            for (int i = 0; i < inputs.size(); ++i) {
+                if (nPending == maxPending) {
+                    nFailed += handle(completion.take(), listener);
+                    --nPending;
+                }
+                final File input = inputs.get(i);
+                final File output = outputs.get(i);
+                completion.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return instrumentOne(input, output);
+                    }
+                });
+                ++nPending;
+                Future<Result> done;
+                while ((done = completion.poll()) != null) {
+                    nFailed += handle(done, listener);
+                    --nPending;
+                }
+            }
+            for (; nPending > 0; --nPending)
+                nFailed += handle(completion.take(), listener);
+        } finally {
+            workers.shutdownNow();
+        }
+        out.printf(IOutput.Level.ERROR, "%d APK(s) instrumented, %d failed\n", inputs.size() - nFailed, nFailed);
+        return nFailed;
+    }
+
+    /**
+     * @return 1 if the APK failed, 0 otherwise
+     */
+    private int handle(Future<Result> done, ResultListener listener) throws IOException, InterruptedException {
+        final Result r;
+        try {
+            r = done.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        if (r.isSuccess())
+            out.printf(IOutput.Level.ERROR, "  OK     %s -> %s (%d invocation(s), %d ms)\n",
+                       r.input, r.output, r.nInstrumented, r.millis);
+        else
+            out.printf(IOutput.Level.ERROR, "  FAILED %s (%s, %d ms)\n", r.input, r.error, r.millis);
+        if (listener != null)
+            listener.resultReady(r);
+        return r.isSuccess() ? 0 : 1;
+    }
+
+    /**
+     * @return the output file of every input
+     * @throws IOException if two inputs have the same name, ignoring case for case-insensitive file systems
+     */
+    private static List<File> outputsOf(List<File> inputs, File outputDir) throws IOException {
+        final List<File> outputs = new ArrayList<>(inputs.size());
+        final Map<String, File> inputByName = new HashMap<>();
+        for (File input : inputs) {
+            final File previous = inputByName.put(input.getName().toLowerCase(Locale.ROOT), input);
+            if (previous != null)
+                throw new IOException("Both " + previous + " and " + input + " would be written to "
+                                      + new File(outputDir, input.getName()));
+            outputs.add(new File(outputDir, input.getName()));
+        }
+        return outputs;
+    }
+
+    private Result instrumentOne(File input, File output) {
+        final long start = System.nanoTime();
+        out.printf(IOutput.Level.NORMAL, "Instrumenting %s\n", input);
+        final Metrics metrics = new Metrics();
+        try {
+            final int nInstrumented = instrumenter.instrument(input, output, metrics);
+            return new Result(input, output, elapsedMillis(start), nInstrumented, null, metrics);
+        } catch (Exception | LinkageError e) {
+            out.printf(IOutput.Level.ERROR, "Failed to instrument %s: %s\n", input, e.toString());
+            output.delete();
+            return new Result(input, output, elapsedMillis(start), 0, e, metrics);
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
@@ -1,10 +1,13 @@
 package it.saonzo.andinst;
 
 
-import org.jf.dexlib2.DexFileFactory;
 import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.BuilderInstruction;
 import org.jf.dexlib2.builder.MutableMethodImplementation;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction35c;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.iface.Method;
@@ -14,47 +17,256 @@ import org.jf.dexlib2.iface.instruction.formats.Instruction35c;
 import org.jf.dexlib2.iface.reference.MethodReference;
 import org.jf.dexlib2.immutable.ImmutableClassDef;
 import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.writer.io.DexDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
 
 import javax.annotation.Nonnull;
-import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class BytecodeCustomizer {
+    private static final int CLASSES_PER_TASK = 256;
+    private static final Opcodes OPCODES = Opcodes.forApi(19);
+
     private final Set<ClassDef> classesWithInstrMeths;
     private final Map<MethodReference, MethodReference> redirections;
-    private final File inputFile;
-    private final File outputDex;
+    private final ClassHierarchy hierarchy;
+    private final ClassFilter filter;
+    private final String dexName;
+    private final ByteBuffer inputDex;
+    private final DexDataStore outputDex;
     private final IOutput out;
-    private int nInstrumented;
+    private final ForkJoinPool pool;
+    private final DexCache cache;
+    private final Metrics metrics;
+    private final boolean streaming;
+    private final AtomicInteger nInstrumented = new AtomicInteger();
+    private InvokeScanner.Hits hits = new InvokeScanner.Hits();
+    private MethodReference[] redirectionsByMethodIndex = new MethodReference[0];
+    private boolean rewritten;
 
+    /**
+     * @param inputDex  the dex to rewrite, either on the heap or memory-mapped
+     * @param streaming if true, rewrite the classes one at a time while the writer consumes them instead of
+     *                  collecting the whole dex first, so that only the rewritten classes are built on the heap.
+     *                  The classes are then rewritten on the calling thread, and their time is part of WRITE_DEX
+     * @param hierarchy the classes of the APK, to also redirect the inherited methods; null to redirect only
+     *                  the invocations naming the class of the redirected method
+     * @param filter    the classes whose invocations are redirected, null for all of them; the others are written
+     *                  as they are
+     */
     public BytecodeCustomizer(IOutput out,
-                              File inputFile,
+                              String dexName,
+                              ByteBuffer inputDex,
                               Set<ClassDef> classesWithInstrMeths,
                               Map<MethodReference, MethodReference> redirections,
-                              File outputDex
+                              ClassHierarchy hierarchy,
+                              ClassFilter filter,
+                              DexDataStore outputDex,
+                              ForkJoinPool pool,
+                              DexCache cache,
+                              Metrics metrics,
+                              boolean streaming
     ) {
         this.out = out;
-        this.inputFile = inputFile;
+        this.dexName = dexName;
+        this.inputDex = inputDex;
         this.classesWithInstrMeths = classesWithInstrMeths;
         this.redirections = redirections;
+        this.hierarchy = hierarchy;
+        this.filter = filter;
         this.outputDex = outputDex;
+        this.pool = pool;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.streaming = streaming;
+    }
+
+    /**
+     * Rewrites the dex into outputDex, unless it does not invoke any redirected method and does not host the
+     * instrumentation classes: in that case outputDex is left untouched and {@link #isRewritten()} is false.
+     * With a cache, a dex seen before is copied from the cache without being loaded by dexlib2.
+     */
+    public int customize() throws IOException {
+        if (cache == null)
+            return rewrite(outputDex);
+        final String key = cache.key(inputDex, !classesWithInstrMeths.isEmpty());
+        final DexCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            out.printf(IOutput.Level.VERBOSE, "%s found in the cache\n", dexName);
+            rewritten = entry.dex != null;
+            metrics.add(Metrics.Counter.INVOKES_REDIRECTED, entry.nInstrumented);
+            if (rewritten) {
+                out.printf(IOutput.Level.ERROR, "Instrumented %d invocation(s) in %s\n", entry.nInstrumented, dexName);
+                try (OutputStream os = outputDex.outputAt(0)) {
+                    os.write(entry.dex);
+                }
+            }
+            return entry.nInstrumented;
+        }
+        // dexlib2 closes the store once written, so the dex is written in memory to be read back for the cache
+        final DexDataStore dataStore = outputDex instanceof MemoryDataStore ? outputDex : new MemoryDataStore();
+        final int n = rewrite(dataStore);
+        final byte[] dex = rewritten ? ((MemoryDataStore) dataStore).toByteArray() : null;
+        cache.put(key, n, dex);
+        if (dex != null && dataStore != outputDex)
+            try (OutputStream os = outputDex.outputAt(0)) {
+                os.write(dex);
+            }
+        return n;
     }
 
-    public void customize() throws IOException {
-        nInstrumented = 0;
+    private int rewrite(DexDataStore target) throws IOException {
+        nInstrumented.set(0);
+        final Metrics.Timer scanTimer = metrics.time(Metrics.Phase.SCAN);
+        try {
+            final RawDex rawDex = new RawDex(inputDex);
+            metrics.add(Metrics.Counter.CLASSES_SCANNED, rawDex.classDefsSize);
+            redirectionsByMethodIndex = InvokeScanner.resolveRedirections(rawDex, redirections, hierarchy);
+            hits = InvokeScanner.findHits(rawDex, redirectionsByMethodIndex, filter);
+            metrics.add(Metrics.Counter.CLASSES_EXCLUDED, hits.getExcluded());
+        } finally {
+            scanTimer.stop();
+        }
+        rewritten = hits.size() > 0 || !classesWithInstrMeths.isEmpty();
+        if (!rewritten) {
+            out.printf(IOutput.Level.VERBOSE, "%s does not invoke any redirected method, leaving it untouched\n", dexName);
+            return 0;
+        }
+        // each redirection may add the method_id of its hook
+        final int methodRefs = MultiDex.methodIdsSize(inputDex) + redirections.size();
+        if (methodRefs > MultiDex.MAX_METHOD_REFERENCES)
+            throw new IOException(String.format(
+                    "%s has %d method references and may need %d with the %d redirections, over the dex limit of %d",
+                    dexName, MultiDex.methodIdsSize(inputDex), methodRefs, redirections.size(),
+                    MultiDex.MAX_METHOD_REFERENCES));
+        out.printf(IOutput.Level.VERBOSE, "%s: %d redirected method(s) referenced, %d class(es) to rewrite\n",
+                   dexName, InvokeScanner.countResolved(redirectionsByMethodIndex), hits.getClasses().size());
+        metrics.add(Metrics.Counter.INVOKES_INSPECTED, hits.getInspected());
+
+        if (streaming)
+            return rewriteWhileWriting(target);
+        final List<ClassDef> dexClasses;
+        final Metrics.Timer loadDexTimer = metrics.time(Metrics.Phase.LOAD_DEX);
+        try {
+            DexFile dexFile = new DexBackedDexFile(OPCODES, toByteArray(inputDex));
+            dexClasses = new ArrayList<ClassDef>(dexFile.getClasses());
+        } finally {
+            loadDexTimer.stop();
+        }
         final List<ClassDef> classes = new ArrayList<>(classesWithInstrMeths);
-        DexFile dexFile = DexFileFactory.loadDexFile(inputFile, 19, false);
-        for (ClassDef classDef : dexFile.getClasses())
-            classes.add(customizeClass(classDef));
-        out.printf(IOutput.Level.ERROR, "Instrumented %d invocation(s)\n", nInstrumented);
-        writeDexFile(classes);
+        if (pool.getParallelism() > 1) {
+            // the classes are rewritten on the pool threads, which report their own CPU time
+            final Metrics.Timer rewriteTimer = metrics.timeWall(Metrics.Phase.REWRITE);
+            try {
+                classes.addAll(customizeClassesInParallel(dexClasses));
+            } finally {
+                rewriteTimer.stop();
+            }
+        } else {
+            final Metrics.Timer rewriteTimer = metrics.time(Metrics.Phase.REWRITE);
+            try {
+                for (ClassDef classDef : dexClasses)
+                    classes.add(customizeClass(classDef));
+            } finally {
+                rewriteTimer.stop();
+            }
+        }
+        metrics.add(Metrics.Counter.INVOKES_REDIRECTED, nInstrumented.get());
+        out.printf(IOutput.Level.ERROR, "Instrumented %d invocation(s) in %s\n", nInstrumented.get(), dexName);
+        final Metrics.Timer writeDexTimer = metrics.time(Metrics.Phase.WRITE_DEX);
+        try {
+            writeDexFile(out, dexName, classes, target);
+        } finally {
+            writeDexTimer.stop();
+        }
+        return nInstrumented.get();
     }
 
-    private void writeDexFile(final List<ClassDef> classes) throws IOException {
-        String outputFilename = outputDex.getCanonicalPath();
-        out.printf(IOutput.Level.DEBUG, "Writing DEX-file: %s\n", outputFilename);
-        DexFileFactory.writeDexFile(outputFilename, new DexFile() {
+    /**
+     * Feeds the writer with the classes of the dex as they are read, each one rewritten only if it invokes a
+     * redirected method: untouched classes stay views over the dex buffer, and no list of the classes is built.
+     */
+    private int rewriteWhileWriting(DexDataStore target) throws IOException {
+        final Set<? extends ClassDef> dexClasses;
+        final Metrics.Timer loadDexTimer = metrics.time(Metrics.Phase.LOAD_DEX);
+        try {
+            dexClasses = new DexBackedDexFile(OPCODES, toByteArray(inputDex)).getClasses();
+        } finally {
+            loadDexTimer.stop();
+        }
+        final Collection<ClassDef> classes = new AbstractCollection<ClassDef>() {
+            @Nonnull
+            @Override
+            public Iterator<ClassDef> iterator() {
+                final Iterator<ClassDef> payload = classesWithInstrMeths.iterator();
+                final Iterator<? extends ClassDef> dex = dexClasses.iterator();
+                return new Iterator<ClassDef>() {
+                    @Override
+                    public boolean hasNext() {
+                        return payload.hasNext() || dex.hasNext();
+                    }
+
+                    @Override
+                    public ClassDef next() {
+                        return payload.hasNext() ? payload.next() : customizeClass(dex.next());
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return classesWithInstrMeths.size() + dexClasses.size();
+            }
+        };
+        final Metrics.Timer writeDexTimer = metrics.time(Metrics.Phase.WRITE_DEX);
+        try {
+            writeDexFile(out, dexName, classes, target);
+        } finally {
+            writeDexTimer.stop();
+        }
+        metrics.add(Metrics.Counter.INVOKES_REDIRECTED, nInstrumented.get());
+        out.printf(IOutput.Level.ERROR, "Instrumented %d invocation(s) in %s\n", nInstrumented.get(), dexName);
+        return nInstrumented.get();
+    }
+
+    /**
+     * dexlib2 reads dex files only from an array: a heap buffer wrapping a whole array is used as it is,
+     * anything else is copied.
+     */
+    private static byte[] toByteArray(ByteBuffer dex) {
+        if (dex.hasArray() && dex.arrayOffset() == 0 && dex.position() == 0 && dex.remaining() == dex.array().length)
+            return dex.array();
+        final byte[] bytes = new byte[dex.remaining()];
+        dex.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public boolean isRewritten() {
+        return rewritten;
+    }
+
+    public static void writeDexFile(IOutput out, String dexName, final Collection<ClassDef> classes,
+                                    DexDataStore outputDex) throws IOException {
+        out.printf(IOutput.Level.DEBUG, "Writing DEX-file: %s\n", dexName);
+        DexPool.writeTo(outputDex, new DexFile() {
+            @Override
+            @Nonnull
+            public Opcodes getOpcodes() {
+                return OPCODES;
+            }
+
             @Override
             @Nonnull
             public Set<? extends ClassDef> getClasses() {
@@ -74,32 +286,75 @@ class BytecodeCustomizer {
         });
     }
 
+    private List<ClassDef> customizeClassesInParallel(List<ClassDef> dexClasses) {
+        out.printf(IOutput.Level.VERBOSE, "Rewriting %d classes of %s on %d threads\n",
+                   dexClasses.size(), dexName, pool.getParallelism());
+        final CustomizeClassesTask task = new CustomizeClassesTask(dexClasses, 0, dexClasses.size());
+        return ForkJoinTask.inForkJoinPool() ? task.invoke() : pool.invoke(task);
+    }
+
+    /**
+     * Rewrites the classes in [from, to), splitting the range until it is small enough.
+     * The partial results are concatenated in range order, so the output keeps the order of the input dex.
+     */
+    @SuppressWarnings("serial")
+    private class CustomizeClassesTask extends RecursiveTask<List<ClassDef>> {
+        private final List<ClassDef> dexClasses;
+        private final int from;
+        private final int to;
+
+        CustomizeClassesTask(List<ClassDef> dexClasses, int from, int to) {
+            this.dexClasses = dexClasses;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<ClassDef> compute() {
+            if (to - from <= CLASSES_PER_TASK) {
+                final long cpuStart = Metrics.currentThreadCpuTime();
+                List<ClassDef> result = new ArrayList<>(to - from);
+                for (int i = from; i < to; ++i)
+                    result.add(customizeClass(dexClasses.get(i)));
+                metrics.addCpuTime(Metrics.Phase.REWRITE, Metrics.currentThreadCpuTime() - cpuStart);
+                return result;
+            }
+            final int middle = (from + to) >>> 1;
+            CustomizeClassesTask left = new CustomizeClassesTask(dexClasses, from, middle);
+            CustomizeClassesTask right = new CustomizeClassesTask(dexClasses, middle, to);
+            right.fork();
+            List<ClassDef> result = left.compute();
+            result.addAll(right.join());
+            return result;
+        }
+    }
+
+    /**
+     * Rebuilds the methods of the class with hits, redirecting the invocations found by the raw scan; any other
+     * class is returned as it is, and any other method of the class is kept as it is.
+     */
     private ClassDef customizeClass(ClassDef classDef) {
+        if (!hits.getClasses().contains(classDef.getType()))
+            return classDef;
         List<Method> methods = new ArrayList<>();
-        boolean modifiedMethod = false;
         for (Method method : classDef.getMethods()) {
-            MethodImplementation implementation = method.getImplementation();
-            if (implementation == null) {
-                methods.add(method);
-                continue;
-            }
-            MethodImplementation customImpl = searchAndReplaceInvocations(implementation);
-            if (customImpl==implementation) {
+            final int firstHit = method instanceof DexBackedMethod
+                                 ? hits.firstHit(((DexBackedMethod) method).methodIndex) : -1;
+            if (firstHit < 0) {
                 methods.add(method);
                 continue;
             }
-            modifiedMethod = true;
+            metrics.add(Metrics.Counter.METHODS_REBUILT, 1);
             final ImmutableMethod newMethod = new ImmutableMethod(method.getDefiningClass(),
                                                                   method.getName(),
                                                                   method.getParameters(),
                                                                   method.getReturnType(),
                                                                   method.getAccessFlags(),
                                                                   method.getAnnotations(),
-                                                                  customImpl);
+                                                                  replaceInvocations(method, firstHit));
             methods.add(newMethod);
         }
-        if (!modifiedMethod)
-            return classDef;
+        metrics.add(Metrics.Counter.CLASSES_REWRITTEN, 1);
         return new ImmutableClassDef(classDef.getType(),
                                      classDef.getAccessFlags(),
                                      classDef.getSuperclass(),
@@ -110,48 +365,49 @@ class BytecodeCustomizer {
                                      methods);
     }
 
-    private MethodImplementation searchAndReplaceInvocations(MethodImplementation origImplementation) {
-        MutableMethodImplementation newImplementation = null;
-        int i = -1;
-        for (Instruction instruction : origImplementation.getInstructions()) {
-            ++i;
-            Opcode opcode = instruction.getOpcode();
-
-            if (opcode == Opcode.INVOKE_VIRTUAL || opcode == Opcode.INVOKE_STATIC || opcode == Opcode.INVOKE_DIRECT) {
-                assert instruction instanceof Instruction35c;
-                Instruction35c invokeInstr = (Instruction35c) instruction;
-
-                Instruction35c newInstruction = checkInstruction(invokeInstr);
-                if (newInstruction == invokeInstr)
-                    continue;
-                if (newImplementation == null)
-                    newImplementation = new MutableMethodImplementation(origImplementation);
-                ++nInstrumented;
-                if (opcode == Opcode.INVOKE_DIRECT)
-                    newImplementation.addInstruction(++i,(BuilderInstruction35c)newInstruction);
-                else
-                    newImplementation.replaceInstruction(i, (BuilderInstruction35c)newInstruction);
-            }
+    /**
+     * Copies the implementation of a method with hits and redirects the invocations at the hit indices.
+     * An invoke-direct is kept and followed by the call to the instrumentation method, which shifts the indices
+     * of the hits after it.
+     */
+    private MethodImplementation replaceInvocations(Method method, int firstHit) {
+        final MutableMethodImplementation newImplementation =
+                new MutableMethodImplementation(method.getImplementation());
+        final List<BuilderInstruction> instructions = newImplementation.getInstructions();
+        final int endHit = hits.endHit(firstHit);
+        int inserted = 0;
+        for (int h = firstHit; h < endHit; ++h) {
+            final int i = hits.instructionIndex(h) + inserted;
+            final Instruction instruction = instructions.get(i);
+            final Opcode opcode = instruction.getOpcode();
+            if (opcode != Opcode.INVOKE_VIRTUAL && opcode != Opcode.INVOKE_STATIC && opcode != Opcode.INVOKE_DIRECT)
+                throw new IllegalStateException("Expected an invocation at instruction " + hits.instructionIndex(h)
+                                                + " of " + method.getDefiningClass() + "->" + method.getName()
+                                                + ", found " + opcode);
+            final MethodReference redirection = redirectionsByMethodIndex[hits.invokedMethod(h)];
+            final BuilderInstruction35c newInstruction = redirect((Instruction35c) instruction, redirection);
+            if (opcode == Opcode.INVOKE_DIRECT) {
+                newImplementation.addInstruction(i + 1, newInstruction);
+                ++inserted;
+            } else
+                newImplementation.replaceInstruction(i, newInstruction);
         }
-        return newImplementation!=null ? newImplementation : origImplementation;
+        nInstrumented.addAndGet(endHit - firstHit);
+        return newImplementation;
     }
 
-    private Instruction35c checkInstruction(Instruction35c invokeInstr) {
-        MethodReference r = (MethodReference) invokeInstr.getReference();
-        // out.printf(IOutput.Level.DEBUG, "Method %s . %s\n", r.getDefiningClass(), r.getName());
-        MethodReference redirection = redirections.get(r);
-        if (redirection != null) {
+    private BuilderInstruction35c redirect(Instruction35c invokeInstr, MethodReference redirection) {
+        if (OutputUtils.isEnabled(out, IOutput.Level.DEBUG))
             out.printf(IOutput.Level.DEBUG, "Applying redirection to %s\n", redirection);
-            return new BuilderInstruction35c(Opcode.INVOKE_STATIC,
-                                             invokeInstr.getRegisterCount(),
-                                             invokeInstr.getRegisterC(),
-                                             invokeInstr.getRegisterD(),
-                                             invokeInstr.getRegisterE(),
-                                             invokeInstr.getRegisterF(),
-                                             invokeInstr.getRegisterG(),
-                                             redirection);
-        }
-        return invokeInstr;
+        metrics.countRedirection(redirection);
+        return new BuilderInstruction35c(Opcode.INVOKE_STATIC,
+                                         invokeInstr.getRegisterCount(),
+                                         invokeInstr.getRegisterC(),
+                                         invokeInstr.getRegisterD(),
+                                         invokeInstr.getRegisterE(),
+                                         invokeInstr.getRegisterF(),
+                                         invokeInstr.getRegisterG(),
+                                         redirection);
     }
 
 }
@@ -0,0 +1,139 @@
+package it.saonzo.andinst;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Scopes the instrumentation by class descriptor prefix, e.g. to leave out the libraries bundled in an app
+ * (Lcom/google/, Lkotlin/, Landroidx/) or to instrument only its own packages. The longest matching prefix
+ * decides, so Lcom/google/ can be excluded and Lcom/google/myapp/ included again; a class matching no prefix
+ * is instrumented only if no prefix is included. Between an include and an exclude of the same prefix,
+ * the exclude wins.
+ * <p>
+ * The prefixes are kept in a trie of the bytes of their descriptors, and a class is matched on the MUTF-8 bytes
+ * of its descriptor in the dex, so the raw scans decide whether to skip a class without decoding its name or
+ * reading any of its code. The invocations of an excluded class are never redirected, and the class goes to the
+ * dex writer as it is.
+ */
+class ClassFilter {
+    private static final byte UNMARKED = 0;
+    private static final byte INCLUDED = 1;
+    private static final byte EXCLUDED = 2;
+
+    private static class Node {
+        private byte[] labels = new byte[0];
+        private Node[] children = new Node[0];
+        private byte mark = UNMARKED;
+
+        Node child(byte label) {
+            for (int i = 0; i < labels.length; ++i)
+                if (labels[i] == label)
+                    return children[i];
+            return null;
+        }
+
+        Node addChild(byte label) {
+            Node child = child(label);
+            if (child == null) {
+                child = new Node();
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                labels[labels.length - 1] = label;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+    private final SortedSet<String> includes;
+    private final SortedSet<String> excludes;
+
+    /**
+     * @param includes the descriptor prefixes of the classes to instrument, e.g. Lcom/example/app/
+     * @param excludes the descriptor prefixes of the classes to leave untouched
+     */
+    public ClassFilter(Collection<String> includes, Collection<String> excludes) {
+        this.includes = new TreeSet<>(includes);
+        this.excludes = new TreeSet<>(excludes);
+        for (String prefix : this.includes)
+            add(prefix, INCLUDED);
+        for (String prefix : this.excludes)
+            add(prefix, EXCLUDED);
+    }
+
+    /**
+     * Reads the prefixes of a scope file into includes and excludes: one prefix per line, preceded by + to
+     * include it or by - to exclude it. Blank lines and lines starting with # are ignored.
+     */
+    public static void readScope(File file, Collection<String> includes, Collection<String> excludes)
+            throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                              StandardCharsets.UTF_8))) {
+            String line;
+            for (int n = 1; (line = reader.readLine()) != null; ++n) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                final String prefix = line.substring(1).trim();
+                if (line.charAt(0) == '+' && isDescriptorPrefix(prefix))
+                    includes.add(prefix);
+                else if (line.charAt(0) == '-' && isDescriptorPrefix(prefix))
+                    excludes.add(prefix);
+                else
+                    throw new IOException(file + ":" + n + ": expected +<prefix> or -<prefix>, e.g. -Lkotlin/");
+            }
+        }
+    }
+
+    /**
+     * @return true if prefix can start the descriptor of a class, like Lcom/example/
+     */
+    public static boolean isDescriptorPrefix(String prefix) {
+        return prefix.length() > 1 && prefix.charAt(0) == 'L' && prefix.indexOf('.') < 0;
+    }
+
+    private void add(String prefix, byte mark) {
+        Node node = root;
+        for (byte b : prefix.getBytes(StandardCharsets.UTF_8))
+            node = node.addChild(b);
+        if (node.mark != EXCLUDED)
+            node.mark = mark;
+    }
+
+    /**
+     * @return true if the class defined by a class_def of the dex is to be instrumented
+     */
+    public boolean accepts(RawDex dex, int classDefIndex) {
+        byte decision = includes.isEmpty() ? INCLUDED : EXCLUDED;
+        Node node = root;
+        for (int offset = dex.getTypeDescriptorOffset(dex.getClassDefTypeIndex(classDefIndex)); ; ++offset) {
+            final byte b = dex.getByte(offset);
+            if (b == 0 || (node = node.child(b)) == null)
+                return decision == INCLUDED;
+            if (node.mark != UNMARKED)
+                decision = node.mark;
+        }
+    }
+
+    /**
+     * @return the prefixes, in a stable form: two filters with the same description select the same classes
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (String prefix : includes)
+            sb.append('+').append(prefix).append('\n');
+        for (String prefix : excludes)
+            sb.append('-').append(prefix).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,181 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.iface.reference.MethodReference;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Superclass and interface edges of the classes of an APK and of the framework, to redirect the invocations of
+ * a hooked method made through a subtype of the class declaring the hook: javac puts the static type of the
+ * receiver in the method reference, so an activity calling its own startActivity references
+ * Lcom/app/MainActivity;->startActivity and not Landroid/app/Activity;->startActivity.
+ * <p>
+ * Every distinct method reference is resolved once per APK, by walking the supertypes of its class, and the
+ * result is kept: the dex files of the APK share the resolutions, and the invoke instructions are then matched
+ * by method index as usual. The edges of the framework classes come from a list bundled as a resource;
+ * a class that is neither in the APK nor in the list has no supertypes, so its references only match exactly.
+ * Constructors and static initializers are never inherited, so they only match exactly too. A class of the APK
+ * that declares the method itself overrides the hooked one: the walk stops there and the reference is not
+ * redirected.
+ */
+class ClassHierarchy {
+    private static final String FRAMEWORK_TYPES = "framework-hierarchy.txt";
+    private static final String[] NO_TYPES = new String[0];
+    /**
+     * Resolution of a method reference that is not redirected, since the cache cannot hold null.
+     */
+    private static final MethodReference NOT_REDIRECTED =
+            new DexMethod("", "", Collections.<String>emptyList(), "V");
+
+    private static Map<String, String[]> frameworkSupertypes;
+
+    private final Map<String, String[]> supertypes;
+    /**
+     * The virtual methods declared by the classes of the APK, among those named as a hooked method.
+     */
+    private final Set<MethodReference> declared;
+    private final Map<MethodReference, MethodReference> redirections;
+    private final Set<String> hookedClasses = new HashSet<>();
+    private final ConcurrentMap<MethodReference, MethodReference> resolved = new ConcurrentHashMap<>();
+    private final Metrics metrics;
+
+    private ClassHierarchy(Map<String, String[]> supertypes, Set<MethodReference> declared,
+                           Map<MethodReference, MethodReference> redirections, Metrics metrics) {
+        this.supertypes = supertypes;
+        this.declared = declared;
+        this.redirections = redirections;
+        this.metrics = metrics;
+        for (MethodReference r : redirections.keySet())
+            hookedClasses.add(r.getDefiningClass());
+    }
+
+    /**
+     * Indexes the classes defined in the dex files of an APK, on top of the framework ones, and the methods they
+     * declare with the name of a hooked method. A class of the APK with the name of a framework class is ignored,
+     * as the runtime loads the framework one.
+     */
+    public static ClassHierarchy build(Collection<ByteBuffer> dexFiles,
+                                       Map<MethodReference, MethodReference> redirections,
+                                       Metrics metrics) throws IOException {
+        final Map<String, String[]> framework = loadFrameworkSupertypes();
+        final Map<String, String[]> supertypes = new HashMap<>(framework);
+        final Set<String> hookedNames = new HashSet<>();
+        for (MethodReference r : redirections.keySet())
+            hookedNames.add(r.getName());
+        final Set<MethodReference> declared = new HashSet<>();
+        for (ByteBuffer dexFile : dexFiles) {
+            final RawDex dex = new RawDex(dexFile);
+            final RawDex.ClassDataReader reader = dex.new ClassDataReader();
+            // whether the string at an index is a hooked name, each name decoded once per dex
+            final Map<Integer, Boolean> isHookedName = new HashMap<>();
+            for (int c = 0; c < dex.classDefsSize; ++c) {
+                final String type = dex.getType(dex.getClassDefTypeIndex(c));
+                if (framework.containsKey(type))
+                    continue;
+                reader.reset(c);
+                while (reader.next()) {
+                    if (!reader.isVirtual())
+                        continue;
+                    final int nameIndex = dex.getMethodNameIndex(reader.methodIndex());
+                    Boolean hooked = isHookedName.get(nameIndex);
+                    if (hooked == null) {
+                        hooked = hookedNames.contains(dex.getString(nameIndex));
+                        isHookedName.put(nameIndex, hooked);
+                    }
+                    if (hooked)
+                        declared.add(dex.getMethod(reader.methodIndex()));
+                }
+                final int superclassIndex = dex.getClassDefSuperclassIndex(c);
+                final List<String> interfaces = dex.getClassDefInterfaces(c);
+                final List<String> types = new ArrayList<>(interfaces.size() + 1);
+                if (superclassIndex != RawDex.NO_INDEX)
+                    types.add(dex.getType(superclassIndex));
+                types.addAll(interfaces);
+                supertypes.put(type, types.toArray(NO_TYPES));
+            }
+        }
+        return new ClassHierarchy(supertypes, declared, redirections, metrics);
+    }
+
+    /**
+     * @return the redirection of the method, declared either for the method itself or for the same method of
+     * the nearest supertype of its class, breadth-first with the superclass before the interfaces; null if none,
+     * or if a class of the APK met first overrides the method
+     */
+    public MethodReference resolve(MethodReference method) {
+        MethodReference target = resolved.get(method);
+        if (target == null) {
+            target = findRedirection(method);
+            final boolean first = resolved.putIfAbsent(method, target == null ? NOT_REDIRECTED : target) == null;
+            if (first && target != null && !redirections.containsKey(method))
+                metrics.add(Metrics.Counter.INHERITED_REFERENCES, 1);
+        }
+        return target == NOT_REDIRECTED ? null : target;
+    }
+
+    private MethodReference findRedirection(MethodReference method) {
+        final MethodReference exact = redirections.get(method);
+        if (exact != null || method.getName().startsWith("<") || declared.contains(method))
+            return exact;
+        final Set<String> visited = new HashSet<>();
+        final Deque<String> queue = new ArrayDeque<>();
+        queue.add(method.getDefiningClass());
+        visited.add(method.getDefiningClass());
+        while (!queue.isEmpty()) {
+            final String[] types = supertypes.get(queue.remove());
+            if (types == null)
+                continue;
+            for (String type : types) {
+                if (!visited.add(type))
+                    continue;
+                final MethodReference same = new DexMethod(type, method.getName(), method.getParameterTypes(),
+                                                           method.getReturnType());
+                if (hookedClasses.contains(type)) {
+                    final MethodReference target = redirections.get(same);
+                    if (target != null)
+                        return target;
+                }
+                if (declared.contains(same))
+                    return null;
+                queue.add(type);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The bundled list: one class per line, followed by its superclass and its interfaces, separated by spaces,
+     * in dex descriptor syntax. java.lang.Object has no superclass; # starts a comment.
+     */
+    private static synchronized Map<String, String[]> loadFrameworkSupertypes() throws IOException {
+        if (frameworkSupertypes != null)
+            return frameworkSupertypes;
+        final InputStream in = ClassHierarchy.class.getResourceAsStream(FRAMEWORK_TYPES);
+        if (in == null)
+            throw new IOException("Missing resource " + FRAMEWORK_TYPES);
+        final Map<String, String[]> types = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int comment = line.indexOf('#');
+                if (comment >= 0)
+                    line = line.substring(0, comment);
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                final String[] fields = line.split("\\s+");
+                types.put(fields[0], Arrays.copyOfRange(fields, 1, fields.length));
+            }
+        }
+        frameworkSupertypes = Collections.unmodifiableMap(types);
+        return frameworkSupertypes;
+    }
+}
@@ -1,6 +1,6 @@
 package it.saonzo.andinst;
 
-class ConsoleOutput implements IOutput {
+class ConsoleOutput implements IFilteredOutput {
     private final Level level;
 
     public ConsoleOutput(Level level) {
@@ -14,4 +14,9 @@ class ConsoleOutput implements IOutput {
         else if (msgLevel.priority >= this.level.priority)
             System.out.printf(format, args);
     }
+
+    @Override
+    public boolean isEnabled(Level l) {
+        return l == Level.ERROR || l.priority >= level.priority;
+    }
 }
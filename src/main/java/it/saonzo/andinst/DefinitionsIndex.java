@@ -0,0 +1,355 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.reference.MethodReference;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Compiled form of a definitions APK, so that a run does not parse the definitions dex and its annotations again.
+ * All integers are little-endian:
+ * <pre>
+ * header       magic "AIDX", format version, CRC32 of everything after the header, SHA-256 of the definitions APK,
+ *              string count and offset, redirection count and offset, payload offset and size
+ * strings      sorted, as an array of offsets to (byte length, UTF-8 bytes)
+ * redirections fixed-width records of string indexes, sorted by the redirected method (class, name, parameters,
+ *              return type): class, name, parameters, hook class, hook name, hook parameters, return type
+ * payload      a dex with the instrumentation classes
+ * </pre>
+ * The parameter types of a method are stored as a single string, the concatenation of their descriptors.
+ * <p>
+ * {@link #load(File)} maps the file and looks the redirections up in place, by binary search, so loading costs
+ * little more than the checksum.
+ */
+class DefinitionsIndex {
+    static final String EXTENSION = ".aidx";
+
+    private static final int MAGIC = 0x58444941; // "AIDX"
+    private static final int FORMAT_VERSION = 2;
+    private static final int DIGEST_SIZE = 32;
+    private static final int CHECKSUM_OFFSET = 8;
+    private static final int DIGEST_OFFSET = 12;
+    private static final int COUNTS_OFFSET = DIGEST_OFFSET + DIGEST_SIZE;
+    private static final int HEADER_SIZE = COUNTS_OFFSET + 24;
+    private static final int RECORD_FIELDS = 7;
+    private static final int RECORD_SIZE = 4 * RECORD_FIELDS;
+
+    private DefinitionsIndex() {
+    }
+
+    /**
+     * @return true if the file starts like an index, false if it should be a definitions APK or dex
+     */
+    public static boolean isIndex(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return Integer.reverseBytes(in.readInt()) == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    public static void write(IOutput out, File indexFile, InstrDefinitions definitions) throws IOException {
+        final Map<MethodReference, MethodReference> redirections = definitions.getRedirections();
+        final SortedSet<String> stringSet = new TreeSet<>();
+        for (Map.Entry<MethodReference, MethodReference> e : redirections.entrySet()) {
+            addStrings(stringSet, e.getKey());
+            addStrings(stringSet, e.getValue());
+        }
+        final List<String> strings = new ArrayList<>(stringSet);
+
+        final int[][] records = new int[redirections.size()][];
+        int n = 0;
+        for (Map.Entry<MethodReference, MethodReference> e : redirections.entrySet()) {
+            final MethodReference from = e.getKey();
+            final MethodReference to = e.getValue();
+            records[n++] = new int[]{
+                    indexOf(strings, from.getDefiningClass()),
+                    indexOf(strings, from.getName()),
+                    indexOf(strings, joinDescriptors(from.getParameterTypes())),
+                    indexOf(strings, to.getDefiningClass()),
+                    indexOf(strings, to.getName()),
+                    indexOf(strings, joinDescriptors(to.getParameterTypes())),
+                    indexOf(strings, from.getReturnType())
+            };
+        }
+        Arrays.sort(records, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return compareKeys(a[0], a[1], a[2], a[6], b[0], b[1], b[2], b[6]);
+            }
+        });
+
+        final MemoryDataStore payload = new MemoryDataStore();
+        BytecodeCustomizer.writeDexFile(out, "payload", definitions.getClassesWithInstrMeths(), payload);
+
+        final ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+        final int stringsOff = HEADER_SIZE;
+        final int stringDataOff = stringsOff + 4 * strings.size();
+        final ByteBuffer stringOffsets = littleEndian(4 * strings.size());
+        for (String s : strings) {
+            stringOffsets.putInt(stringDataOff + stringData.size());
+            final byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            stringData.write(littleEndian(4).putInt(utf8.length).array());
+            stringData.write(utf8);
+        }
+        final int redirectionsOff = stringDataOff + stringData.size();
+        final ByteBuffer recordBytes = littleEndian(RECORD_SIZE * records.length);
+        for (int[] record : records)
+            for (int field : record)
+                recordBytes.putInt(field);
+        final int payloadOff = redirectionsOff + recordBytes.capacity();
+
+        final ByteBuffer file = littleEndian(payloadOff + payload.size());
+        file.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(0).put(definitions.getDigest());
+        file.putInt(strings.size()).putInt(stringsOff)
+            .putInt(records.length).putInt(redirectionsOff)
+            .putInt(payloadOff).putInt(payload.size());
+        file.put(stringOffsets.array()).put(stringData.toByteArray()).put(recordBytes.array())
+            .put(payload.toByteArray());
+        file.putInt(CHECKSUM_OFFSET, checksum(file));
+        try (OutputStream os = new FileOutputStream(indexFile)) {
+            os.write(file.array());
+        }
+    }
+
+    /**
+     * Maps an index written by {@link #write(IOutput, File, InstrDefinitions)}.
+     */
+    public static InstrDefinitions load(File indexFile) throws IOException {
+        final MappedByteBuffer mapped;
+        try (FileChannel channel = new RandomAccessFile(indexFile, "r").getChannel()) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final ByteBuffer buf = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC)
+            throw new IOException(indexFile + " is not a definitions index");
+        if (buf.getInt(4) != FORMAT_VERSION)
+            throw new IOException(indexFile + " has format version " + buf.getInt(4) + ", expected " + FORMAT_VERSION);
+        if (buf.getInt(CHECKSUM_OFFSET) != checksum(buf))
+            throw new IOException(indexFile + " is corrupted: wrong checksum");
+        final byte[] digest = new byte[DIGEST_SIZE];
+        for (int i = 0; i < DIGEST_SIZE; ++i)
+            digest[i] = buf.get(DIGEST_OFFSET + i);
+        final IndexedRedirections redirections = new IndexedRedirections(buf);
+
+        final int payloadOff = buf.getInt(COUNTS_OFFSET + 16);
+        final byte[] payload = new byte[buf.getInt(COUNTS_OFFSET + 20)];
+        final ByteBuffer payloadBuf = buf.duplicate();
+        payloadBuf.position(payloadOff);
+        payloadBuf.get(payload);
+        final Set<ClassDef> classes = new LinkedHashSet<ClassDef>(
+                new DexBackedDexFile(Opcodes.forApi(19), payload).getClasses());
+        return new InstrDefinitions(classes, redirections, digest);
+    }
+
+    /**
+     * The redirections of a mapped index. Lookups decode nothing but the strings they compare, which are kept
+     * once decoded.
+     */
+    private static class IndexedRedirections extends AbstractMap<MethodReference, MethodReference> {
+        private final ByteBuffer buf;
+        private final int stringsOff;
+        private final String[] strings;
+        private final int size;
+        private final int recordsOff;
+
+        IndexedRedirections(ByteBuffer buf) {
+            this.buf = buf;
+            strings = new String[buf.getInt(COUNTS_OFFSET)];
+            stringsOff = buf.getInt(COUNTS_OFFSET + 4);
+            size = buf.getInt(COUNTS_OFFSET + 8);
+            recordsOff = buf.getInt(COUNTS_OFFSET + 12);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public MethodReference get(Object key) {
+            if (!(key instanceof MethodReference))
+                return null;
+            final MethodReference method = (MethodReference) key;
+            final int classIndex = findString(method.getDefiningClass());
+            final int nameIndex = findString(method.getName());
+            final int parametersIndex = findString(joinDescriptors(method.getParameterTypes()));
+            final int returnTypeIndex = findString(method.getReturnType());
+            if (classIndex < 0 || nameIndex < 0 || parametersIndex < 0 || returnTypeIndex < 0)
+                return null;
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final int c = compareKeys(field(middle, 0), field(middle, 1), field(middle, 2), field(middle, 6),
+                                          classIndex, nameIndex, parametersIndex, returnTypeIndex);
+                if (c < 0)
+                    low = middle + 1;
+                else if (c > 0)
+                    high = middle - 1;
+                else
+                    return hook(middle);
+            }
+            return null;
+        }
+
+        @Override
+        public Set<Entry<MethodReference, MethodReference>> entrySet() {
+            return new AbstractSet<Entry<MethodReference, MethodReference>>() {
+                @Override
+                public Iterator<Entry<MethodReference, MethodReference>> iterator() {
+                    return new Iterator<Entry<MethodReference, MethodReference>>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < size;
+                        }
+
+                        @Override
+                        public Entry<MethodReference, MethodReference> next() {
+                            if (next >= size)
+                                throw new NoSuchElementException();
+                            final int r = next++;
+                            final MethodReference redirected = new DexMethod(
+                                    string(field(r, 0)), string(field(r, 1)),
+                                    splitDescriptors(string(field(r, 2))), string(field(r, 6)));
+                            return new SimpleImmutableEntry<>(redirected, hook(r));
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+
+        private MethodReference hook(int record) {
+            return new DexMethod(string(field(record, 3)), string(field(record, 4)),
+                                 splitDescriptors(string(field(record, 5))), string(field(record, 6)));
+        }
+
+        private int field(int record, int field) {
+            return buf.getInt(recordsOff + record * RECORD_SIZE + 4 * field);
+        }
+
+        private String string(int index) {
+            String s = strings[index];
+            if (s == null) {
+                final int offset = buf.getInt(stringsOff + 4 * index);
+                final byte[] utf8 = new byte[buf.getInt(offset)];
+                final ByteBuffer data = buf.duplicate();
+                data.position(offset + 4);
+                data.get(utf8);
+                s = new String(utf8, StandardCharsets.UTF_8);
+                strings[index] = s;
+            }
+            return s;
+        }
+
+        private int findString(String s) {
+            int low = 0;
+            int high = strings.length - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final int c = string(middle).compareTo(s);
+                if (c < 0)
+                    low = middle + 1;
+                else if (c > 0)
+                    high = middle - 1;
+                else
+                    return middle;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Orders the records like the sorted string table orders their strings.
+     */
+    private static int compareKeys(int class1, int name1, int parameters1, int returnType1,
+                                   int class2, int name2, int parameters2, int returnType2) {
+        if (class1 != class2)
+            return Integer.compare(class1, class2);
+        if (name1 != name2)
+            return Integer.compare(name1, name2);
+        if (parameters1 != parameters2)
+            return Integer.compare(parameters1, parameters2);
+        return Integer.compare(returnType1, returnType2);
+    }
+
+    private static void addStrings(Set<String> strings, MethodReference method) {
+        strings.add(method.getDefiningClass());
+        strings.add(method.getName());
+        strings.add(joinDescriptors(method.getParameterTypes()));
+        strings.add(method.getReturnType());
+    }
+
+    private static int indexOf(List<String> sortedStrings, String s) {
+        return Collections.binarySearch(sortedStrings, s);
+    }
+
+    private static String joinDescriptors(List<? extends CharSequence> types) {
+        final StringBuilder sb = new StringBuilder();
+        for (CharSequence type : types)
+            sb.append(type);
+        return sb.toString();
+    }
+
+    /**
+     * Splits a concatenation of type descriptors, which needs no separator: a descriptor is either a single
+     * letter, or an 'L' up to the next ';', possibly preceded by '['s.
+     */
+    static List<String> splitDescriptors(String descriptors) {
+        final List<String> types = new ArrayList<>();
+        int start = 0;
+        while (start < descriptors.length()) {
+            int end = start;
+            while (descriptors.charAt(end) == '[')
+                ++end;
+            if (descriptors.charAt(end) == 'L')
+                end = descriptors.indexOf(';', end);
+            types.add(descriptors.substring(start, end + 1));
+            start = end + 1;
+        }
+        return types;
+    }
+
+    private static int checksum(ByteBuffer file) {
+        final ByteBuffer body = file.duplicate();
+        body.position(HEADER_SIZE);
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[64 * 1024];
+        while (body.hasRemaining()) {
+            final int n = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer littleEndian(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
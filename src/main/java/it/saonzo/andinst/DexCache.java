@@ -0,0 +1,210 @@
+package it.saonzo.andinst;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Persistent cache of rewritten dex files, shared by every run and every process pointing to the same directory.
+ * An entry is named after the SHA-256 of the input dex, the definitions, whether the dex hosts the
+ * instrumentation classes, the AndInst version and {@link #FORMAT_VERSION}, so it never needs to be invalidated:
+ * a different input gets a different key. Dex files left untouched are cached too, as entries without a dex.
+ * <p>
+ * Entries are written to a temporary file and renamed into place, so readers never see a partial entry and
+ * need no lock. Reading an entry marks it as recently used; when the cache grows beyond maxBytes the least
+ * recently used entries are deleted, under a file lock so that concurrent processes do not evict together.
+ * Any I/O failure of the cache is reported and treated as a miss: the cache can only make a run faster.
+ */
+class DexCache {
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = "cache.lock";
+    private static final long STALE_TMP_MILLIS = 60 * 60 * 1000;
+    /**
+     * Version of the dex files written by the rewriter and of the entries. The AndInst version is not bumped by
+     * every change, so this one must be whenever the same input would be rewritten differently.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private final IOutput out;
+    private final File dir;
+    private final long maxBytes;
+    private final byte[] definitionsDigest;
+    private final ClassFilter filter;
+
+    public static class Entry {
+        public final int nInstrumented;
+        /**
+         * The rewritten dex, null if the dex was left untouched.
+         */
+        public final byte[] dex;
+
+        Entry(int nInstrumented, byte[] dex) {
+            this.nInstrumented = nInstrumented;
+            this.dex = dex;
+        }
+    }
+
+    /**
+     * @param filter the filter of the instrumented classes, null for none: it is part of the key of the entries
+     */
+    public DexCache(IOutput out, File dir, long maxBytes, byte[] definitionsDigest, ClassFilter filter)
+            throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create the cache directory " + dir);
+        this.out = out;
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.definitionsDigest = definitionsDigest.clone();
+        this.filter = filter;
+    }
+
+    /**
+     * @param hostsPayload true if the instrumentation classes are added to this dex
+     */
+    public String key(ByteBuffer inputDex, boolean hostsPayload) {
+        final MessageDigest md = sha256();
+        md.update(Main.VERSION.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(ByteBuffer.allocate(4).putInt(FORMAT_VERSION).array());
+        md.update(definitionsDigest);
+        md.update((byte) (hostsPayload ? 1 : 0));
+        if (filter != null) {
+            md.update(filter.toString().getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+        }
+        md.update(inputDex.duplicate());
+        return toHex(md.digest());
+    }
+
+    /**
+     * @return the cached entry, or null on a miss
+     */
+    public Entry get(String key) {
+        final File file = entryFile(key);
+        if (!file.isFile())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            final int nInstrumented = in.readInt();
+            final byte[] dex = new byte[(int) file.length() - 4];
+            in.readFully(dex);
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(nInstrumented, dex.length == 0 ? null : dex);
+        } catch (IOException e) {
+            out.printf(IOutput.Level.VERBOSE, "Cannot read cache entry %s: %s\n", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param dex the rewritten dex, null if the dex was left untouched
+     */
+    public void put(String key, int nInstrumented, byte[] dex) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, TMP_SUFFIX, dir);
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                os.writeInt(nInstrumented);
+                if (dex != null)
+                    os.write(dex);
+            }
+            Files.move(tmp.toPath(), entryFile(key).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            evict();
+        } catch (IOException e) {
+            out.printf(IOutput.Level.VERBOSE, "Cannot write cache entry %s: %s\n", key, e);
+        } finally {
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in maxBytes, along with the temporary
+     * files abandoned by crashed processes.
+     */
+    private synchronized void evict() throws IOException {
+        try (FileChannel lockChannel = new RandomAccessFile(new File(dir, LOCK_FILE), "rw").getChannel()) {
+            // released when the channel is closed
+            lockChannel.lock();
+            final File[] files = dir.listFiles();
+            if (files == null)
+                throw new IOException("Cannot list " + dir);
+            final long now = System.currentTimeMillis();
+            final long[] lastModified = new long[files.length];
+            long totalBytes = 0;
+            int nEntries = 0;
+            for (File f : files) {
+                final String name = f.getName();
+                if (name.endsWith(TMP_SUFFIX) && now - f.lastModified() > STALE_TMP_MILLIS)
+                    f.delete();
+                else if (name.endsWith(ENTRY_SUFFIX)) {
+                    lastModified[nEntries] = f.lastModified();
+                    files[nEntries++] = f;
+                    totalBytes += f.length();
+                }
+            }
+            if (totalBytes <= maxBytes)
+                return;
+            final File[] entries = Arrays.copyOf(files, nEntries);
+            final long[] entriesLastModified = Arrays.copyOf(lastModified, nEntries);
+            final Integer[] order = new Integer[nEntries];
+            for (int i = 0; i < nEntries; ++i)
+                order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(entriesLastModified[a], entriesLastModified[b]);
+                }
+            });
+            int nEvicted = 0;
+            for (int i = 0; i < nEntries && totalBytes > maxBytes; ++i) {
+                final File entry = entries[order[i]];
+                final long length = entry.length();
+                if (entry.delete()) {
+                    totalBytes -= length;
+                    ++nEvicted;
+                }
+            }
+            out.printf(IOutput.Level.VERBOSE, "Evicted %d cache entries, %d bytes left in %s\n",
+                       nEvicted, totalBytes, dir);
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(dir, key + ENTRY_SUFFIX);
+    }
+
+    static byte[] sha256(File file) throws IOException {
+        final MessageDigest md = sha256();
+        try (InputStream in = new FileInputStream(file)) {
+            final byte[] buf = new byte[64 * 1024];
+            int nRead;
+            while ((nRead = in.read(buf)) != -1)
+                md.update(buf, 0, nRead);
+        }
+        return md.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,189 @@
+package it.saonzo.andinst;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the data of the new entries of an APK at a given level, or leaves it to be STORED.
+ * A large entry is deflated pigz-style: it is split into blocks deflated independently on the pool, each one
+ * primed with the last 32 KB of the previous one as dictionary and ended with a sync flush, but the last one,
+ * so that their concatenation is a single raw deflate stream. The dictionary keeps the ratio close to that of
+ * a single-threaded deflate; the flushes cost a few bytes per block.
+ * Whole entries can also be compressed ahead on the pool with {@link #submit(byte[])} and written in entry order
+ * when their turn comes.
+ */
+class EntryCompressor {
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int BLOCKS_PER_TASK = 2;
+    /**
+     * Entries smaller than this are deflated in one piece on the calling thread.
+     */
+    private static final int MIN_PARALLEL_SIZE = 2 * BLOCK_SIZE;
+
+    /**
+     * The data of an entry as it goes into the archive.
+     */
+    static class Compressed {
+        final byte[] data;
+        final boolean stored;
+        final int crc;
+        final int size;
+
+        private Compressed(byte[] data, boolean stored, int crc, int size) {
+            this.data = data;
+            this.stored = stored;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int level;
+    private final Metrics metrics;
+
+    /**
+     * @param pool    deflates the blocks of the large entries, null to deflate every entry on the calling thread
+     * @param level   a Deflater level, Deflater.NO_COMPRESSION for STORED entries
+     * @param metrics receives the CPU time of the compression
+     */
+    public EntryCompressor(ForkJoinPool pool, int level, Metrics metrics) {
+        this.pool = pool;
+        this.level = level;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Compresses data on the pool, while the caller goes on writing the entries before it.
+     */
+    public Future<Compressed> submit(final byte[] data) {
+        final Callable<Compressed> compression = new Callable<Compressed>() {
+            @Override
+            public Compressed call() {
+                return compress(data);
+            }
+        };
+        if (pool == null) {
+            final FutureTask<Compressed> task = new FutureTask<>(compression);
+            task.run();
+            return task;
+        }
+        return pool.submit(compression);
+    }
+
+    public Compressed compress(byte[] data) {
+        if (level == Deflater.NO_COMPRESSION) {
+            final long cpuStart = Metrics.currentThreadCpuTime();
+            final int crc = crc32(data);
+            metrics.addCpuTime(Metrics.Phase.COMPRESS, Metrics.currentThreadCpuTime() - cpuStart);
+            return new Compressed(data, true, crc, data.length);
+        }
+        if (pool == null || data.length < MIN_PARALLEL_SIZE) {
+            final long cpuStart = Metrics.currentThreadCpuTime();
+            final byte[] deflated = deflateBlock(data, 0, data.length, level, true);
+            final int crc = crc32(data);
+            metrics.addCpuTime(Metrics.Phase.COMPRESS, Metrics.currentThreadCpuTime() - cpuStart);
+            return new Compressed(deflated, false, crc, data.length);
+        }
+        final int nBlocks = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final byte[][] blocks = new byte[nBlocks][];
+        final DeflateBlocksTask task = new DeflateBlocksTask(data, blocks, 0, nBlocks);
+        if (ForkJoinTask.inForkJoinPool())
+            task.fork();
+        else
+            pool.execute(task);
+        // the CRC is computed while the blocks are being deflated
+        final long cpuStart = Metrics.currentThreadCpuTime();
+        final int crc = crc32(data);
+        metrics.addCpuTime(Metrics.Phase.COMPRESS, Metrics.currentThreadCpuTime() - cpuStart);
+        task.join();
+        int size = 0;
+        for (byte[] block : blocks)
+            size += block.length;
+        final byte[] deflated = new byte[size];
+        int offset = 0;
+        for (byte[] block : blocks) {
+            System.arraycopy(block, 0, deflated, offset, block.length);
+            offset += block.length;
+        }
+        return new Compressed(deflated, false, crc, data.length);
+    }
+
+    @SuppressWarnings("serial")
+    private class DeflateBlocksTask extends RecursiveAction {
+        private final byte[] data;
+        private final byte[][] blocks;
+        private final int from;
+        private final int to;
+
+        DeflateBlocksTask(byte[] data, byte[][] blocks, int from, int to) {
+            this.data = data;
+            this.blocks = blocks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BLOCKS_PER_TASK) {
+                final long cpuStart = Metrics.currentThreadCpuTime();
+                for (int i = from; i < to; ++i) {
+                    final int offset = i * BLOCK_SIZE;
+                    final int length = Math.min(BLOCK_SIZE, data.length - offset);
+                    blocks[i] = deflateBlock(data, offset, length, level, i == blocks.length - 1);
+                }
+                metrics.addCpuTime(Metrics.Phase.COMPRESS, Metrics.currentThreadCpuTime() - cpuStart);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new DeflateBlocksTask(data, blocks, from, middle),
+                      new DeflateBlocksTask(data, blocks, middle, to));
+        }
+    }
+
+    /**
+     * Deflates data[offset, offset + length) as raw deflate, with the 32 KB before it as dictionary.
+     *
+     * @param last if true, the stream is finished, otherwise it is sync-flushed so that the next block can follow
+     */
+    private static byte[] deflateBlock(byte[] data, int offset, int length, int level, boolean last) {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            final int dictionarySize = Math.min(DICTIONARY_SIZE, offset);
+            if (dictionarySize > 0)
+                deflater.setDictionary(data, offset - dictionarySize, dictionarySize);
+            deflater.setInput(data, offset, length);
+            final ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+            final byte[] buf = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    final int n = deflater.deflate(buf);
+                    result.write(buf, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    result.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int crc32(byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+}
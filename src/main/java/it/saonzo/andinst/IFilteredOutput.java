@@ -0,0 +1,12 @@
+package it.saonzo.andinst;
+
+/**
+ * An IOutput that tells which levels it discards, so that hot paths can skip building the arguments of messages
+ * nobody reads. Use {@link OutputUtils#isEnabled(IOutput, Level)} to ask any IOutput.
+ */
+public interface IFilteredOutput extends IOutput {
+    /**
+     * @return false if messages of level l are discarded
+     */
+    boolean isEnabled(Level l);
+}
@@ -0,0 +1,56 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.reference.MethodReference;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The instrumentation classes and the redirections parsed from a definitions APK.
+ * Immutable once loaded, so a single instance can be shared by every APK instrumented in the same JVM.
+ */
+final class InstrDefinitions {
+    private final Set<ClassDef> classesWithInstrMeths;
+    private final Map<MethodReference, MethodReference> redirections;
+    private final byte[] digest;
+
+    InstrDefinitions(Set<ClassDef> classesWithInstrMeths, Map<MethodReference, MethodReference> redirections,
+                     byte[] digest) {
+        this.classesWithInstrMeths = Collections.unmodifiableSet(classesWithInstrMeths);
+        this.redirections = Collections.unmodifiableMap(redirections);
+        this.digest = digest;
+    }
+
+    /**
+     * @param dexFileName a definitions APK or dex, or an index compiled from one by {@link DefinitionsIndex}
+     */
+    public static InstrDefinitions load(IOutput out, String dexFileName) throws IOException {
+        if (DefinitionsIndex.isIndex(new File(dexFileName))) {
+            out.printf(IOutput.Level.VERBOSE, "Loading the definitions index %s\n", dexFileName);
+            return DefinitionsIndex.load(new File(dexFileName));
+        }
+        final Set<ClassDef> classesWithInstrMeths = new LinkedHashSet<>();
+        final Map<MethodReference, MethodReference> redirections = new HashMap<>();
+        new InstrMethodsLoader(out).load(dexFileName, classesWithInstrMeths, redirections);
+        if (classesWithInstrMeths.isEmpty() || redirections.isEmpty())
+            throw new IOException("There where problems parsing the APK with instrument definitions " + dexFileName);
+        return new InstrDefinitions(classesWithInstrMeths, redirections, DexCache.sha256(new File(dexFileName)));
+    }
+
+    public Set<ClassDef> getClassesWithInstrMeths() {
+        return classesWithInstrMeths;
+    }
+
+    public Map<MethodReference, MethodReference> getRedirections() {
+        return redirections;
+    }
+
+    /**
+     * @return the SHA-256 of the definitions file, which identifies these definitions in the {@link DexCache}
+     */
+    public byte[] getDigest() {
+        return digest.clone();
+    }
+}
@@ -0,0 +1,191 @@
+package it.saonzo.andinst;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+/**
+ * Library entry point, to instrument APKs and dex files held in memory from another JVM program.
+ * The definitions are loaded once, when the instrumenter is built; then every call instruments one input and
+ * returns the result in memory, without temporary files. An instrumenter is thread-safe: concurrent calls share
+ * its pool. Close it to stop the pool.
+ * <p>
+ * Errors are thrown as IOException (bad input, no room for the instrumentation classes) or
+ * GeneralSecurityException (signing); nothing is printed unless an output is given.
+ */
+public final class Instrumenter implements Closeable {
+    private static final IOutput SILENT = new IFilteredOutput() {
+        @Override
+        public void printf(Level l, String format, Object... args) {
+        }
+
+        @Override
+        public boolean isEnabled(Level l) {
+            return false;
+        }
+    };
+
+    /**
+     * An instrumented APK or dex and the statistics of its instrumentation.
+     */
+    public static final class Result {
+        private final byte[] output;
+        private final int nInstrumented;
+        private final Metrics metrics;
+
+        Result(byte[] output, int nInstrumented, Metrics metrics) {
+            this.output = output;
+            this.nInstrumented = nInstrumented;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return the instrumented APK, signed, or the instrumented dex
+         */
+        public byte[] getOutput() {
+            return output;
+        }
+
+        /**
+         * @return the number of instrumented invocations
+         */
+        public int getInstrumentedInvocations() {
+            return nInstrumented;
+        }
+
+        /**
+         * @return the counters of the instrumentation (dex_files, invokes_redirected, ...) by name
+         */
+        public Map<String, Long> getCounters() {
+            final Map<String, Long> counters = new LinkedHashMap<>();
+            for (Metrics.Counter counter : Metrics.Counter.values())
+                counters.put(counter.name().toLowerCase(Locale.ROOT), metrics.get(counter));
+            return Collections.unmodifiableMap(counters);
+        }
+
+        /**
+         * @return the times of every phase, the counters and the invocations redirected to every instrumentation
+         * method, as the JSON object of a --report
+         */
+        public String toJson() {
+            final StringBuilder sb = new StringBuilder("{\"invocationsInstrumented\":").append(nInstrumented)
+                    .append(',');
+            metrics.appendJson(sb);
+            return sb.append('}').toString();
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final ApkInstrumenter instrumenter;
+
+    /**
+     * An instrumenter that signs with the test key, v1 only, compresses at the default level and uses as many
+     * threads as processors.
+     *
+     * @param definitionsFileName a definitions APK or dex, or an index compiled from one with --write-index
+     */
+    public Instrumenter(String definitionsFileName) throws IOException, GeneralSecurityException {
+        this(null, definitionsFileName, Runtime.getRuntime().availableProcessors(), null, false,
+             Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param out                 receives the messages of the instrumentation, null to discard them
+     * @param definitionsFileName a definitions APK or dex, or an index compiled from one with --write-index
+     * @param nThreads            threads rewriting, compressing and signing
+     * @param key                 the signing key, with an X.509 certificate; null for the test key
+     * @param v2                  if true, sign with APK Signature Scheme v2 too
+     * @param compressionLevel    the Deflater level of the rewritten dex files, Deflater.NO_COMPRESSION to store them
+     */
+    public Instrumenter(IOutput out, String definitionsFileName, int nThreads, KeyStore.PrivateKeyEntry key,
+                        boolean v2, int compressionLevel) throws IOException, GeneralSecurityException {
+        if (out == null)
+            out = SILENT;
+        final ApkSigner signer;
+        if (key == null)
+            signer = ApkSigner.withTestKey(v2, false);
+        else if (key.getCertificate() instanceof X509Certificate)
+            signer = new ApkSigner((X509Certificate) key.getCertificate(), key.getPrivateKey(), v2, false);
+        else
+            throw new GeneralSecurityException("The signing key has no X.509 certificate");
+        final InstrDefinitions definitions = InstrDefinitions.load(out, definitionsFileName);
+        pool = new ForkJoinPool(nThreads);
+        instrumenter = new ApkInstrumenter(out, definitions, pool, signer, false, null, false, compressionLevel,
+                                           false, null);
+    }
+
+    public Result instrumentApk(byte[] apk) throws IOException, GeneralSecurityException {
+        return instrumentApk(ByteBuffer.wrap(apk));
+    }
+
+    /**
+     * @param apk the APK, from its position to its limit
+     */
+    public Result instrumentApk(ByteBuffer apk) throws IOException, GeneralSecurityException {
+        return instrumenter.instrument(apk.slice(), new Metrics());
+    }
+
+    /**
+     * @param apk the APK, read whole from offset 0 without moving the position of the channel
+     */
+    public Result instrumentApk(SeekableByteChannel apk) throws IOException, GeneralSecurityException {
+        return instrumentApk(readFully(apk));
+    }
+
+    public Result instrumentDex(byte[] dex) throws IOException {
+        return instrumentDex(ByteBuffer.wrap(dex));
+    }
+
+    /**
+     * @param dex the dex, from its position to its limit
+     */
+    public Result instrumentDex(ByteBuffer dex) throws IOException {
+        return instrumenter.instrumentDex(dex.slice(), new Metrics());
+    }
+
+    /**
+     * @param dex the dex, read whole from offset 0 without moving the position of the channel
+     */
+    public Result instrumentDex(SeekableByteChannel dex) throws IOException {
+        return instrumentDex(readFully(dex));
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * A file channel is mapped, any other channel read on the heap.
+     */
+    private static ByteBuffer readFully(SeekableByteChannel channel) throws IOException {
+        final long size = channel.size();
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Input larger than 2 GB");
+        if (channel instanceof FileChannel)
+            return ((FileChannel) channel).map(FileChannel.MapMode.READ_ONLY, 0, size);
+        final ByteBuffer buf = ByteBuffer.allocate((int) size);
+        final long position = channel.position();
+        try {
+            channel.position(0);
+            while (buf.hasRemaining())
+                if (channel.read(buf) < 0)
+                    throw new IOException("Unexpected end of input");
+        } finally {
+            channel.position(position);
+        }
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,229 @@
+package it.saonzo.andinst;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.*;
+
+/**
+ * Long-running instrumenter: it loads the definitions once, keeps the JIT warm across jobs and takes jobs from
+ * a TCP socket bound to the loopback interface, so each APK costs neither a JVM start nor a cold run.
+ * <p>
+ * The protocol is one line per connection. The client sends
+ * {@code JOB <TAB> token <TAB> input <TAB> output [<TAB> report]} with absolute paths; the daemon instruments the
+ * APK, writing its JSON report if asked, and answers {@code OK <TAB> invocations <TAB> millis} or
+ * {@code FAILED <TAB> millis <TAB> error}. At most nJobs jobs run at the same time and at most
+ * {@link #MAX_QUEUED_JOBS} wait their turn; the jobs beyond are refused.
+ * <p>
+ * Any local user can connect to a loopback port, so the daemon draws a random token at start and writes it to a
+ * file only its owner can read: a client that cannot read the file cannot submit jobs. The output is written to a
+ * temporary file next to it and renamed once complete, so a failed job deletes nothing but what it created.
+ */
+class InstrumenterDaemon {
+    private static final String JOB = "JOB";
+    private static final String OK = "OK";
+    private static final String FAILED = "FAILED";
+    private static final String SEPARATOR = "\t";
+    static final int MAX_QUEUED_JOBS = 64;
+    private static final int MAX_REQUEST_BYTES = 64 * 1024;
+    private static final int REQUEST_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int TOKEN_BYTES = 32;
+
+    private final IOutput out;
+    private final ApkInstrumenter instrumenter;
+    private final int nJobs;
+    private final File tokenFile;
+    private byte[] token;
+
+    /**
+     * @param tokenFile where the token of the clients is written, see {@link #defaultTokenFile(int)}
+     */
+    public InstrumenterDaemon(IOutput out, ApkInstrumenter instrumenter, int nJobs, File tokenFile) {
+        this.out = out;
+        this.instrumenter = instrumenter;
+        this.nJobs = nJobs;
+        this.tokenFile = tokenFile;
+    }
+
+    /**
+     * @return the token file of the daemon on the port, in the home directory of the user
+     */
+    public static File defaultTokenFile(int port) {
+        return new File(new File(System.getProperty("user.home"), ".andinst"), "daemon-" + port + ".token");
+    }
+
+    /**
+     * Serves jobs until the process is killed.
+     */
+    public void serve(int port) throws IOException {
+        final ThreadPoolExecutor workers = new ThreadPoolExecutor(nJobs, nJobs, 0, TimeUnit.MILLISECONDS,
+                                                                  new ArrayBlockingQueue<Runnable>(MAX_QUEUED_JOBS));
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            token = writeToken(tokenFile);
+            out.printf(IOutput.Level.NORMAL, "Waiting for jobs on %s, %d at a time, token in %s\n",
+                       server.getLocalSocketAddress(), nJobs, tokenFile);
+            while (true) {
+                final Socket client = server.accept();
+                try {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            handle(client);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    refuse(client);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes a new random token to a file readable only by its owner, on file systems that have POSIX permissions.
+     */
+    private static byte[] writeToken(File file) throws IOException {
+        final byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        final StringBuilder hex = new StringBuilder(2 * TOKEN_BYTES);
+        for (byte b : random)
+            hex.append(String.format("%02x", b & 0xff));
+        final byte[] token = hex.toString().getBytes(StandardCharsets.US_ASCII);
+
+        final Path path = file.toPath().toAbsolutePath();
+        final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (posix)
+            Files.createDirectories(path.getParent(),
+                                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        else
+            Files.createDirectories(path.getParent());
+        // a new file, so that no one else can hold it open from a previous run
+        Files.deleteIfExists(path);
+        if (posix)
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        else
+            Files.createFile(path);
+        Files.write(path, token);
+        file.deleteOnExit();
+        return token;
+    }
+
+    private void refuse(Socket client) {
+        try (Socket socket = client;
+             Writer reply = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            reply.write(FAILED + SEPARATOR + 0 + SEPARATOR + "Too many jobs waiting, try again later\n");
+        } catch (IOException e) {
+            out.printf(IOutput.Level.ERROR, "Lost connection with a client: %s\n", e);
+        }
+        out.printf(IOutput.Level.NORMAL, "Refused a job: %d jobs are waiting already\n", MAX_QUEUED_JOBS);
+    }
+
+    private void handle(Socket client) {
+        try (Socket socket = client;
+             Writer reply = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            final String request = readRequest(socket.getInputStream());
+            reply.write(run(request) + "\n");
+        } catch (IOException e) {
+            out.printf(IOutput.Level.ERROR, "Lost connection with a client: %s\n", e);
+        }
+    }
+
+    /**
+     * Reads the line of the request, at most {@link #MAX_REQUEST_BYTES} long.
+     *
+     * @return the request without its line terminator, null if the client sent nothing
+     */
+    private static String readRequest(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() == MAX_REQUEST_BYTES)
+                throw new IOException("Request longer than " + MAX_REQUEST_BYTES + " bytes");
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0)
+            return null;
+        final String request = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return request.endsWith("\r") ? request.substring(0, request.length() - 1) : request;
+    }
+
+    private String run(String request) {
+        final String[] fields = request == null ? new String[0] : request.split(SEPARATOR, -1);
+        if (fields.length < 4 || fields.length > 5 || !fields[0].equals(JOB))
+            return FAILED + SEPARATOR + 0 + SEPARATOR + "Bad request: " + request;
+        if (!MessageDigest.isEqual(token, fields[1].getBytes(StandardCharsets.US_ASCII))) {
+            out.printf(IOutput.Level.ERROR, "Refused a job with a wrong token\n");
+            return FAILED + SEPARATOR + 0 + SEPARATOR + "Wrong token";
+        }
+        final File input = new File(fields[2]);
+        final File output = new File(fields[3]).getAbsoluteFile();
+        final long start = System.nanoTime();
+        out.printf(IOutput.Level.NORMAL, "Instrumenting %s\n", input);
+        final Metrics metrics = new Metrics();
+        File partial = null;
+        try {
+            partial = File.createTempFile(output.getName(), ".part", output.getParentFile());
+            final int nInstrumented = instrumenter.instrument(input, partial, metrics);
+            Files.move(partial.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            partial = null;
+            if (fields.length == 5)
+                MetricsReport.writeSingle(new File(fields[4]), input, output, nInstrumented, metrics);
+            final long millis = elapsedMillis(start);
+            out.printf(IOutput.Level.NORMAL, "Instrumented %s in %d ms\n", input, millis);
+            return OK + SEPARATOR + nInstrumented + SEPARATOR + millis;
+        } catch (Exception | LinkageError e) {
+            out.printf(IOutput.Level.ERROR, "Failed to instrument %s: %s\n", input, e.toString());
+            if (partial != null)
+                partial.delete();
+            return FAILED + SEPARATOR + elapsedMillis(start) + SEPARATOR + e.toString().replace('\n', ' ');
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Submits a job to the daemon listening on the loopback port and waits for its end.
+     *
+     * @param tokenFile the token file written by the daemon
+     * @param report    where the daemon writes the JSON report of the job, null for none
+     * @return true if the APK was instrumented
+     */
+    public static boolean submit(IOutput out, int port, File tokenFile, File input, File output, File report)
+            throws IOException {
+        final String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+        String request = JOB + SEPARATOR + token + SEPARATOR + input.getAbsolutePath() + SEPARATOR
+                         + output.getAbsolutePath();
+        if (report != null)
+            request += SEPARATOR + report.getAbsolutePath();
+        final String reply;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+             BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            writer.write(request + "\n");
+            writer.flush();
+            reply = reader.readLine();
+        }
+        if (reply == null)
+            throw new IOException("The daemon on port " + port + " closed the connection without replying");
+        final String[] fields = reply.split(SEPARATOR, 3);
+        if (fields[0].equals(OK) && fields.length == 3) {
+            out.printf(IOutput.Level.NORMAL, "Instrumented %s invocation(s) in %s ms\n", fields[1], fields[2]);
+            return true;
+        }
+        out.printf(IOutput.Level.ERROR, "Failed to instrument %s: %s\n", input,
+                   fields.length == 3 ? fields[2] : reply);
+        return false;
+    }
+}
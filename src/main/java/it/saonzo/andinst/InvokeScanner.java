@@ -0,0 +1,245 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.iface.reference.MethodReference;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Finds, on the raw bytes of a dex, which redirected methods it references and which classes invoke them,
+ * without decoding the code through dexlib2.
+ */
+class InvokeScanner {
+    static final int INVOKE_VIRTUAL = 0x6e;
+    static final int INVOKE_DIRECT = 0x70;
+    static final int INVOKE_STATIC = 0x71;
+
+    private static final int PACKED_SWITCH_PAYLOAD = 0x0100;
+    private static final int SPARSE_SWITCH_PAYLOAD = 0x0200;
+    private static final int FILL_ARRAY_DATA_PAYLOAD = 0x0300;
+
+    /**
+     * Size in code units of every instruction, by opcode. Unused opcodes count as one unit.
+     */
+    private static final byte[] CODE_UNITS = new byte[256];
+
+    static {
+        Arrays.fill(CODE_UNITS, (byte) 1);
+        setCodeUnits(2, 0x02, 0x05, 0x08, 0x13, 0x15, 0x16, 0x19, 0x1a, 0x1c, 0x1f, 0x20, 0x22, 0x23, 0x29);
+        setCodeUnits(3, 0x03, 0x06, 0x09, 0x14, 0x17, 0x1b, 0x24, 0x25, 0x26, 0x2a, 0x2b, 0x2c);
+        CODE_UNITS[0x18] = 5; // const-wide
+        setCodeUnitsRange(2, 0x2d, 0x3d); // cmp*, if-*
+        setCodeUnitsRange(2, 0x44, 0x6d); // aget/aput, iget/iput, sget/sput
+        setCodeUnitsRange(3, 0x6e, 0x72); // invoke-*
+        setCodeUnitsRange(3, 0x74, 0x78); // invoke-*/range
+        setCodeUnitsRange(2, 0x90, 0xaf); // binop
+        setCodeUnitsRange(2, 0xd0, 0xe2); // binop/lit16, binop/lit8
+        setCodeUnits(4, 0xfa, 0xfb); // invoke-polymorphic
+        setCodeUnits(3, 0xfc, 0xfd); // invoke-custom
+        setCodeUnits(2, 0xfe, 0xff); // const-method-handle, const-method-type
+    }
+
+    private static void setCodeUnits(int size, int... opcodes) {
+        for (int opcode : opcodes)
+            CODE_UNITS[opcode] = (byte) size;
+    }
+
+    private static void setCodeUnitsRange(int size, int first, int last) {
+        for (int opcode = first; opcode <= last; ++opcode)
+            CODE_UNITS[opcode] = (byte) size;
+    }
+
+    /**
+     * @return the size in code units of the instruction starting at code unit pc of a code_item
+     */
+    static int instructionSize(RawDex dex, int codeOffset, int pc) {
+        final int unit = dex.getCodeUnit(codeOffset, pc);
+        switch (unit) {
+            case PACKED_SWITCH_PAYLOAD:
+                return dex.getCodeUnit(codeOffset, pc + 1) * 2 + 4;
+            case SPARSE_SWITCH_PAYLOAD:
+                return dex.getCodeUnit(codeOffset, pc + 1) * 4 + 2;
+            case FILL_ARRAY_DATA_PAYLOAD:
+                final int width = dex.getCodeUnit(codeOffset, pc + 1);
+                final long size = dex.getCodeUnit(codeOffset, pc + 2) | (long) dex.getCodeUnit(codeOffset, pc + 3) << 16;
+                return (int) ((size * width + 1) / 2 + 4);
+            default:
+                return CODE_UNITS[unit & 0xFF];
+        }
+    }
+
+    static boolean isRewritableInvoke(int opcode) {
+        return opcode == INVOKE_VIRTUAL || opcode == INVOKE_STATIC || opcode == INVOKE_DIRECT;
+    }
+
+    /**
+     * Resolves the redirections against the method_ids of the dex, once per dex, so that the invoke
+     * instructions can be matched by method index instead of comparing method references.
+     *
+     * @return the redirection target of every method_id of the dex, null for the methods not redirected
+     */
+    public static MethodReference[] resolveRedirections(RawDex dex, Map<MethodReference, MethodReference> redirections)
+            throws IOException {
+        return resolveRedirections(dex, redirections, null);
+    }
+
+    /**
+     * @param hierarchy if not null, also redirect the methods inherited from a redirected method by a subtype of
+     *                  its class, resolved through the hierarchy
+     */
+    public static MethodReference[] resolveRedirections(RawDex dex, Map<MethodReference, MethodReference> redirections,
+                                                        ClassHierarchy hierarchy) throws IOException {
+        final Set<String> names = new HashSet<>();
+        for (MethodReference r : redirections.keySet())
+            names.add(r.getName());
+        final MethodReference[] targets = new MethodReference[dex.methodIdsSize];
+        for (int m = 0; m < dex.methodIdsSize; ++m) {
+            if (!names.contains(dex.getString(dex.getMethodNameIndex(m))))
+                continue;
+            final MethodReference method = dex.getMethod(m);
+            targets[m] = hierarchy == null ? redirections.get(method) : hierarchy.resolve(method);
+        }
+        return targets;
+    }
+
+    public static int countResolved(MethodReference[] targets) {
+        int n = 0;
+        for (MethodReference target : targets)
+            if (target != null)
+                ++n;
+        return n;
+    }
+
+    /**
+     * The redirectable invocations of a dex, found by {@link #findHits(RawDex, MethodReference[])}: for every
+     * hit, the method_id of the calling method, the index of the invoke instruction among the instructions of
+     * that method, as dexlib2 lists them, and the method_id it invokes. The hits of a method are contiguous and
+     * in instruction order.
+     */
+    static class Hits {
+        private int[] callers = new int[64];
+        private int[] instructionIndices = new int[64];
+        private int[] invokedMethods = new int[64];
+        private int nHits;
+        private int nInspected;
+        private int nExcluded;
+        private final Map<Integer, Integer> firstHitByCaller = new HashMap<>();
+        private final Set<String> classes = new HashSet<>();
+
+        private void add(int caller, int instructionIndex, int invokedMethod) {
+            if (nHits == callers.length) {
+                callers = Arrays.copyOf(callers, nHits * 2);
+                instructionIndices = Arrays.copyOf(instructionIndices, nHits * 2);
+                invokedMethods = Arrays.copyOf(invokedMethods, nHits * 2);
+            }
+            if (nHits == 0 || callers[nHits - 1] != caller)
+                firstHitByCaller.put(caller, nHits);
+            callers[nHits] = caller;
+            instructionIndices[nHits] = instructionIndex;
+            invokedMethods[nHits] = invokedMethod;
+            ++nHits;
+        }
+
+        int size() {
+            return nHits;
+        }
+
+        /**
+         * @return the number of invoke-virtual/direct/static instructions of the dex
+         */
+        int getInspected() {
+            return nInspected;
+        }
+
+        /**
+         * @return the number of classes skipped by the filter
+         */
+        int getExcluded() {
+            return nExcluded;
+        }
+
+        /**
+         * @return the types of the classes with at least one hit
+         */
+        Set<String> getClasses() {
+            return classes;
+        }
+
+        /**
+         * @return the index of the first hit of a method, -1 if it has none
+         */
+        int firstHit(int caller) {
+            final Integer first = firstHitByCaller.get(caller);
+            return first == null ? -1 : first;
+        }
+
+        /**
+         * @return the index after the last hit of the method whose first hit is first
+         */
+        int endHit(int first) {
+            int end = first;
+            while (end < nHits && callers[end] == callers[first])
+                ++end;
+            return end;
+        }
+
+        /**
+         * @return the method_id of the method making a hit
+         */
+        int caller(int hit) {
+            return callers[hit];
+        }
+
+        int instructionIndex(int hit) {
+            return instructionIndices[hit];
+        }
+
+        int invokedMethod(int hit) {
+            return invokedMethods[hit];
+        }
+    }
+
+    public static Hits findHits(RawDex dex, MethodReference[] targets) throws IOException {
+        return findHits(dex, targets, null);
+    }
+
+    /**
+     * Finds the invoke-virtual/direct/static instructions of a method that has a target. The scan reads the code
+     * units in place and allocates nothing per instruction; only the hits are recorded.
+     *
+     * @param filter the classes to scan, null to scan them all; the others are skipped before reading their code
+     */
+    public static Hits findHits(RawDex dex, MethodReference[] targets, ClassFilter filter) throws IOException {
+        final Hits hits = new Hits();
+        if (countResolved(targets) == 0)
+            return hits;
+        final RawDex.ClassDataReader reader = dex.new ClassDataReader();
+        for (int c = 0; c < dex.classDefsSize; ++c) {
+            if (filter != null && !filter.accepts(dex, c)) {
+                ++hits.nExcluded;
+                continue;
+            }
+            final int nHitsBefore = hits.nHits;
+            reader.reset(c);
+            while (reader.next()) {
+                final int codeOffset = reader.codeOffset();
+                if (codeOffset == 0)
+                    continue;
+                final int insnsSize = dex.getInsnsSize(codeOffset);
+                int instructionIndex = 0;
+                for (int pc = 0; pc < insnsSize; pc += instructionSize(dex, codeOffset, pc), ++instructionIndex) {
+                    final int opcode = dex.getCodeUnit(codeOffset, pc) & 0xFF;
+                    if (!isRewritableInvoke(opcode))
+                        continue;
+                    ++hits.nInspected;
+                    final int methodIndex = dex.getCodeUnit(codeOffset, pc + 1);
+                    if (targets[methodIndex] != null)
+                        hits.add(reader.methodIndex(), instructionIndex, methodIndex);
+                }
+            }
+            if (hits.nHits > nHitsBefore)
+                hits.classes.add(dex.getType(dex.getClassDefTypeIndex(c)));
+        }
+        return hits;
+    }
+}
@@ -1,33 +1,70 @@
 package it.saonzo.andinst;
 
-import kellinwood.security.zipsigner.ZipSigner;
 import org.apache.commons.cli.*;
-import org.jf.dexlib2.iface.ClassDef;
-import org.jf.dexlib2.iface.reference.MethodReference;
 
 import java.io.*;
-import java.util.*;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
 
 public class Main {
+    static final String VERSION = "1.0-SNAPSHOT";
+
     private static final String OPTION_DEFINSTR = "definstr";
     private static final String OPTION_OUTPUT = "output";
     private static final String OPTION_INPUT = "input";
+    private static final String OPTION_BATCH = "batch";
+    private static final String OPTION_THREADS = "threads";
+    private static final String OPTION_JOBS = "jobs";
+    private static final String OPTION_SPOOL = "spool";
+    private static final String OPTION_CACHE = "cache";
+    private static final String OPTION_MAX_CACHE_SIZE = "max-cache-size";
+    private static final String OPTION_REPORT = "report";
+    private static final String OPTION_LEVEL = "level";
+    private static final String OPTION_ACCEPT = "accept";
+    private static final String OPTION_ENQUEUE = "enqueue";
+    private static final String OPTION_WRITE_INDEX = "write-index";
+    private static final String OPTION_FRUGAL = "frugal";
+    private static final String OPTION_KEYSTORE = "keystore";
+    private static final String OPTION_V2 = "v2";
+    private static final String OPTION_USE_INPUT_DIGESTS = "use-input-digests";
+    private static final String OPTION_COMPRESSION_LEVEL = "compression-level";
+    private static final String OPTION_PROBE = "probe";
+    private static final String OPTION_HIERARCHY = "hierarchy";
+    private static final String OPTION_INCLUDE = "include";
+    private static final String OPTION_EXCLUDE = "exclude";
+    private static final String OPTION_SCOPE = "scope";
+    private static final String STORE = "store";
+    private static final String ENV_KEYSTORE_PASSWORD = "ANDINST_KEYSTORE_PASSWORD";
+    private static final String ENV_KEY_PASSWORD = "ANDINST_KEY_PASSWORD";
+    private static final int MAX_PORT = 65535;
+    private static final int DEFAULT_JOBS = 2;
+    private static final int DEFAULT_MAX_CACHE_MB = 1024;
     private static final int BADEXIT = -1;
 
-    private final Map<MethodReference, MethodReference> redirections = new HashMap<>();
-    private final Set<ClassDef> classesWithInstrMeths = new HashSet<>();
-    private final IOutput out = new ConsoleOutput(IOutput.Level.DEBUG);
+    private final AsyncOutput out;
 
     private final CommandLine cmdLine;
     private final String instrDexFileName;
     private final String inApkFilename;
+    private final String batchSource;
     private final String outApkFilename;
+    private final int nThreads;
+    private final int nJobs;
+    private final int maxCacheMB;
+    private final int acceptPort;
+    private final int enqueuePort;
+    private final int compressionLevel;
+    private final ClassFilter classFilter;
 
     private static class BadCommandLineException extends Exception {
+        private static final long serialVersionUID = 1L;
+
         private BadCommandLineException () {
             super();
         }
@@ -41,47 +78,249 @@ public class Main {
         cmdLine = parseCmdLine(args);
         if (cmdLine == null)
             System.exit(-1);
+        out = new AsyncOutput(new ConsoleOutput(parseLevel(cmdLine.getOptionValue(OPTION_LEVEL))));
         inApkFilename = cmdLine.getOptionValue(OPTION_INPUT);
+        batchSource = cmdLine.getOptionValue(OPTION_BATCH);
         outApkFilename = cmdLine.getOptionValue(OPTION_OUTPUT);
         instrDexFileName = cmdLine.getOptionValue(OPTION_DEFINSTR);
+        int threads = 0;
+        int jobs = 0;
+        int cacheMB = 0;
+        int accept = 0;
+        int enqueue = 0;
+        int level = Deflater.DEFAULT_COMPRESSION;
+        ClassFilter filter = null;
         try {
+            accept = parsePort(OPTION_ACCEPT);
+            enqueue = parsePort(OPTION_ENQUEUE);
+            if (enqueue != 0 && inApkFilename == null) {
+                out.printf(IOutput.Level.ERROR, "Only a single input APK can be enqueued to a daemon.");
+                throw new BadCommandLineException();
+            }
+            if (enqueue == 0)
+                requireOption(OPTION_DEFINSTR);
+            if (accept == 0 && !cmdLine.hasOption(OPTION_WRITE_INDEX) && !cmdLine.hasOption(OPTION_PROBE))
+                requireOption(OPTION_OUTPUT);
             checkFileHasApkExtension(inApkFilename);
-            checkFileHasApkExtension(outApkFilename);
-            checkFileHasApkExtension(instrDexFileName);
+            if (batchSource == null)
+                checkFileHasApkExtension(outApkFilename);
+            else if (outApkFilename != null)
+                checkIsDirectory(outApkFilename);
+            if (instrDexFileName == null
+                || !instrDexFileName.toLowerCase(Locale.ROOT).endsWith(DefinitionsIndex.EXTENSION))
+                checkFileHasApkExtension(instrDexFileName);
+            threads = parsePositive(cmdLine.getOptionValue(OPTION_THREADS),
+                                    Runtime.getRuntime().availableProcessors(), "threads");
+            jobs = parsePositive(cmdLine.getOptionValue(OPTION_JOBS), DEFAULT_JOBS, "jobs");
+            cacheMB = parsePositive(cmdLine.getOptionValue(OPTION_MAX_CACHE_SIZE), DEFAULT_MAX_CACHE_MB,
+                                    "megabytes of the cache");
+            level = parseCompressionLevel(cmdLine.getOptionValue(OPTION_COMPRESSION_LEVEL));
+            filter = parseClassFilter();
         } catch (BadCommandLineException e) {
             out.printf(IOutput.Level.ERROR, e.toString());
-            System.exit(BADEXIT);
+            exit(BADEXIT);
         }
+        nThreads = threads;
+        nJobs = jobs;
+        maxCacheMB = cacheMB;
+        acceptPort = accept;
+        enqueuePort = enqueue;
+        compressionLevel = level;
+        classFilter = filter;
 
+        if (enqueuePort != 0) {
+            final boolean success = runClient();
+            out.close();
+            if (!success)
+                System.exit(BADEXIT);
+            return;
+        }
+
+        final Metrics definitionsMetrics = new Metrics();
+        InstrDefinitions definitions = null;
+        final Metrics.Timer loadDefinitionsTimer = definitionsMetrics.time(Metrics.Phase.LOAD_DEFINITIONS);
         try {
-            new InstrMethodsLoader(out).load(instrDexFileName, classesWithInstrMeths, redirections);
+            definitions = InstrDefinitions.load(out, instrDexFileName);
         } catch (IOException e) {
             out.printf(IOutput.Level.ERROR, e.toString());
-            System.exit(BADEXIT);
+            exit(BADEXIT);
+        } finally {
+            loadDefinitionsTimer.stop();
+        }
+        final String indexFileName = cmdLine.getOptionValue(OPTION_WRITE_INDEX);
+        if (indexFileName != null) {
+            try {
+                DefinitionsIndex.write(out, new File(indexFileName), definitions);
+                out.printf(IOutput.Level.NORMAL, "Wrote %d redirection(s) and %d class(es) to %s\n",
+                           definitions.getRedirections().size(), definitions.getClassesWithInstrMeths().size(),
+                           indexFileName);
+            } catch (IOException e) {
+                out.printf(IOutput.Level.ERROR, e.toString());
+                exit(BADEXIT);
+            }
+            out.close();
+            return;
         }
 
-        if (classesWithInstrMeths.isEmpty() || redirections.isEmpty()) {
-            out.printf(IOutput.Level.ERROR, "There where problems parsing the APK with instrument definitions");
+        final String probeReport = cmdLine.getOptionValue(OPTION_PROBE);
+        if (probeReport != null) {
+            if (!runProbe(definitions, new File(probeReport)))
+                exit(BADEXIT);
+            out.close();
             return;
         }
 
-        File tmpApkFile = null;
-        File tmpClassesDex = null;
+        final ForkJoinPool pool = new ForkJoinPool(nThreads);
+        boolean failed = false;
         try {
-            tmpApkFile = File.createTempFile("OutputApk", null);
-            tmpApkFile.deleteOnExit();
-            tmpClassesDex = customizeBytecode();
-            writeApk(tmpClassesDex, tmpApkFile);
-            signApk(tmpApkFile);
+            final boolean spoolToDisk = cmdLine.hasOption(OPTION_SPOOL);
+            final ApkSigner signer = loadSigner();
+            final boolean matchHierarchy = cmdLine.hasOption(OPTION_HIERARCHY);
+            String cacheDir = cmdLine.getOptionValue(OPTION_CACHE);
+            if (cacheDir != null && matchHierarchy) {
+                out.printf(IOutput.Level.NORMAL, "The cache is not used when matching through the class hierarchy\n");
+                cacheDir = null;
+            }
+            final DexCache cache = cacheDir == null ? null : new DexCache(out, new File(cacheDir),
+                                                                          maxCacheMB * 1024L * 1024L,
+                                                                          definitions.getDigest(), classFilter);
+            final boolean lowMemory = cmdLine.hasOption(OPTION_FRUGAL);
+            final ApkInstrumenter instrumenter = new ApkInstrumenter(out, definitions, pool, signer, spoolToDisk,
+                                                                     cache, lowMemory, compressionLevel,
+                                                                     matchHierarchy, classFilter);
+            if (acceptPort != 0)
+                new InstrumenterDaemon(out, instrumenter, nJobs, InstrumenterDaemon.defaultTokenFile(acceptPort))
+                        .serve(acceptPort);
+            else if (batchSource == null)
+                runSingle(instrumenter, definitionsMetrics);
+            else if (!runBatch(instrumenter, definitionsMetrics))
+                exit(BADEXIT);
+            out.printf(lowMemory ? IOutput.Level.NORMAL : IOutput.Level.VERBOSE, "Peak heap usage: %d MB\n",
+                       Metrics.peakHeapBytes() / (1024 * 1024));
         } catch (Exception e) {
             out.printf(IOutput.Level.ERROR, "%s", e.toString());
+            failed = true;
         } finally {
-            if (tmpApkFile != null)
-                tmpApkFile.delete();
-            if (tmpClassesDex != null)
-                tmpClassesDex.delete();
+            pool.shutdown();
+            out.close();
+        }
+        if (failed)
+            System.exit(BADEXIT);
+
+    }
+
+    /**
+     * The key of the keystore given on the command line, whose passwords are taken from the environment or
+     * asked on the console, or the test key if no keystore is given.
+     */
+    private ApkSigner loadSigner() throws IOException, GeneralSecurityException {
+        final boolean v2 = cmdLine.hasOption(OPTION_V2);
+        final boolean reuseInputDigests = cmdLine.hasOption(OPTION_USE_INPUT_DIGESTS);
+        final String[] keyStore = cmdLine.getOptionValues(OPTION_KEYSTORE);
+        if (keyStore == null)
+            return ApkSigner.withTestKey(v2, reuseInputDigests);
+        final File keyStoreFile = new File(keyStore[0]);
+        final String alias = keyStore.length > 1 ? keyStore[1] : null;
+        final char[] storePassword = readPassword(ENV_KEYSTORE_PASSWORD, "Password of " + keyStoreFile);
+        final String keyPassword = System.getenv(ENV_KEY_PASSWORD);
+        final ApkSigner signer = ApkSigner.fromKeyStore(keyStoreFile, storePassword, alias,
+                                                        keyPassword == null ? null : keyPassword.toCharArray(), v2,
+                                                        reuseInputDigests);
+        Arrays.fill(storePassword, '\0');
+        return signer;
+    }
+
+    private static char[] readPassword(String variable, String prompt) throws IOException {
+        final String password = System.getenv(variable);
+        if (password != null)
+            return password.toCharArray();
+        final Console console = System.console();
+        if (console == null)
+            throw new IOException(prompt + " not found in " + variable + " and no console to ask it");
+        final char[] typed = console.readPassword("%s: ", prompt);
+        if (typed == null)
+            throw new IOException(prompt + " not given");
+        return typed;
+    }
+
+    /**
+     * Prints the pending messages before exiting.
+     */
+    private void exit(int status) {
+        out.close();
+        System.exit(status);
+    }
+
+    private static IOutput.Level parseLevel(String value) {
+        if (value == null)
+            return IOutput.Level.NORMAL;
+        try {
+            return IOutput.Level.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.printf("The level must be one of %s, not '%s'.\n", Arrays.toString(IOutput.Level.values()), value);
+            System.exit(BADEXIT);
+            return null;
+        }
+    }
+
+    private boolean runClient() {
+        final String report = cmdLine.getOptionValue(OPTION_REPORT);
+        try {
+            return InstrumenterDaemon.submit(out, enqueuePort, InstrumenterDaemon.defaultTokenFile(enqueuePort),
+                                             new File(inApkFilename), new File(outApkFilename),
+                                             report == null ? null : new File(report));
+        } catch (IOException e) {
+            out.printf(IOutput.Level.ERROR, "Cannot submit the job to the daemon on port %d: %s\n", enqueuePort, e);
+            return false;
         }
+    }
+
+    private void runSingle(ApkInstrumenter instrumenter, Metrics metrics) throws Exception {
+        final File input = new File(inApkFilename);
+        final File output = new File(outApkFilename);
+        final int nInstrumented = instrumenter.instrument(input, output, metrics);
+        final String report = cmdLine.getOptionValue(OPTION_REPORT);
+        if (report != null)
+            MetricsReport.writeSingle(new File(report), input, output, nInstrumented, metrics);
+    }
 
+    private boolean runBatch(ApkInstrumenter instrumenter, Metrics definitionsMetrics)
+            throws IOException, InterruptedException {
+        final List<File> inputs = BatchInstrumenter.listInputs(new File(batchSource));
+        out.printf(IOutput.Level.VERBOSE, "Instrumenting %d APK(s) listed in %s\n", inputs.size(), batchSource);
+        final BatchInstrumenter batch = new BatchInstrumenter(out, instrumenter, nJobs);
+        final String report = cmdLine.getOptionValue(OPTION_REPORT);
+        try (MetricsReport.BatchWriter writer =
+                     report == null ? null : new MetricsReport.BatchWriter(new File(report), definitionsMetrics)) {
+            return batch.run(inputs, new File(outApkFilename), writer) == 0;
+        }
+    }
+
+    /**
+     * Analyzes the input APK, or the APKs of the batch, without instrumenting them.
+     *
+     * @return false if an APK could not be analyzed
+     */
+    private boolean runProbe(InstrDefinitions definitions, File report) {
+        final ForkJoinPool pool = new ForkJoinPool(nThreads);
+        try {
+            final List<File> inputs = batchSource == null ? Collections.singletonList(new File(inApkFilename))
+                                                          : BatchInstrumenter.listInputs(new File(batchSource));
+            out.printf(IOutput.Level.VERBOSE, "Analyzing %d APK(s)\n", inputs.size());
+            final ApkAnalyzer analyzer = new ApkAnalyzer(out, definitions, pool, cmdLine.hasOption(OPTION_HIERARCHY),
+                                                         classFilter);
+            final List<ApkAnalyzer.Result> results = analyzer.analyzeAll(inputs, nJobs);
+            MetricsReport.writeAnalysis(report, results);
+            for (ApkAnalyzer.Result r : results)
+                if (!r.isSuccess())
+                    return false;
+            return true;
+        } catch (IOException | InterruptedException e) {
+            out.printf(IOutput.Level.ERROR, "%s", e.toString());
+            return false;
+        } finally {
+            pool.shutdown();
+        }
     }
 
     private void checkFileHasApkExtension(String filePath) throws BadCommandLineException {
@@ -99,49 +338,94 @@ public class Main {
         }
     }
 
-    private void signApk(File tmpApkFile) throws Exception {
-        ZipSigner zipSigner = new ZipSigner();
-        zipSigner.setKeymode("auto-testkey");
-        String inputFilename = tmpApkFile.getCanonicalPath();
-        out.printf(IOutput.Level.VERBOSE, "Signing %s into %s\n", inputFilename, outApkFilename);
-        zipSigner.signZip(inputFilename, outApkFilename);
-    }
-
-    private void writeApk(File tmpClassesDex, File outApkFile) throws IOException {
-        out.printf(IOutput.Level.VERBOSE, "Writing APK %s\n", outApkFile);
-        JarFile inputJar = new JarFile(inApkFilename);
-        try(ZipOutputStream outputJar = new ZipOutputStream(new FileOutputStream(outApkFile))) {
-            Enumeration<JarEntry> entries = inputJar.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
-                final String name = entry.getName();
-                outputJar.putNextEntry(new ZipEntry(name));
-                if (name.equalsIgnoreCase("classes.dex"))
-                    try (final FileInputStream newClasses = new FileInputStream(tmpClassesDex)) {
-                        StreamUtils.copy(newClasses, outputJar);
-                    }
-                else
-                    try (final InputStream entryInputStream = inputJar.getInputStream(entry)) {
-                        StreamUtils.copy(entryInputStream, outputJar);
-                    }
-                outputJar.closeEntry();
+    private void checkIsDirectory(String dirPath) throws BadCommandLineException {
+        if (!new File(dirPath).isDirectory()) {
+            out.printf(IOutput.Level.ERROR, "In batch mode the output '%s' must be an existing directory.", dirPath);
+            throw new BadCommandLineException();
+        }
+    }
+
+    private void requireOption(String option) throws BadCommandLineException {
+        if (!cmdLine.hasOption(option)) {
+            out.printf(IOutput.Level.ERROR, "Missing required option: %s", option);
+            throw new BadCommandLineException();
+        }
+    }
+
+    /**
+     * @return the filter of the prefixes given to --include and --exclude and of the scope file, null if none
+     */
+    private ClassFilter parseClassFilter() throws BadCommandLineException {
+        final List<String> includes = new ArrayList<>();
+        final List<String> excludes = new ArrayList<>();
+        addPrefixes(OPTION_INCLUDE, includes);
+        addPrefixes(OPTION_EXCLUDE, excludes);
+        final String scope = cmdLine.getOptionValue(OPTION_SCOPE);
+        if (scope != null) {
+            try {
+                ClassFilter.readScope(new File(scope), includes, excludes);
+            } catch (IOException e) {
+                out.printf(IOutput.Level.ERROR, "Cannot read the scope file: %s", e.getMessage());
+                throw new BadCommandLineException();
+            }
+        }
+        return includes.isEmpty() && excludes.isEmpty() ? null : new ClassFilter(includes, excludes);
+    }
+
+    private void addPrefixes(String option, List<String> prefixes) throws BadCommandLineException {
+        final String value = cmdLine.getOptionValue(option);
+        if (value == null)
+            return;
+        for (String prefix : value.split(",")) {
+            prefix = prefix.trim();
+            if (!ClassFilter.isDescriptorPrefix(prefix)) {
+                out.printf(IOutput.Level.ERROR, "The prefixes of --%s must be class descriptors like Lcom/example/, not '%s'.",
+                           option, prefix);
+                throw new BadCommandLineException();
             }
+            prefixes.add(prefix);
+        }
+    }
+
+    /**
+     * @return the port given to the option, 0 if the option is missing
+     */
+    private int parsePort(String option) throws BadCommandLineException {
+        final int port = parsePositive(cmdLine.getOptionValue(option), 0, "port");
+        if (port > MAX_PORT) {
+            out.printf(IOutput.Level.ERROR, "The port must be at most %d, not %d.", MAX_PORT, port);
+            throw new BadCommandLineException();
         }
+        return port;
     }
 
-    private File customizeBytecode() throws IOException {
-        File tmpClassesDex;
-        tmpClassesDex = File.createTempFile("NewClasseDex", null);
-        tmpClassesDex.deleteOnExit();
-        BytecodeCustomizer c = new BytecodeCustomizer(
-                out,
-                new File(inApkFilename),
-                classesWithInstrMeths,
-                redirections,
-                tmpClassesDex
-                );
-        c.customize();
-        return tmpClassesDex;
+    private int parsePositive(String value, int defaultValue, String what) throws BadCommandLineException {
+        if (value == null)
+            return defaultValue;
+        try {
+            final int n = Integer.parseInt(value);
+            if (n > 0)
+                return n;
+        } catch (NumberFormatException ignored) {
+        }
+        out.printf(IOutput.Level.ERROR, "The number of %s must be a positive integer, not '%s'.", what, value);
+        throw new BadCommandLineException();
+    }
+
+    private int parseCompressionLevel(String value) throws BadCommandLineException {
+        if (value == null)
+            return Deflater.DEFAULT_COMPRESSION;
+        if (value.equalsIgnoreCase(STORE))
+            return Deflater.NO_COMPRESSION;
+        try {
+            final int level = Integer.parseInt(value);
+            if (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION)
+                return level;
+        } catch (NumberFormatException ignored) {
+        }
+        out.printf(IOutput.Level.ERROR, "The compression level must be '%s' or an integer from %d to %d, not '%s'.",
+                   STORE, Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION, value);
+        throw new BadCommandLineException();
     }
 
     private CommandLine parseCmdLine(String[] args) {
@@ -168,24 +452,140 @@ public class Main {
         i.setArgs(1);
         i.setArgName("APK-filename");
         i.setLongOpt(OPTION_INPUT);
-        i.setRequired(true);
 
-        Option d = new Option(OPTION_DEFINSTR.substring(0, 1), "APK/Dex filename that contains instrumented methods");
+        Option b = new Option(OPTION_BATCH.substring(0, 1),
+                              "Directory of input APKs, or file listing one input APK per line (batch mode)");
+        b.setArgs(1);
+        b.setArgName("dir|list-file");
+        b.setLongOpt(OPTION_BATCH);
+
+        Option a = new Option(OPTION_ACCEPT.substring(0, 1), "Run as a daemon instrumenting the jobs enqueued on this loopback port, by the clients that can read ~/.andinst/daemon-<port>.token");
+        a.setArgs(1);
+        a.setArgName("port");
+        a.setLongOpt(OPTION_ACCEPT);
+
+        Option w = new Option(OPTION_WRITE_INDEX.substring(0, 1), "Compile the definitions into an index file, to be given to -" + OPTION_DEFINSTR.substring(0, 1) + " instead of the APK, and exit");
+        w.setArgs(1);
+        w.setArgName("index-filename");
+        w.setLongOpt(OPTION_WRITE_INDEX);
+
+        final OptionGroup inputs = new OptionGroup();
+        inputs.addOption(i).addOption(b).addOption(a).addOption(w);
+        inputs.setRequired(true);
+
+        Option d = new Option(OPTION_DEFINSTR.substring(0, 1), "APK/Dex filename that contains instrumented methods, or index compiled from it (" + DefinitionsIndex.EXTENSION + ")");
         d.setArgs(1);
         d.setArgName("APK/DEX-filename");
         d.setLongOpt(OPTION_DEFINSTR);
-        d.setRequired(true);
 
-        Option o = new Option(OPTION_OUTPUT.substring(0, 1), "Output APK filename");
+        Option o = new Option(OPTION_OUTPUT.substring(0, 1), "Output APK filename (output directory in batch mode)");
         o.setArgs(1);
         o.setArgName("APK-filename");
         o.setLongOpt(OPTION_OUTPUT);
-        o.setRequired(true);
+
+        Option t = new Option(OPTION_THREADS.substring(0, 1), "Number of threads used to rewrite classes (default: number of cores)");
+        t.setArgs(1);
+        t.setArgName("N");
+        t.setLongOpt(OPTION_THREADS);
+
+        Option j = new Option(OPTION_JOBS.substring(0, 1), "Number of APKs instrumented at the same time in batch mode (default: " + DEFAULT_JOBS + ")");
+        j.setArgs(1);
+        j.setArgName("N");
+        j.setLongOpt(OPTION_JOBS);
+
+        Option s = new Option(OPTION_SPOOL.substring(0, 1), "Write the dex files and the unsigned APK to temporary files, then sign the APK (slower, uses less memory)");
+        s.setLongOpt(OPTION_SPOOL);
+
+        Option c = new Option(OPTION_CACHE.substring(0, 1), "Directory caching the rewritten dex files across runs and processes");
+        c.setArgs(1);
+        c.setArgName("dir");
+        c.setLongOpt(OPTION_CACHE);
+
+        Option m = new Option(OPTION_MAX_CACHE_SIZE.substring(0, 1), "Size of the cache above which the least recently used entries are evicted (default: " + DEFAULT_MAX_CACHE_MB + ")");
+        m.setArgs(1);
+        m.setArgName("MB");
+        m.setLongOpt(OPTION_MAX_CACHE_SIZE);
+
+        Option r = new Option(OPTION_REPORT.substring(0, 1), "Write the times and counters of the run to a JSON file");
+        r.setArgs(1);
+        r.setArgName("JSON-filename");
+        r.setLongOpt(OPTION_REPORT);
+
+        Option l = new Option(OPTION_LEVEL.substring(0, 1), "Least important messages printed: DEBUG, VERBOSE, NORMAL or ERROR (default: NORMAL)");
+        l.setArgs(1);
+        l.setArgName("level");
+        l.setLongOpt(OPTION_LEVEL);
+
+        Option e = new Option(OPTION_ENQUEUE.substring(0, 1), "Have the daemon on this loopback port instrument the input APK, instead of doing it in this process");
+        e.setArgs(1);
+        e.setArgName("port");
+        e.setLongOpt(OPTION_ENQUEUE);
+
+        Option f = new Option(OPTION_FRUGAL.substring(0, 1), "Map the dex files instead of reading them, and rewrite them one at a time streaming their classes to temporary files, so that memory grows with the largest rewritten dex rather than with the APK (slower). That dex is still copied on the heap, since dexlib2 reads dex files from arrays, its writer interns all of its classes, and the output dex is read back whole to be zipped");
+        f.setLongOpt(OPTION_FRUGAL);
+
+        Option k = new Option(OPTION_KEYSTORE.substring(0, 1), "Sign with the key of this JKS or PKCS#12 keystore, the first one unless an alias is given, instead of the test key. The passwords are read from " + ENV_KEYSTORE_PASSWORD + " and " + ENV_KEY_PASSWORD + " (default: the keystore one), or asked");
+        k.setArgs(2);
+        k.setOptionalArg(true);
+        k.setArgName("keystore> <alias");
+        k.setLongOpt(OPTION_KEYSTORE);
+
+        Option v = new Option(OPTION_V2.substring(0, 1), "Sign with APK Signature Scheme v2 too");
+        v.setLongOpt(OPTION_V2);
+
+        Option u = new Option(OPTION_USE_INPUT_DIGESTS.substring(0, 1), "When signing, take the SHA1-Digest of the entries copied unchanged from the MANIFEST.MF of the input APK instead of computing them; SHA-256 digests are not reused. Only for APKs not modified after being signed");
+        u.setLongOpt(OPTION_USE_INPUT_DIGESTS);
+
+        Option z = new Option("z", "Compression level of the rewritten dex files, from 1 (fastest) to 9 (smallest), or " + STORE + " (or 0) to store them uncompressed. Large dex files are deflated on several threads (default: zlib's, 6)");
+        z.setArgs(1);
+        z.setArgName("level");
+        z.setLongOpt(OPTION_COMPRESSION_LEVEL);
+
+        Option p = new Option(OPTION_PROBE.substring(0, 1), "Do not instrument: count, for every hooked method, the call sites that would be redirected in the input APK or in every APK of the batch, by class and by method, and write them to this JSON file");
+        p.setArgs(1);
+        p.setArgName("report.json");
+        p.setLongOpt(OPTION_PROBE);
+
+        Option h = new Option(OPTION_HIERARCHY.substring(0, 1), "Also redirect the invocations of a hooked method made through a subclass or a subinterface of its class, e.g. Activity.startActivity called on an activity of the app, resolving every method reference against the classes of the APK and of the framework. Disables the cache");
+        h.setLongOpt(OPTION_HIERARCHY);
+
+        Option n = new Option("n", "Instrument only the classes whose descriptor starts with one of these comma-separated prefixes, e.g. Lcom/example/app/. The longest matching prefix of --" + OPTION_INCLUDE + " and --" + OPTION_EXCLUDE + " decides");
+        n.setArgs(1);
+        n.setArgName("prefixes");
+        n.setLongOpt(OPTION_INCLUDE);
+
+        Option x = new Option("x", "Leave untouched the classes whose descriptor starts with one of these comma-separated prefixes, e.g. Lkotlin/,Landroidx/");
+        x.setArgs(1);
+        x.setArgName("prefixes");
+        x.setLongOpt(OPTION_EXCLUDE);
+
+        Option g = new Option("g", "Read prefixes to include or exclude from this file, one per line, as +Lcom/example/ or -Lkotlin/");
+        g.setArgs(1);
+        g.setArgName("file");
+        g.setLongOpt(OPTION_SCOPE);
 
         final Options options = new Options();
-        options.addOption(i)
+        options.addOptionGroup(inputs)
                 .addOption(d)
-                .addOption(o);
+                .addOption(o)
+                .addOption(t)
+                .addOption(j)
+                .addOption(s)
+                .addOption(c)
+                .addOption(m)
+                .addOption(r)
+                .addOption(l)
+                .addOption(e)
+                .addOption(f)
+                .addOption(k)
+                .addOption(v)
+                .addOption(u)
+                .addOption(z)
+                .addOption(p)
+                .addOption(h)
+                .addOption(n)
+                .addOption(x)
+                .addOption(g);
         return options;
     }
 }
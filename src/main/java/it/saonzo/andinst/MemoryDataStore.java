@@ -0,0 +1,71 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.writer.io.DexDataStore;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A DexDataStore backed by a growable byte array, so that a dex file can be written without touching the disk.
+ */
+class MemoryDataStore implements DexDataStore {
+    private byte[] buf;
+    private int size;
+
+    public MemoryDataStore() {
+        this(1024 * 1024);
+    }
+
+    public MemoryDataStore(int initialCapacity) {
+        buf = new byte[initialCapacity];
+    }
+
+    @Nonnull
+    @Override
+    public OutputStream outputAt(final int offset) {
+        return new OutputStream() {
+            private int position = offset;
+
+            @Override
+            public void write(int b) {
+                ensureCapacity(position + 1);
+                buf[position++] = (byte) b;
+                size = Math.max(size, position);
+            }
+
+            @Override
+            public void write(@Nonnull byte[] b, int off, int len) {
+                ensureCapacity(position + len);
+                System.arraycopy(b, off, buf, position, len);
+                position += len;
+                size = Math.max(size, position);
+            }
+        };
+    }
+
+    @Nonnull
+    @Override
+    public InputStream readAt(int offset) {
+        return new ByteArrayInputStream(buf, offset, Math.max(size - offset, 0));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+    }
+}
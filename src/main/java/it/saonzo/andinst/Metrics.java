@@ -0,0 +1,209 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.iface.reference.MethodReference;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times and counters of the instrumentation of one APK, exported as JSON with {@link #appendJson(StringBuilder)}.
+ * Every method is thread-safe: the dex files of an APK, and the classes of a dex, are processed concurrently.
+ * <p>
+ * The wall time of a phase is summed over every execution of the phase, so when several dex files are rewritten
+ * at the same time it can exceed the elapsed time of the run. The CPU time is that of the threads doing the work.
+ */
+class Metrics {
+    enum Phase {
+        LOAD_DEFINITIONS,
+        LOAD_DEX,
+        SCAN,
+        REWRITE,
+        WRITE_DEX,
+        COMPRESS,
+        WRITE_ZIP,
+        SIGN
+    }
+
+    enum Counter {
+        DEX_FILES,
+        DEX_FILES_REWRITTEN,
+        CLASSES_SCANNED,
+        CLASSES_EXCLUDED,
+        CLASSES_REWRITTEN,
+        METHODS_REBUILT,
+        INVOKES_INSPECTED,
+        INVOKES_REDIRECTED,
+        BYTES_COPIED,
+        BYTES_COMPRESSED,
+        DIGESTS_REUSED,
+        INHERITED_REFERENCES
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final int N_PHASES = Phase.values().length;
+
+    private final long startNanos = System.nanoTime();
+    /**
+     * Wall nanoseconds, CPU nanoseconds and number of executions of every phase.
+     */
+    private final AtomicLongArray phases = new AtomicLongArray(3 * N_PHASES);
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final ConcurrentMap<MethodReference, AtomicLong> redirectionsByTarget = new ConcurrentHashMap<>();
+
+    /**
+     * Measures the wall and CPU time of the current thread until the timer is stopped, in a finally block.
+     */
+    public Timer time(Phase phase) {
+        return new Timer(phase, true);
+    }
+
+    /**
+     * Measures only the wall time, for a phase whose work runs on other threads that report their CPU time
+     * with {@link #addCpuTime(Phase, long)}.
+     */
+    public Timer timeWall(Phase phase) {
+        return new Timer(phase, false);
+    }
+
+    public void addCpuTime(Phase phase, long nanos) {
+        phases.addAndGet(3 * phase.ordinal() + 1, nanos);
+    }
+
+    public void add(Counter counter, long delta) {
+        counters.addAndGet(counter.ordinal(), delta);
+    }
+
+    public long get(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /**
+     * Counts an invocation redirected to the given instrumentation method.
+     */
+    public void countRedirection(MethodReference redirection) {
+        AtomicLong n = redirectionsByTarget.get(redirection);
+        if (n == null) {
+            final AtomicLong newCount = new AtomicLong();
+            n = redirectionsByTarget.putIfAbsent(redirection, newCount);
+            if (n == null)
+                n = newCount;
+        }
+        n.incrementAndGet();
+    }
+
+    static long currentThreadCpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Not AutoCloseable: a timer has no resource to release, and try-with-resources would leave it unreferenced.
+     */
+    class Timer {
+        private final Phase phase;
+        private final long wallStart;
+        private final long cpuStart;
+
+        private Timer(Phase phase, boolean measureCpu) {
+            this.phase = phase;
+            this.cpuStart = measureCpu ? currentThreadCpuTime() : -1;
+            this.wallStart = System.nanoTime();
+        }
+
+        public void stop() {
+            final int i = 3 * phase.ordinal();
+            phases.addAndGet(i, System.nanoTime() - wallStart);
+            if (cpuStart != -1)
+                phases.addAndGet(i + 1, currentThreadCpuTime() - cpuStart);
+            phases.incrementAndGet(i + 2);
+        }
+    }
+
+    /**
+     * @return the highest heap occupancy of the JVM so far, summed over the heap pools. It is not per APK: in batch
+     * mode it covers every APK instrumented until then
+     */
+    public static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    /**
+     * Appends the members of a JSON object, without the enclosing braces, so that callers can add their own.
+     */
+    public void appendJson(StringBuilder sb) {
+        sb.append("\"wallMillis\":").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        sb.append(",\"peakHeapBytes\":").append(peakHeapBytes());
+        sb.append(",\"phases\":{");
+        for (Phase phase : Phase.values()) {
+            final int i = 3 * phase.ordinal();
+            if (phase.ordinal() > 0)
+                sb.append(',');
+            appendString(sb, phase.name().toLowerCase(Locale.ROOT)).append(":{")
+                    .append("\"wallMillis\":").append(TimeUnit.NANOSECONDS.toMillis(phases.get(i)))
+                    .append(",\"cpuMillis\":").append(TimeUnit.NANOSECONDS.toMillis(phases.get(i + 1)))
+                    .append(",\"count\":").append(phases.get(i + 2))
+                    .append('}');
+        }
+        sb.append("},\"counters\":{");
+        for (Counter counter : Counter.values()) {
+            if (counter.ordinal() > 0)
+                sb.append(',');
+            appendString(sb, counter.name().toLowerCase(Locale.ROOT)).append(':').append(get(counter));
+        }
+        sb.append("},\"redirections\":{");
+        final Map<String, Long> sorted = new TreeMap<>();
+        for (Map.Entry<MethodReference, AtomicLong> e : redirectionsByTarget.entrySet())
+            sorted.put(e.getKey().toString(), e.getValue().get());
+        boolean first = true;
+        for (Map.Entry<String, Long> e : sorted.entrySet()) {
+            if (!first)
+                sb.append(',');
+            first = false;
+            appendString(sb, e.getKey()).append(':').append(e.getValue());
+        }
+        sb.append('}');
+    }
+
+    static StringBuilder appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+}
@@ -0,0 +1,158 @@
+package it.saonzo.andinst;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * JSON report of a run: the metrics of the instrumented APK, or of every APK of a batch, or the call sites
+ * found by an analysis.
+ */
+class MetricsReport {
+    private MetricsReport() {
+    }
+
+    public static void writeSingle(File reportFile, File input, File output, int nInstrumented, Metrics metrics)
+            throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        appendHeader(sb);
+        sb.append(',');
+        appendApk(sb, input, output, nInstrumented, null, metrics);
+        sb.append("}\n");
+        write(reportFile, sb);
+    }
+
+    /**
+     * Writes the report of a batch one APK at a time, as the results are ready; closing it ends the report.
+     */
+    public static class BatchWriter implements BatchInstrumenter.ResultListener, Closeable {
+        private final Writer writer;
+        private boolean first = true;
+
+        /**
+         * @param definitionsMetrics the metrics of the definitions loading, shared by all the APKs of the batch
+         */
+        public BatchWriter(File reportFile, Metrics definitionsMetrics) throws IOException {
+            writer = Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8);
+            final StringBuilder sb = new StringBuilder();
+            sb.append('{');
+            appendHeader(sb);
+            sb.append(",\"definitions\":{");
+            definitionsMetrics.appendJson(sb);
+            sb.append("},\"apks\":[");
+            writer.append(sb);
+        }
+
+        @Override
+        public void resultReady(BatchInstrumenter.Result r) throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            if (!first)
+                sb.append(',');
+            first = false;
+            sb.append("\n{");
+            appendApk(sb, r.input, r.output, r.nInstrumented, r.error, r.metrics);
+            sb.append('}');
+            writer.append(sb);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                writer.append("]}\n");
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * For every APK, its call sites by hooked method, calling class and calling method, with their totals.
+     */
+    public static void writeAnalysis(File reportFile, List<ApkAnalyzer.Result> results) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        appendHeader(sb);
+        sb.append(",\"apks\":[");
+        for (int i = 0; i < results.size(); ++i) {
+            final ApkAnalyzer.Result r = results.get(i);
+            if (i > 0)
+                sb.append(',');
+            sb.append("\n{\"input\":");
+            Metrics.appendString(sb, r.input.getPath());
+            sb.append(",\"success\":").append(r.isSuccess());
+            if (!r.isSuccess()) {
+                sb.append(",\"error\":");
+                Metrics.appendString(sb, r.error.toString());
+            }
+            sb.append(",\"millis\":").append(r.millis)
+                    .append(",\"dexFiles\":").append(r.nDexFiles)
+                    .append(",\"callSites\":").append(r.countCallSites())
+                    .append(",\"hookedMethods\":{");
+            appendCallSites(sb, r.callSites);
+            sb.append("}}");
+        }
+        sb.append("]}\n");
+        write(reportFile, sb);
+    }
+
+    private static void appendCallSites(StringBuilder sb, ApkAnalyzer.CallSites callSites) {
+        boolean firstHooked = true;
+        for (Map.Entry<String, SortedMap<String, SortedMap<String, Integer>>> h : callSites.entrySet()) {
+            if (!firstHooked)
+                sb.append(',');
+            firstHooked = false;
+            Metrics.appendString(sb, h.getKey()).append(":{\"classes\":{");
+            int hookedTotal = 0;
+            boolean firstClass = true;
+            for (Map.Entry<String, SortedMap<String, Integer>> c : h.getValue().entrySet()) {
+                if (!firstClass)
+                    sb.append(',');
+                firstClass = false;
+                Metrics.appendString(sb, c.getKey()).append(":{\"methods\":{");
+                int classTotal = 0;
+                boolean firstMethod = true;
+                for (Map.Entry<String, Integer> m : c.getValue().entrySet()) {
+                    if (!firstMethod)
+                        sb.append(',');
+                    firstMethod = false;
+                    Metrics.appendString(sb, m.getKey()).append(':').append(m.getValue());
+                    classTotal += m.getValue();
+                }
+                sb.append("},\"callSites\":").append(classTotal).append('}');
+                hookedTotal += classTotal;
+            }
+            sb.append("},\"callSites\":").append(hookedTotal).append('}');
+        }
+    }
+
+    private static void appendHeader(StringBuilder sb) {
+        sb.append("\"version\":");
+        Metrics.appendString(sb, Main.VERSION);
+    }
+
+    private static void appendApk(StringBuilder sb, File input, File output, int nInstrumented, Throwable error,
+                                  Metrics metrics) {
+        sb.append("\"input\":");
+        Metrics.appendString(sb, input.getPath());
+        sb.append(",\"output\":");
+        Metrics.appendString(sb, output.getPath());
+        sb.append(",\"success\":").append(error == null);
+        if (error != null) {
+            sb.append(",\"error\":");
+            Metrics.appendString(sb, error.toString());
+        }
+        sb.append(",\"invocationsInstrumented\":").append(nInstrumented).append(',');
+        metrics.appendJson(sb);
+    }
+
+    private static void write(File reportFile, StringBuilder sb) throws IOException {
+        Files.write(reportFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
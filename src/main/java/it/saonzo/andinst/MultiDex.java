@@ -0,0 +1,140 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class MultiDex {
+    public static final int MAX_METHOD_REFERENCES = 0x10000;
+
+    private static final Pattern DEX_ENTRY = Pattern.compile("classes([2-9]|[1-9]\\d+)?\\.dex");
+    private static final int METHOD_IDS_SIZE_OFFSET = 0x58;
+
+    /**
+     * Orders dex entry names the way the runtime loads them: classes.dex, classes2.dex, ..., classesN.dex.
+     * Other names, such as classes1.dex or classes02.dex, are not loaded by the runtime and are ordinary entries.
+     */
+    public static final Comparator<String> ENTRY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            return Integer.compare(dexIndex(a), dexIndex(b));
+        }
+    };
+
+    public static boolean isDexEntry(String name) {
+        return DEX_ENTRY.matcher(name).matches();
+    }
+
+    public static int dexIndex(String name) {
+        Matcher m = DEX_ENTRY.matcher(name);
+        if (!m.matches())
+            throw new IllegalArgumentException(name + " is not a dex entry");
+        final String index = m.group(1);
+        return index == null ? 1 : Integer.parseInt(index);
+    }
+
+    public static String entryName(int dexIndex) {
+        return dexIndex == 1 ? "classes.dex" : "classes" + dexIndex + ".dex";
+    }
+
+    public static SortedMap<String, ByteBuffer> readDexEntries(File apkFile) throws IOException {
+        try (ApkZipFile apk = ApkZipFile.open(apkFile)) {
+            return readDexEntries(apk);
+        }
+    }
+
+    /**
+     * Reads the dex files of apk on the heap, so that they outlive it.
+     */
+    public static SortedMap<String, ByteBuffer> readDexEntries(ApkZipFile apk) throws IOException {
+        SortedMap<String, ByteBuffer> result = new TreeMap<>(ENTRY_ORDER);
+        for (ApkZipFile.Entry entry : apk.getEntries()) {
+            if (!isDexEntry(entry.name))
+                continue;
+            if (entry.size > Integer.MAX_VALUE)
+                throw new IOException(entry.name + " is too large: " + entry.size + " bytes");
+            // inflated straight into an array of the recorded size, not copied out of a growing buffer
+            final byte[] bytes = new byte[(int) entry.size];
+            try (InputStream is = apk.getInputStream(entry)) {
+                new DataInputStream(is).readFully(bytes);
+                if (is.read() != -1)
+                    throw new IOException(entry.name + " is larger than its recorded size");
+            }
+            result.put(entry.name, ByteBuffer.wrap(bytes));
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #readDexEntries(File)}, but without copying the dex files on the heap: a stored dex is a slice
+     * of the mapped APK, a deflated one is inflated into a temporary file that is mapped in turn.
+     * The mappings outlive the files, which are closed (and the temporary ones deleted) before returning.
+     */
+    public static SortedMap<String, ByteBuffer> mapDexEntries(File apkFile) throws IOException {
+        SortedMap<String, ByteBuffer> result = new TreeMap<>(ENTRY_ORDER);
+        try (ApkZipFile apk = ApkZipFile.open(apkFile)) {
+            for (ApkZipFile.Entry entry : apk.getEntries()) {
+                if (!isDexEntry(entry.name))
+                    continue;
+                if (entry.method == ApkZipFile.STORED) {
+                    result.put(entry.name, apk.getRawData(entry));
+                    continue;
+                }
+                final File inflated = File.createTempFile("InputClassesDex", null);
+                try {
+                    try (InputStream is = apk.getInputStream(entry);
+                         OutputStream os = new FileOutputStream(inflated)) {
+                        StreamUtils.copy(is, os);
+                    }
+                    try (FileChannel channel = new RandomAccessFile(inflated, "r").getChannel()) {
+                        result.put(entry.name, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                    }
+                } finally {
+                    if (!inflated.delete())
+                        inflated.deleteOnExit();
+                }
+            }
+        }
+        return result;
+    }
+
+    public static int methodIdsSize(ByteBuffer dex) {
+        return dex.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(METHOD_IDS_SIZE_OFFSET);
+    }
+
+    /**
+     * Upper bound of the method_ids a dex needs to host the given classes: their own methods plus every method
+     * they invoke.
+     */
+    public static int countMethodReferences(Set<ClassDef> classes) {
+        Set<MethodReference> references = new HashSet<>();
+        for (ClassDef classDef : classes) {
+            for (Method method : classDef.getMethods()) {
+                references.add(method);
+                MethodImplementation implementation = method.getImplementation();
+                if (implementation == null)
+                    continue;
+                for (Instruction instruction : implementation.getInstructions()) {
+                    if (instruction instanceof ReferenceInstruction) {
+                        Reference reference = ((ReferenceInstruction) instruction).getReference();
+                        if (reference instanceof MethodReference)
+                            references.add((MethodReference) reference);
+                    }
+                }
+            }
+        }
+        return references.size();
+    }
+}
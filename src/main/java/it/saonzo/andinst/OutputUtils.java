@@ -0,0 +1,11 @@
+package it.saonzo.andinst;
+
+class OutputUtils {
+    /**
+     * @return false if out discards the messages of level l; an IOutput that is not an {@link IFilteredOutput}
+     * is taken to print every level
+     */
+    public static boolean isEnabled(IOutput out, IOutput.Level l) {
+        return !(out instanceof IFilteredOutput) || ((IFilteredOutput) out).isEnabled(l);
+    }
+}
@@ -0,0 +1,272 @@
+package it.saonzo.andinst;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Minimal reader of the id tables and of the class data of a dex file, straight from its bytes.
+ * Unlike dexlib2 it builds no object model, so it is cheap enough to run over every dex before deciding
+ * whether it has to be rewritten at all.
+ */
+class RawDex {
+    static final int NO_INDEX = -1;
+    static final int HEADER_SIZE = 0x70;
+
+    private static final int STRING_IDS_SIZE = 0x38;
+    private static final int CLASS_DEF_ITEM_SIZE = 0x20;
+    private static final int METHOD_ID_ITEM_SIZE = 8;
+    private static final int PROTO_ID_ITEM_SIZE = 12;
+
+    private final ByteBuffer buf;
+    final int stringIdsSize;
+    final int stringIdsOff;
+    final int typeIdsSize;
+    final int typeIdsOff;
+    final int protoIdsSize;
+    final int protoIdsOff;
+    final int fieldIdsSize;
+    final int fieldIdsOff;
+    final int methodIdsSize;
+    final int methodIdsOff;
+    final int classDefsSize;
+    final int classDefsOff;
+
+    public RawDex(byte[] dex) throws IOException {
+        this(ByteBuffer.wrap(dex));
+    }
+
+    public RawDex(ByteBuffer dex) throws IOException {
+        buf = dex.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.limit() < HEADER_SIZE || buf.get(0) != 'd' || buf.get(1) != 'e' || buf.get(2) != 'x')
+            throw new IOException("Not a dex file");
+        int o = STRING_IDS_SIZE;
+        stringIdsSize = buf.getInt(o);
+        stringIdsOff = buf.getInt(o + 4);
+        typeIdsSize = buf.getInt(o + 8);
+        typeIdsOff = buf.getInt(o + 12);
+        protoIdsSize = buf.getInt(o + 16);
+        protoIdsOff = buf.getInt(o + 20);
+        fieldIdsSize = buf.getInt(o + 24);
+        fieldIdsOff = buf.getInt(o + 28);
+        methodIdsSize = buf.getInt(o + 32);
+        methodIdsOff = buf.getInt(o + 36);
+        classDefsSize = buf.getInt(o + 40);
+        classDefsOff = buf.getInt(o + 44);
+    }
+
+    public ByteBuffer getBuffer() {
+        return buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getMethodClassIndex(int methodIndex) {
+        return buf.getShort(methodIdsOff + methodIndex * METHOD_ID_ITEM_SIZE) & 0xFFFF;
+    }
+
+    public int getMethodProtoIndex(int methodIndex) {
+        return buf.getShort(methodIdsOff + methodIndex * METHOD_ID_ITEM_SIZE + 2) & 0xFFFF;
+    }
+
+    public int getMethodNameIndex(int methodIndex) {
+        return buf.getInt(methodIdsOff + methodIndex * METHOD_ID_ITEM_SIZE + 4);
+    }
+
+    public DexMethod getMethod(int methodIndex) throws IOException {
+        final int protoIndex = getMethodProtoIndex(methodIndex);
+        return new DexMethod(getType(getMethodClassIndex(methodIndex)),
+                             getString(getMethodNameIndex(methodIndex)),
+                             getProtoParameterTypes(protoIndex),
+                             getType(getProtoReturnTypeIndex(protoIndex)));
+    }
+
+    public int getProtoReturnTypeIndex(int protoIndex) {
+        return buf.getInt(protoIdsOff + protoIndex * PROTO_ID_ITEM_SIZE + 4);
+    }
+
+    public List<String> getProtoParameterTypes(int protoIndex) throws IOException {
+        final int parametersOff = buf.getInt(protoIdsOff + protoIndex * PROTO_ID_ITEM_SIZE + 8);
+        if (parametersOff == 0)
+            return Collections.emptyList();
+        return getTypeList(parametersOff);
+    }
+
+    private List<String> getTypeList(int typeListOff) throws IOException {
+        final int size = buf.getInt(typeListOff);
+        List<String> types = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i)
+            types.add(getType(buf.getShort(typeListOff + 4 + 2 * i) & 0xFFFF));
+        return types;
+    }
+
+    public String getType(int typeIndex) throws IOException {
+        return getString(buf.getInt(typeIdsOff + 4 * typeIndex));
+    }
+
+    public String getString(int stringIndex) throws IOException {
+        int offset = buf.getInt(stringIdsOff + 4 * stringIndex);
+        int utf16Length = 0;
+        for (int shift = 0; ; shift += 7) {
+            final int b = buf.get(offset++);
+            utf16Length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                break;
+        }
+        return decodeMutf8(offset, utf16Length);
+    }
+
+    /**
+     * @return the offset of the MUTF-8 bytes of the descriptor of a type, which end with a 0 byte, to match it
+     * without decoding it
+     */
+    public int getTypeDescriptorOffset(int typeIndex) {
+        int offset = buf.getInt(stringIdsOff + 4 * buf.getInt(typeIdsOff + 4 * typeIndex));
+        while ((buf.get(offset++) & 0x80) != 0)
+            ;
+        return offset;
+    }
+
+    public byte getByte(int offset) {
+        return buf.get(offset);
+    }
+
+    public int getClassDefTypeIndex(int classDefIndex) {
+        return buf.getInt(classDefsOff + classDefIndex * CLASS_DEF_ITEM_SIZE);
+    }
+
+    /**
+     * @return the type index of the superclass of a class, NO_INDEX for java.lang.Object
+     */
+    public int getClassDefSuperclassIndex(int classDefIndex) {
+        return buf.getInt(classDefsOff + classDefIndex * CLASS_DEF_ITEM_SIZE + 8);
+    }
+
+    public List<String> getClassDefInterfaces(int classDefIndex) throws IOException {
+        final int interfacesOff = buf.getInt(classDefsOff + classDefIndex * CLASS_DEF_ITEM_SIZE + 12);
+        return interfacesOff == 0 ? Collections.<String>emptyList() : getTypeList(interfacesOff);
+    }
+
+    public int getClassDefDataOffset(int classDefIndex) {
+        return buf.getInt(classDefsOff + classDefIndex * CLASS_DEF_ITEM_SIZE + 24);
+    }
+
+    /**
+     * Iterates over the methods of a class_data_item. Reuse one instance to scan many classes without allocating.
+     */
+    class ClassDataReader {
+        private int position;
+        private int remainingFields;
+        private int remainingDirect;
+        private int remainingVirtual;
+        private int methodIndex;
+        private boolean firstVirtual;
+        private int codeOffset;
+
+        /**
+         * Rewinds the reader to the first method of the class, or to an empty class if it has no class data.
+         */
+        void reset(int classDefIndex) {
+            final int classDataOff = getClassDefDataOffset(classDefIndex);
+            remainingFields = remainingDirect = remainingVirtual = 0;
+            if (classDataOff == 0)
+                return;
+            position = classDataOff;
+            remainingFields = readUleb128();
+            remainingFields += readUleb128();
+            remainingDirect = readUleb128();
+            remainingVirtual = readUleb128();
+            for (; remainingFields > 0; --remainingFields) {
+                readUleb128();
+                readUleb128();
+            }
+            methodIndex = 0;
+            firstVirtual = true;
+        }
+
+        /**
+         * Moves to the next method.
+         *
+         * @return false if there are no methods left
+         */
+        boolean next() {
+            if (remainingDirect > 0)
+                --remainingDirect;
+            else if (remainingVirtual > 0) {
+                --remainingVirtual;
+                if (firstVirtual) {
+                    firstVirtual = false;
+                    methodIndex = 0;
+                }
+            } else
+                return false;
+            methodIndex += readUleb128();
+            readUleb128();
+            codeOffset = readUleb128();
+            return true;
+        }
+
+        int methodIndex() {
+            return methodIndex;
+        }
+
+        /**
+         * @return true if the current method is virtual, false if it is direct
+         */
+        boolean isVirtual() {
+            return !firstVirtual;
+        }
+
+        /**
+         * @return the offset of the code_item of the current method, 0 if it is abstract or native
+         */
+        int codeOffset() {
+            return codeOffset;
+        }
+
+        private int readUleb128() {
+            int result = 0;
+            for (int shift = 0; ; shift += 7) {
+                final int b = buf.get(position++);
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return result;
+            }
+        }
+    }
+
+    /**
+     * @return the number of 16-bit code units of a code_item
+     */
+    public int getInsnsSize(int codeOffset) {
+        return buf.getInt(codeOffset + 12);
+    }
+
+    /**
+     * @return the code unit at index i of the instructions of a code_item
+     */
+    public int getCodeUnit(int codeOffset, int i) {
+        return buf.getShort(codeOffset + 16 + 2 * i) & 0xFFFF;
+    }
+
+    private String decodeMutf8(int offset, int utf16Length) throws UTFDataFormatException {
+        final char[] chars = new char[utf16Length];
+        for (int i = 0; i < utf16Length; ++i) {
+            final int a = buf.get(offset++) & 0xFF;
+            if (a < 0x80) {
+                chars[i] = (char) a;
+            } else if ((a & 0xE0) == 0xC0) {
+                final int b = buf.get(offset++) & 0xFF;
+                chars[i] = (char) ((a & 0x1F) << 6 | (b & 0x3F));
+            } else if ((a & 0xF0) == 0xE0) {
+                final int b = buf.get(offset++) & 0xFF;
+                final int c = buf.get(offset++) & 0xFF;
+                chars[i] = (char) ((a & 0x0F) << 12 | (b & 0x3F) << 6 | (c & 0x3F));
+            } else
+                throw new UTFDataFormatException("Bad MUTF-8 byte 0x" + Integer.toHexString(a) + " at " + (offset - 1));
+        }
+        return new String(chars);
+    }
+}
@@ -12,7 +12,7 @@ class StreamUtils {
     }
 
     public static void copy(InputStream is, OutputStream os) throws IOException {
-        final byte[] buf = new byte[512];
+        final byte[] buf = new byte[64 * 1024];
         int nRead;
         while ((nRead = is.read(buf)) != -1) {
             os.write(buf, 0, nRead);
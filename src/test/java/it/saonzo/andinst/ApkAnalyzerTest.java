@@ -0,0 +1,70 @@
+package it.saonzo.andinst;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class ApkAnalyzerTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private ForkJoinPool pool;
+    private InstrDefinitions definitions;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ForkJoinPool(2);
+        definitions = TestApks.definitions(tmp.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void countsCallSitesOfEveryDex() throws Exception {
+        final File input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(3), TestApks.appDex(2));
+        final ApkAnalyzer.Result result = new ApkAnalyzer(TestApks.SILENT, definitions, pool, false, null)
+                .analyze(input);
+        assertTrue(result.isSuccess());
+        assertEquals(2, result.nDexFiles);
+        assertEquals(5, result.countCallSites());
+        final ApkAnalyzer.CallSites expected = new ApkAnalyzer.CallSites();
+        expected.add(TestApks.HOOKED.toString(), TestApks.MAIN_CLASS, "run(Lapp/Api;)V", 5);
+        assertEquals(expected, result.callSites);
+    }
+
+    @Test
+    public void countsAsManyCallSitesAsInstrumented() throws Exception {
+        final File input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(4));
+        final ApkAnalyzer.Result result = new ApkAnalyzer(TestApks.SILENT, definitions, pool, false, null)
+                .analyze(input);
+        final ApkInstrumenter instrumenter = new ApkInstrumenter(TestApks.SILENT, definitions, pool,
+                                                                 ApkSigner.withTestKey(false, false), false, null,
+                                                                 false, Deflater.DEFAULT_COMPRESSION,
+                                                                 false, null);
+        assertEquals(instrumenter.instrument(input, tmp.newFile("out.apk")), result.countCallSites());
+    }
+
+    @Test
+    public void skipsExcludedClasses() throws Exception {
+        final File input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(3));
+        final ClassFilter filter = new ClassFilter(Collections.<String>emptyList(), Collections.singletonList("Lapp/"));
+        final List<ApkAnalyzer.Result> results = new ApkAnalyzer(TestApks.SILENT, definitions, pool, false, filter)
+                .analyzeAll(Arrays.asList(input), 1);
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(0, results.get(0).countCallSites());
+    }
+}
@@ -0,0 +1,213 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class ApkInstrumenterTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private ForkJoinPool pool;
+    private InstrDefinitions definitions;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ForkJoinPool(2);
+        definitions = TestApks.definitions(tmp.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void instrumentsApkWithManifest() throws Exception {
+        assertInstrumented(instrumenter(false, false));
+    }
+
+    @Test
+    public void instrumentsThroughSpooledApk() throws Exception {
+        assertInstrumented(instrumenter(true, false));
+    }
+
+    @Test
+    public void instrumentsInLowMemoryMode() throws Exception {
+        assertInstrumented(instrumenter(false, true));
+    }
+
+    @Test
+    public void instrumentsEveryDexOfMultidexApk() throws Exception {
+        final File input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(3), TestApks.appDex(2));
+        final File output = tmp.newFile("out.apk");
+        assertEquals(5, instrumenter(false, false).instrument(input, output));
+        final Map<String, byte[]> entries = TestApks.readEntries(output);
+        assertEquals(TestApks.redirected(3),
+                     TestApks.invocations(entries.get("classes.dex"), TestApks.MAIN_CLASS, "run"));
+        assertEquals(TestApks.redirected(2),
+                     TestApks.invocations(entries.get("classes2.dex"), TestApks.MAIN_CLASS, "run"));
+        assertTrue(TestApks.classTypes(entries.get("classes.dex")).contains(TestApks.HOOKS_CLASS));
+        assertFalse(TestApks.classTypes(entries.get("classes2.dex")).contains(TestApks.HOOKS_CLASS));
+    }
+
+    @Test
+    public void leavesDexWithoutHitsUntouched() throws Exception {
+        final byte[] untouched = TestApks.appDex(0);
+        final File input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(1), untouched);
+        final File output = tmp.newFile("out.apk");
+        assertEquals(1, instrumenter(false, false).instrument(input, output));
+        assertArrayEquals(untouched, TestApks.readEntries(output).get("classes2.dex"));
+    }
+
+    @Test
+    public void copiesOtherDexNamesAsOrdinaryEntries() throws Exception {
+        final byte[] notLoaded = TestApks.appDex(2);
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put(TestApks.MANIFEST, TestApks.text(4096));
+        entries.put("classes.dex", TestApks.appDex(1));
+        entries.put("classes1.dex", notLoaded);
+        entries.put("classes02.dex", notLoaded);
+        final File input = new File(tmp.getRoot(), "in.apk");
+        TestApks.writeApk(input, entries);
+        final File output = tmp.newFile("out.apk");
+        assertEquals(1, instrumenter(false, false).instrument(input, output));
+        final Map<String, byte[]> outputEntries = TestApks.readEntries(output);
+        assertArrayEquals(notLoaded, outputEntries.get("classes1.dex"));
+        assertArrayEquals(notLoaded, outputEntries.get("classes02.dex"));
+        assertFalse(outputEntries.containsKey("classes2.dex"));
+    }
+
+    @Test
+    public void failsWhenRedirectionsMayOverflowMethodReferences() throws Exception {
+        // appDex references 3 methods: with the filler, classes2.dex is full and has no room for the hook
+        final List<Method> filler = new ArrayList<>();
+        for (int i = 0; i < MultiDex.MAX_METHOD_REFERENCES - 3; ++i)
+            filler.add(new ImmutableMethod("Lapp/Filler;", "m" + i, null, "V",
+                                           AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(), null,
+                                           null));
+        final List<ClassDef> classes = new ArrayList<ClassDef>(TestApks.readDex(TestApks.appDex(1)).getClasses());
+        classes.add(new ImmutableClassDef("Lapp/Filler;",
+                                          AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(),
+                                          "Ljava/lang/Object;", null, null, null, null, filler));
+        final byte[] full = TestApks.writeDex(classes);
+        assertEquals(MultiDex.MAX_METHOD_REFERENCES, MultiDex.methodIdsSize(ByteBuffer.wrap(full)));
+        final File input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(1), full);
+        try {
+            instrumenter(false, false).instrument(input, tmp.newFile("out.apk"));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("classes2.dex has 65536 method references"));
+        }
+    }
+
+    @Test
+    public void reusesManifestDigestsOfSignedInput() throws Exception {
+        final File signed = signedApk();
+        // all but classes.dex, which is rewritten
+        assertReused(3, signed);
+    }
+
+    @Test
+    public void digestsEntriesOfManifestChangedAfterSigning() throws Exception {
+        final Map<String, byte[]> entries = TestApks.readEntries(signedApk());
+        final String manifest = new String(entries.get("META-INF/MANIFEST.MF"), StandardCharsets.UTF_8);
+        final String extra = "Name: extra\r\nSHA1-Digest: AAAAAAAAAAAAAAAAAAAAAAAAAAA=\r\n\r\n";
+        entries.put("META-INF/MANIFEST.MF", (manifest + extra).getBytes(StandardCharsets.UTF_8));
+        final File changed = new File(tmp.getRoot(), "changed.apk");
+        TestApks.writeApk(changed, entries);
+        assertReused(0, changed);
+    }
+
+    @Test
+    public void digestsEntryWithInconsistentHeaders() throws Exception {
+        final File signed = signedApk();
+        final long localHeaderOffset;
+        try (ApkZipFile apk = ApkZipFile.open(signed)) {
+            localHeaderOffset = apk.getEntry("assets/notes.txt").localHeaderOffset;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(signed, "rw")) {
+            // the CRC-32 of the local header
+            file.seek(localHeaderOffset + 14);
+            final int crc = file.readInt();
+            file.seek(localHeaderOffset + 14);
+            file.writeInt(~crc);
+        }
+        assertReused(2, signed);
+    }
+
+    /**
+     * @return an app APK signed with the test key
+     */
+    private File signedApk() throws Exception {
+        final File input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(2));
+        final File signed = new File(tmp.getRoot(), "signed.apk");
+        final ApkSigner.Digests digests = ApkSigner.withTestKey(false, false).newDigests(null, new Metrics());
+        try (ApkZipFile apk = ApkZipFile.open(input);
+             ApkZipWriter writer = new ApkZipWriter(new FileOutputStream(signed).getChannel())) {
+            for (ApkZipFile.Entry entry : apk.getEntries()) {
+                writer.copyEntry(apk, entry);
+                digests.add(apk, entry);
+            }
+            digests.writeSignature(writer);
+        }
+        return signed;
+    }
+
+    /**
+     * Asserts that instrumenting input while reusing its digests gives the same APK as digesting every entry.
+     */
+    private void assertReused(int nReused, File input) throws Exception {
+        final File computed = new File(tmp.getRoot(), "computed.apk");
+        instrumenter(false, false).instrument(input, computed);
+        final File reused = new File(tmp.getRoot(), "reused.apk");
+        final Metrics metrics = new Metrics();
+        new ApkInstrumenter(TestApks.SILENT, definitions, pool, ApkSigner.withTestKey(false, true), false, null,
+                            false, Deflater.DEFAULT_COMPRESSION, false, null).instrument(input, reused, metrics);
+        assertEquals(nReused, metrics.get(Metrics.Counter.DIGESTS_REUSED));
+        assertArrayEquals(Files.readAllBytes(computed.toPath()), Files.readAllBytes(reused.toPath()));
+    }
+
+    private void assertInstrumented(ApkInstrumenter instrumenter) throws Exception {
+        final File input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(3));
+        final File output = tmp.newFile("out.apk");
+        assertEquals(3, instrumenter.instrument(input, output));
+
+        final Map<String, byte[]> inputEntries = TestApks.readEntries(input);
+        final Map<String, byte[]> outputEntries = TestApks.readEntries(output);
+        final List<String> names = new ArrayList<>(outputEntries.keySet());
+        assertEquals(Arrays.asList(TestApks.MANIFEST, "classes.dex", "res/raw/blob.bin", "assets/notes.txt",
+                                   "META-INF/MANIFEST.MF", "META-INF/CERT.SF", "META-INF/CERT.RSA"), names);
+        for (String name : Arrays.asList(TestApks.MANIFEST, "res/raw/blob.bin", "assets/notes.txt"))
+            assertArrayEquals(name, inputEntries.get(name), outputEntries.get(name));
+        final byte[] dex = outputEntries.get("classes.dex");
+        assertEquals(TestApks.redirected(3), TestApks.invocations(dex, TestApks.MAIN_CLASS, "run"));
+        assertEquals(new TreeSet<>(Arrays.asList(TestApks.API_CLASS, TestApks.MAIN_CLASS, TestApks.HOOKS_CLASS)),
+                     TestApks.classTypes(dex));
+    }
+
+    private ApkInstrumenter instrumenter(boolean spoolToDisk, boolean lowMemory) throws Exception {
+        return new ApkInstrumenter(TestApks.SILENT, definitions, pool, ApkSigner.withTestKey(false, false),
+                                   spoolToDisk, null, lowMemory, Deflater.DEFAULT_COMPRESSION, false, null);
+    }
+}
@@ -0,0 +1,128 @@
+package it.saonzo.andinst;
+
+import com.android.apksig.ApkVerifier;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * The signed output passes the verifiers of the platform tools: apksig, the library behind apksigner, for both
+ * schemes, and jarsigner for v1.
+ */
+public class ApkSignerTest {
+    /**
+     * The platform versions checked: v1 with SHA-1 is what the oldest ones require, and Android 7.0 (24) is the
+     * first to check v2.
+     */
+    private static final int MIN_SDK_VERSION = 9;
+    private static final int MAX_SDK_VERSION = 25;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private ForkJoinPool pool;
+    private File input;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ForkJoinPool(2);
+        input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(3), TestApks.appDex(1));
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void signsV1VerifiedByApksig() throws Exception {
+        final ApkVerifier.Result result = verify(instrument(false));
+        assertTrue(result.getErrors().toString(), result.isVerified());
+        assertTrue(result.isVerifiedUsingV1Scheme());
+        assertFalse(result.isVerifiedUsingV2Scheme());
+    }
+
+    @Test
+    public void signsV1AndV2VerifiedByApksig() throws Exception {
+        final ApkVerifier.Result result = verify(instrument(true));
+        assertTrue(result.getErrors().toString(), result.isVerified());
+        assertTrue(result.isVerifiedUsingV1Scheme());
+        assertTrue(result.isVerifiedUsingV2Scheme());
+    }
+
+    @Test
+    public void rejectsTamperedV2Apk() throws Exception {
+        final File output = instrument(true);
+        try (ApkZipFile apk = ApkZipFile.open(output)) {
+            final long offset = apk.getEntry("classes2.dex").dataOffset;
+            try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+                file.seek(offset);
+                final int b = file.read();
+                file.seek(offset);
+                file.write(b ^ 1);
+            }
+        }
+        assertFalse(verify(output).isVerified());
+    }
+
+    @Test
+    public void signsV1VerifiedByJarsigner() throws Exception {
+        final File jarsigner = findJarsigner();
+        Assume.assumeTrue(jarsigner != null);
+        // recent JDKs treat jars signed with SHA-1 as unsigned, the signer uses it for the platforms before 18
+        final File security = tmp.newFile("java.security");
+        Files.write(security.toPath(), "jdk.jar.disabledAlgorithms=MD2, MD5, RSA keySize < 1024\n"
+                .getBytes(StandardCharsets.US_ASCII));
+        final Process process = new ProcessBuilder(jarsigner.getPath(), "-J-Djava.security.properties=" + security,
+                                                   "-verify", instrument(false).getPath())
+                .redirectErrorStream(true).start();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            StreamUtils.copy(in, output);
+        }
+        final String report = output.toString("UTF-8");
+        assertEquals(report, 0, process.waitFor());
+        assertTrue(report, report.contains("jar verified."));
+    }
+
+    private File instrument(boolean v2) throws Exception {
+        final File output = tmp.newFile();
+        new ApkInstrumenter(TestApks.SILENT, TestApks.definitions(tmp.getRoot()), pool,
+                            ApkSigner.withTestKey(v2, false), false, null, false, Deflater.DEFAULT_COMPRESSION,
+                            false, null).instrument(input, output);
+        return output;
+    }
+
+    private static ApkVerifier.Result verify(File apk) throws Exception {
+        return new ApkVerifier.Builder(apk).setMinCheckedPlatformVersion(MIN_SDK_VERSION)
+                                           .setMaxCheckedPlatformVersion(MAX_SDK_VERSION).build().verify();
+    }
+
+    /**
+     * @return the jarsigner of the JDK running the tests, null if it runs on a JRE
+     */
+    private static File findJarsigner() {
+        final File home = new File(System.getProperty("java.home"));
+        final String name = System.getProperty("os.name").startsWith("Windows") ? "jarsigner.exe" : "jarsigner";
+        for (File dir : new File[]{new File(home, "bin"), new File(home.getParentFile(), "bin")}) {
+            final File jarsigner = new File(dir, name);
+            if (jarsigner.canExecute())
+                return jarsigner;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,173 @@
+package it.saonzo.andinst;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Entries copied by {@link ApkZipWriter} read back as they were written by java.util.zip, which also checks their
+ * CRC-32, with the stored ones aligned as zipalign does.
+ */
+public class ApkZipWriterTest {
+    private static final long TIME = new GregorianCalendar(2020, Calendar.MARCH, 4, 10, 20, 30).getTimeInMillis();
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void copiesEntriesAsTheyAre() throws Exception {
+        final Map<String, byte[]> entries = entries();
+        final File input = writeWithJavaZip(entries);
+        final File output = tmp.newFile("out.apk");
+        copy(input, output);
+
+        final Map<String, byte[]> copied = readWithJavaZip(output);
+        assertEquals(entries.keySet(), copied.keySet());
+        for (String name : entries.keySet())
+            assertArrayEquals(name, entries.get(name), copied.get(name));
+        try (ZipFile in = new ZipFile(input); ZipFile out = new ZipFile(output)) {
+            for (String name : entries.keySet()) {
+                final ZipEntry a = in.getEntry(name);
+                final ZipEntry b = out.getEntry(name);
+                assertEquals(name, a.getMethod(), b.getMethod());
+                assertEquals(name, a.getCrc(), b.getCrc());
+                assertEquals(name, a.getCompressedSize(), b.getCompressedSize());
+                assertEquals(name, a.getTime(), b.getTime());
+            }
+        }
+        // every local header agrees with the central directory
+        try (ZipInputStream zip = new ZipInputStream(new FileInputStream(output))) {
+            final List<String> names = new ArrayList<>();
+            for (ZipEntry e; (e = zip.getNextEntry()) != null; )
+                names.add(e.getName());
+            assertEquals(new ArrayList<>(entries.keySet()), names);
+        }
+    }
+
+    @Test
+    public void alignsStoredEntries() throws Exception {
+        final File input = writeWithJavaZip(entries());
+        assertNotEquals(0, countMisaligned(input));
+        final File output = tmp.newFile("out.apk");
+        copy(input, output);
+        assertEquals(0, countMisaligned(output));
+    }
+
+    @Test
+    public void realignsCopyOfAlignedApk() throws Exception {
+        final File aligned = tmp.newFile("aligned.apk");
+        copy(writeWithJavaZip(entries()), aligned);
+        final File copy = tmp.newFile("copy.apk");
+        copy(aligned, copy);
+        assertArrayEquals(Files.readAllBytes(aligned.toPath()), Files.readAllBytes(copy.toPath()));
+    }
+
+    @Test
+    public void datesNewEntriesLikeLatestCopied() throws Exception {
+        final File input = writeWithJavaZip(entries());
+        final File first = tmp.newFile("first.apk");
+        final File second = tmp.newFile("second.apk");
+        for (File output : new File[]{first, second})
+            try (ApkZipFile apk = ApkZipFile.open(input);
+                 ApkZipWriter writer = new ApkZipWriter(new FileOutputStream(output).getChannel())) {
+                for (ApkZipFile.Entry entry : apk.getEntries())
+                    writer.copyEntry(apk, entry);
+                writer.writeEntry("META-INF/MANIFEST.MF", TestApks.text(100), Deflater.DEFAULT_COMPRESSION, null);
+            }
+        assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath()));
+        try (ZipFile zip = new ZipFile(first)) {
+            assertEquals(TIME, zip.getEntry("META-INF/MANIFEST.MF").getTime());
+        }
+    }
+
+    /**
+     * @return a manifest and an asset to deflate, and a resource and native libraries to store, whose odd name
+     * lengths misalign their data
+     */
+    private static Map<String, byte[]> entries() {
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put(TestApks.MANIFEST, TestApks.text(4096));
+        final Random random = new Random(42);
+        for (String name : Arrays.asList("resources.arsc", "res/raw/a.bin", "lib/x86/libfoo.so", "lib/x86/libb.so")) {
+            final byte[] data = new byte[1000 + random.nextInt(5000)];
+            random.nextBytes(data);
+            entries.put(name, data);
+        }
+        entries.put("assets/notes.txt", TestApks.text(20000));
+        return entries;
+    }
+
+    /**
+     * Writes the entries with java.util.zip, without alignment, storing those whose name does not end with .txt
+     * or .xml.
+     */
+    private File writeWithJavaZip(Map<String, byte[]> entries) throws IOException {
+        final File apk = tmp.newFile();
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(apk))) {
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                final ZipEntry entry = new ZipEntry(e.getKey());
+                entry.setTime(TIME);
+                if (!e.getKey().endsWith(".txt") && !e.getKey().endsWith(".xml")) {
+                    final CRC32 crc = new CRC32();
+                    crc.update(e.getValue());
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(e.getValue().length);
+                    entry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(entry);
+                zip.write(e.getValue());
+                zip.closeEntry();
+            }
+        }
+        return apk;
+    }
+
+    private static Map<String, byte[]> readWithJavaZip(File apk) throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipFile zip = new ZipFile(apk)) {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                final ZipEntry entry = e.nextElement();
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (InputStream in = zip.getInputStream(entry)) {
+                    StreamUtils.copy(in, bytes);
+                }
+                entries.put(entry.getName(), bytes.toByteArray());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the number of stored entries whose data is not aligned on 4 bytes, or on 4096 for native libraries
+     */
+    private static int countMisaligned(File apk) throws IOException {
+        int n = 0;
+        try (ApkZipFile zip = ApkZipFile.open(apk)) {
+            for (ApkZipFile.Entry entry : zip.getEntries())
+                if (entry.method == ApkZipFile.STORED
+                    && entry.dataOffset % (entry.name.endsWith(".so") ? 4096 : 4) != 0)
+                    ++n;
+        }
+        return n;
+    }
+
+    private static void copy(File input, File output) throws IOException {
+        try (ApkZipFile apk = ApkZipFile.open(input);
+             ApkZipWriter writer = new ApkZipWriter(new FileOutputStream(output).getChannel())) {
+            for (ApkZipFile.Entry entry : apk.getEntries())
+                writer.copyEntry(apk, entry);
+        }
+    }
+}
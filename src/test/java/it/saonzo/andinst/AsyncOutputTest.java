@@ -0,0 +1,56 @@
+package it.saonzo.andinst;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AsyncOutputTest {
+    /**
+     * Records the formatted messages; it is not an IFilteredOutput, so it is taken to print every level.
+     */
+    private static class Recorder implements IOutput {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void printf(Level l, String format, Object... args) {
+            messages.add(l + " " + String.format(format, args));
+        }
+    }
+
+    @Test
+    public void printsEveryLevelOfUnfilteredDelegate() {
+        final Recorder recorder = new Recorder();
+        try (AsyncOutput out = new AsyncOutput(recorder)) {
+            assertTrue(out.isEnabled(IOutput.Level.DEBUG));
+            out.printf(IOutput.Level.DEBUG, "%d %s", 1, "debug");
+            out.printf(IOutput.Level.ERROR, "%s", IOutput.Level.ERROR);
+        }
+        assertEquals(Arrays.asList("DEBUG 1 debug", "ERROR ERROR"), recorder.messages);
+    }
+
+    @Test
+    public void dropsLevelsDisabledByDelegate() {
+        try (AsyncOutput out = new AsyncOutput(TestApks.SILENT)) {
+            assertFalse(out.isEnabled(IOutput.Level.ERROR));
+        }
+        assertFalse(OutputUtils.isEnabled(TestApks.SILENT, IOutput.Level.ERROR));
+        assertTrue(OutputUtils.isEnabled(new Recorder(), IOutput.Level.DEBUG));
+    }
+
+    @Test
+    public void formatsMutableArgumentsWhenPrinted() {
+        final Recorder recorder = new Recorder();
+        final StringBuilder mutable = new StringBuilder("before");
+        try (AsyncOutput out = new AsyncOutput(recorder)) {
+            out.printf(IOutput.Level.NORMAL, "%s\n", mutable);
+            mutable.setLength(0);
+            mutable.append("after");
+        }
+        assertEquals(Collections.singletonList("NORMAL before\n"), recorder.messages);
+    }
+}
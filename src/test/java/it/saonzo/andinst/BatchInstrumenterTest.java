@@ -0,0 +1,125 @@
+package it.saonzo.andinst;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class BatchInstrumenterTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private ForkJoinPool pool;
+    private ApkInstrumenter instrumenter;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ForkJoinPool(2);
+        instrumenter = new ApkInstrumenter(TestApks.SILENT, TestApks.definitions(tmp.getRoot()), pool,
+                                           ApkSigner.withTestKey(false, false), false, null, false,
+                                           Deflater.DEFAULT_COMPRESSION, false, null);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void instrumentsEveryApkOfDirectory() throws Exception {
+        final File inputDir = tmp.newFolder("in");
+        final File a = TestApks.appApk(inputDir, "a.apk", TestApks.appDex(1));
+        final File b = TestApks.appApk(inputDir, "b.apk", TestApks.appDex(2));
+        Files.write(new File(inputDir, "notes.txt").toPath(), TestApks.text(10));
+        final File outputDir = tmp.newFolder("out");
+
+        final List<File> inputs = BatchInstrumenter.listInputs(inputDir);
+        assertEquals(Arrays.asList(a, b), inputs);
+        final Map<File, BatchInstrumenter.Result> results = new HashMap<>();
+        assertEquals(0, new BatchInstrumenter(TestApks.SILENT, instrumenter, 2).run(inputs, outputDir,
+                                                                                    collector(results)));
+        assertEquals(2, results.size());
+        for (BatchInstrumenter.Result r : results.values()) {
+            assertTrue(r.isSuccess());
+            final File expected = tmp.newFile();
+            assertEquals(r.nInstrumented, instrumenter.instrument(r.input, expected));
+            assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(r.output.toPath()));
+        }
+        assertEquals(1, results.get(a).nInstrumented);
+        assertEquals(2, results.get(b).nInstrumented);
+    }
+
+    @Test
+    public void recordsFailureAndGoesOn() throws Exception {
+        final File inputDir = tmp.newFolder("in");
+        final File broken = new File(inputDir, "broken.apk");
+        Files.write(broken.toPath(), TestApks.text(100));
+        final File good = TestApks.appApk(inputDir, "good.apk", TestApks.appDex(1));
+        final File outputDir = tmp.newFolder("out");
+
+        final Map<File, BatchInstrumenter.Result> results = new HashMap<>();
+        assertEquals(1, new BatchInstrumenter(TestApks.SILENT, instrumenter, 2).run(Arrays.asList(broken, good),
+                                                                                    outputDir, collector(results)));
+        assertFalse(results.get(broken).isSuccess());
+        assertFalse(results.get(broken).output.exists());
+        assertTrue(results.get(good).isSuccess());
+        assertTrue(new File(outputDir, good.getName()).isFile());
+    }
+
+    @Test
+    public void rejectsInputsWithSameName() throws Exception {
+        final File a = TestApks.appApk(tmp.newFolder("a"), "app.apk", TestApks.appDex(1));
+        final File b = TestApks.appApk(tmp.newFolder("b"), "App.apk", TestApks.appDex(2));
+        final File outputDir = tmp.newFolder("out");
+        try {
+            new BatchInstrumenter(TestApks.SILENT, instrumenter, 2).run(Arrays.asList(a, b), outputDir, null);
+            fail("Inputs with the same name accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(b.getPath()));
+        }
+        assertEquals(0, outputDir.list().length);
+    }
+
+    @Test
+    public void writesReportOfEveryApkOfLongBatch() throws Exception {
+        final File inputDir = tmp.newFolder("in");
+        for (int i = 0; i < 7; ++i)
+            TestApks.appApk(inputDir, "app" + i + ".apk", TestApks.appDex(1));
+        final File outputDir = tmp.newFolder("out");
+        final File report = tmp.newFile("report.json");
+
+        final List<File> inputs = BatchInstrumenter.listInputs(inputDir);
+        try (MetricsReport.BatchWriter writer = new MetricsReport.BatchWriter(report, new Metrics())) {
+            assertEquals(0, new BatchInstrumenter(TestApks.SILENT, instrumenter, 1).run(inputs, outputDir, writer));
+        }
+        final String json = new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json, json.startsWith("{\"version\":"));
+        assertTrue(json, json.endsWith("]}\n"));
+        for (File input : inputs)
+            assertTrue(json, json.contains(input.getName()));
+        assertEquals(inputs.size(), json.split("\"success\":true").length - 1);
+    }
+
+    private static BatchInstrumenter.ResultListener collector(final Map<File, BatchInstrumenter.Result> results) {
+        return new BatchInstrumenter.ResultListener() {
+            @Override
+            public void resultReady(BatchInstrumenter.Result result) {
+                assertNull(results.put(result.input, result));
+            }
+        };
+    }
+}
@@ -0,0 +1,91 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.*;
+
+/**
+ * A rewritten dex reads back through dexlib2, with a header that matches its content.
+ */
+public class BytecodeCustomizerTest {
+    private static final int CHECKSUM_OFFSET = 8;
+    private static final int SIGNATURE_OFFSET = 12;
+    private static final int SIGNATURE_SIZE = 20;
+    private static final int FILE_SIZE_OFFSET = 32;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private ForkJoinPool pool;
+    private InstrDefinitions definitions;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ForkJoinPool(2);
+        definitions = TestApks.definitions(tmp.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void rewritesDexWithValidHeader() throws Exception {
+        assertRewritten(customize(false));
+    }
+
+    @Test
+    public void rewritesDexWhileStreamingWithValidHeader() throws Exception {
+        assertRewritten(customize(true));
+    }
+
+    private byte[] customize(boolean streaming) throws Exception {
+        final MemoryDataStore outputDex = new MemoryDataStore();
+        final BytecodeCustomizer customizer = new BytecodeCustomizer(
+                TestApks.SILENT, "classes.dex", ByteBuffer.wrap(TestApks.appDex(3)),
+                definitions.getClassesWithInstrMeths(), definitions.getRedirections(), null, null, outputDex, pool,
+                null, new Metrics(), streaming);
+        assertEquals(3, customizer.customize());
+        assertTrue(customizer.isRewritten());
+        return outputDex.toByteArray();
+    }
+
+    private static void assertRewritten(byte[] dex) throws Exception {
+        final ByteBuffer header = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(dex.length, header.getInt(FILE_SIZE_OFFSET));
+        final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        sha1.update(dex, SIGNATURE_OFFSET + SIGNATURE_SIZE, dex.length - SIGNATURE_OFFSET - SIGNATURE_SIZE);
+        assertArrayEquals(sha1.digest(), Arrays.copyOfRange(dex, SIGNATURE_OFFSET, SIGNATURE_OFFSET + SIGNATURE_SIZE));
+        final Adler32 adler = new Adler32();
+        adler.update(dex, SIGNATURE_OFFSET, dex.length - SIGNATURE_OFFSET);
+        assertEquals((int) adler.getValue(), header.getInt(CHECKSUM_OFFSET));
+
+        // every instruction decodes
+        final DexBackedDexFile dexFile = TestApks.readDex(dex);
+        int nInstructions = 0;
+        for (ClassDef classDef : dexFile.getClasses())
+            for (Method method : classDef.getMethods())
+                if (method.getImplementation() != null)
+                    for (Instruction ignored : method.getImplementation().getInstructions())
+                        ++nInstructions;
+        assertTrue(nInstructions > 0);
+        assertEquals(TestApks.redirected(3), TestApks.invocations(dex, TestApks.MAIN_CLASS, "run"));
+        assertTrue(TestApks.classTypes(dex).contains(TestApks.HOOKS_CLASS));
+    }
+}
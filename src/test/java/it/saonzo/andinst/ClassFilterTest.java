@@ -0,0 +1,126 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Precedence of the prefixes: the longest matching one decides, an exclude beats an include of the same prefix,
+ * and a class matching none is instrumented only if nothing is included.
+ */
+public class ClassFilterTest {
+    private static final String[] TYPES = {
+            "Lcom/example/app/Main;", "Lcom/example/lib/Util;", "Lcom/google/ads/Ad;", "Lcom/google/myapp/Ui;",
+            "Lkotlin/Unit;", "Lorg/other/Other;"
+    };
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private static RawDex dex;
+    private static final Map<String, Integer> classDefIndexes = new HashMap<>();
+
+    @BeforeClass
+    public static void writeDex() throws Exception {
+        final List<ClassDef> classes = new ArrayList<>();
+        for (String type : TYPES)
+            classes.add(new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null,
+                                              null, null, null, null));
+        dex = new RawDex(TestApks.writeDex(classes));
+        for (int c = 0; c < dex.classDefsSize; ++c)
+            classDefIndexes.put(dex.getType(dex.getClassDefTypeIndex(c)), c);
+    }
+
+    @Test
+    public void acceptsEverythingWithoutPrefixes() {
+        assertAccepted(filter(none(), none()), TYPES);
+    }
+
+    @Test
+    public void acceptsUnmatchedClassesOnlyWithoutIncludes() {
+        assertAccepted(filter(none(), set("Lkotlin/")),
+                       "Lcom/example/app/Main;", "Lcom/example/lib/Util;", "Lcom/google/ads/Ad;",
+                       "Lcom/google/myapp/Ui;", "Lorg/other/Other;");
+        assertAccepted(filter(set("Lcom/example/"), none()), "Lcom/example/app/Main;", "Lcom/example/lib/Util;");
+    }
+
+    @Test
+    public void longestPrefixDecides() {
+        assertAccepted(filter(set("Lcom/google/myapp/"), set("Lcom/google/")),
+                       "Lcom/google/myapp/Ui;");
+        assertAccepted(filter(set("Lcom/"), set("Lcom/google/")),
+                       "Lcom/example/app/Main;", "Lcom/example/lib/Util;");
+        assertAccepted(filter(set("Lcom/", "Lcom/example/app/"), set("Lcom/example/")),
+                       "Lcom/example/app/Main;", "Lcom/google/ads/Ad;", "Lcom/google/myapp/Ui;");
+    }
+
+    @Test
+    public void excludeBeatsIncludeOfSamePrefix() {
+        assertAccepted(filter(set("Lcom/example/", "Lkotlin/"), set("Lcom/example/")), "Lkotlin/Unit;");
+    }
+
+    @Test
+    public void prefixMayEndInsideName() {
+        assertAccepted(filter(set("Lcom/example/app/M"), none()), "Lcom/example/app/Main;");
+    }
+
+    @Test
+    public void readsScope() throws Exception {
+        final File scope = tmp.newFile("scope.txt");
+        Files.write(scope.toPath(), "# comment\n+Lcom/\n\n  -Lcom/google/  \n+Lcom/google/myapp/\n"
+                .getBytes(StandardCharsets.UTF_8));
+        final Set<String> includes = new TreeSet<>();
+        final Set<String> excludes = new TreeSet<>();
+        ClassFilter.readScope(scope, includes, excludes);
+        assertEquals(set("Lcom/", "Lcom/google/myapp/"), includes);
+        assertEquals(set("Lcom/google/"), excludes);
+        assertAccepted(new ClassFilter(includes, excludes),
+                       "Lcom/example/app/Main;", "Lcom/example/lib/Util;", "Lcom/google/myapp/Ui;");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsLineWithoutSign() throws Exception {
+        final File scope = tmp.newFile("scope.txt");
+        Files.write(scope.toPath(), "Lcom/\n".getBytes(StandardCharsets.UTF_8));
+        ClassFilter.readScope(scope, new TreeSet<String>(), new TreeSet<String>());
+    }
+
+    @Test
+    public void describesPrefixesInStableOrder() {
+        assertEquals(filter(set("Lb/", "La/"), set("Lc/")).toString(),
+                     filter(new LinkedHashSet<>(Arrays.asList("La/", "Lb/")), set("Lc/")).toString());
+        assertNotEquals(filter(set("La/"), none()).toString(), filter(none(), set("La/")).toString());
+    }
+
+    private static ClassFilter filter(Set<String> includes, Set<String> excludes) {
+        return new ClassFilter(includes, excludes);
+    }
+
+    private static void assertAccepted(ClassFilter filter, String... accepted) {
+        final Set<String> actual = new TreeSet<>();
+        for (String type : TYPES)
+            if (filter.accepts(dex, classDefIndexes.get(type)))
+                actual.add(type);
+        assertEquals(set(accepted), actual);
+    }
+
+    private static Set<String> set(String... prefixes) {
+        return new TreeSet<>(Arrays.asList(prefixes));
+    }
+
+    private static Set<String> none() {
+        return Collections.emptySet();
+    }
+}
@@ -0,0 +1,100 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Resolution of the methods inherited from a hooked method: Lapp/Api; declares the hooked call, Lapp/Sub; and
+ * Lapp/SubSub; inherit it, Lapp/Override; redeclares it and Lapp/UnderOverride; inherits the override.
+ */
+public class ClassHierarchyTest {
+    private static final String SUB = "Lapp/Sub;";
+    private static final String SUB_SUB = "Lapp/SubSub;";
+    private static final String OVERRIDE = "Lapp/Override;";
+    private static final String UNDER_OVERRIDE = "Lapp/UnderOverride;";
+    private static final String ACTIVITY = "Landroid/app/Activity;";
+    private static final String MAIN_ACTIVITY = "Lapp/MainActivity;";
+
+    private Metrics metrics;
+    private ClassHierarchy hierarchy;
+
+    @Before
+    public void setUp() throws Exception {
+        final Map<MethodReference, MethodReference> redirections = new HashMap<>();
+        redirections.put(TestApks.HOOKED, TestApks.HOOK);
+        redirections.put(method(ACTIVITY, "finish"), method(TestApks.HOOKS_CLASS, "finish"));
+        final byte[] dex = TestApks.writeDex(Arrays.asList(
+                classDef(TestApks.API_CLASS, "Ljava/lang/Object;", "call", "other"),
+                classDef(SUB, TestApks.API_CLASS),
+                classDef(SUB_SUB, SUB),
+                classDef(OVERRIDE, TestApks.API_CLASS, "call"),
+                classDef(UNDER_OVERRIDE, OVERRIDE),
+                classDef(MAIN_ACTIVITY, ACTIVITY)));
+        metrics = new Metrics();
+        hierarchy = ClassHierarchy.build(Collections.singletonList(ByteBuffer.wrap(dex)), redirections, metrics);
+    }
+
+    @Test
+    public void resolvesHookedMethodItself() {
+        assertEquals(TestApks.HOOK, hierarchy.resolve(TestApks.HOOKED));
+    }
+
+    @Test
+    public void resolvesInheritedMethod() {
+        assertEquals(TestApks.HOOK, hierarchy.resolve(method(SUB, "call")));
+        assertEquals(TestApks.HOOK, hierarchy.resolve(method(SUB_SUB, "call")));
+        assertEquals(2, metrics.get(Metrics.Counter.INHERITED_REFERENCES));
+    }
+
+    @Test
+    public void resolvesMethodInheritedFromFramework() {
+        assertEquals(method(TestApks.HOOKS_CLASS, "finish"), hierarchy.resolve(method(MAIN_ACTIVITY, "finish")));
+    }
+
+    @Test
+    public void doesNotResolveOverride() {
+        assertNull(hierarchy.resolve(method(OVERRIDE, "call")));
+        assertNull(hierarchy.resolve(method(UNDER_OVERRIDE, "call")));
+        assertEquals(0, metrics.get(Metrics.Counter.INHERITED_REFERENCES));
+    }
+
+    @Test
+    public void doesNotResolveOtherMethods() {
+        assertNull(hierarchy.resolve(method(SUB, "other")));
+        assertNull(hierarchy.resolve(new DexMethod(SUB, "call", Collections.singletonList("I"), "V")));
+        assertNull(hierarchy.resolve(method(SUB, "<init>")));
+        assertNull(hierarchy.resolve(method("Lapp/Unknown;", "call")));
+    }
+
+    private static MethodReference method(String type, String name) {
+        return new DexMethod(type, name, Collections.<String>emptyList(), "V");
+    }
+
+    private static ClassDef classDef(String type, String superclass, String... virtualMethods) {
+        final List<Method> methods = new ArrayList<>();
+        for (String name : virtualMethods)
+            methods.add(new ImmutableMethod(type, name, Collections.<MethodParameter>emptyList(), "V",
+                                            AccessFlags.PUBLIC.getValue(), null,
+                                            new ImmutableMethodImplementation(
+                                                    1, Collections.<Instruction>singletonList(
+                                                    new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null)));
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), superclass, null, null, null, null,
+                                     methods);
+    }
+}
@@ -0,0 +1,120 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * An index written by {@link DefinitionsIndex} loads back as the definitions it was compiled from.
+ */
+public class DefinitionsIndexTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private InstrDefinitions definitions;
+    private File index;
+
+    @Before
+    public void setUp() throws Exception {
+        definitions = TestApks.definitions(tmp.getRoot());
+        index = new File(tmp.getRoot(), "definitions.aidx");
+        DefinitionsIndex.write(TestApks.SILENT, index, definitions);
+    }
+
+    @Test
+    public void loadsWrittenDefinitions() throws Exception {
+        assertTrue(DefinitionsIndex.isIndex(index));
+        assertFalse(DefinitionsIndex.isIndex(TestApks.definitionsApk(tmp.getRoot())));
+
+        final InstrDefinitions loaded = DefinitionsIndex.load(index);
+        assertEquals(definitions.getRedirections().size(), loaded.getRedirections().size());
+        assertEquals(definitions.getRedirections(), new HashMap<>(loaded.getRedirections()));
+        assertEquals(TestApks.HOOK, loaded.getRedirections().get(TestApks.HOOKED));
+        assertFalse(loaded.getRedirections().containsKey(TestApks.NOT_HOOKED));
+        assertEquals(types(definitions.getClassesWithInstrMeths()), types(loaded.getClassesWithInstrMeths()));
+        assertArrayEquals(definitions.getDigest(), loaded.getDigest());
+    }
+
+    @Test
+    public void loadsIndexThroughDefinitions() throws Exception {
+        final InstrDefinitions loaded = InstrDefinitions.load(TestApks.SILENT, index.getPath());
+        assertEquals(definitions.getRedirections(), new HashMap<>(loaded.getRedirections()));
+    }
+
+    @Test
+    public void instrumentsAsTheDefinitions() throws Exception {
+        final File input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(3), TestApks.appDex(1));
+        final File fromDefinitions = tmp.newFile("definitions-out.apk");
+        final File fromIndex = tmp.newFile("index-out.apk");
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            assertEquals(4, instrumenter(definitions, pool).instrument(input, fromDefinitions));
+            assertEquals(4, instrumenter(DefinitionsIndex.load(index), pool).instrument(input, fromIndex));
+        } finally {
+            pool.shutdown();
+        }
+        assertArrayEquals(Files.readAllBytes(fromDefinitions.toPath()), Files.readAllBytes(fromIndex.toPath()));
+    }
+
+    @Test
+    public void loadsOverloadsDifferingOnlyInReturnType() throws Exception {
+        final Map<MethodReference, MethodReference> redirections = new HashMap<>();
+        for (String returnType : Arrays.asList("V", "I", "Ljava/lang/String;", "Z"))
+            redirections.put(new DexMethod(TestApks.API_CLASS, "call", Collections.<String>emptyList(), returnType),
+                             new DexMethod(TestApks.HOOKS_CLASS, "call" + returnType.length(),
+                                           Collections.singletonList(TestApks.API_CLASS), returnType));
+        DefinitionsIndex.write(TestApks.SILENT, index, new InstrDefinitions(
+                definitions.getClassesWithInstrMeths(), redirections, definitions.getDigest()));
+
+        final Map<MethodReference, MethodReference> loaded = DefinitionsIndex.load(index).getRedirections();
+        for (Map.Entry<MethodReference, MethodReference> e : redirections.entrySet())
+            assertEquals(e.getValue(), loaded.get(e.getKey()));
+        assertNull(loaded.get(new DexMethod(TestApks.API_CLASS, "call", Collections.<String>emptyList(), "J")));
+        assertEquals(redirections, new HashMap<>(loaded));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptedIndex() throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            final long offset = file.length() - 1;
+            file.seek(offset);
+            final int b = file.read();
+            file.seek(offset);
+            file.write(b ^ 1);
+        }
+        DefinitionsIndex.load(index);
+    }
+
+    private static ApkInstrumenter instrumenter(InstrDefinitions definitions, ForkJoinPool pool)
+            throws IOException, GeneralSecurityException {
+        return new ApkInstrumenter(TestApks.SILENT, definitions, pool, ApkSigner.withTestKey(false, false), false, null,
+                                   false, Deflater.DEFAULT_COMPRESSION, false, null);
+    }
+
+    private static Set<String> types(Set<? extends ClassDef> classes) {
+        final Set<String> types = new LinkedHashSet<>();
+        for (ClassDef classDef : classes)
+            types.add(classDef.getType());
+        return types;
+    }
+}
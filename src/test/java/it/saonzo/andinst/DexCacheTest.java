@@ -0,0 +1,98 @@
+package it.saonzo.andinst;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class DexCacheTest {
+    private static final byte[] DEFINITIONS_DIGEST = new byte[32];
+    private static final int DEX_SIZE = 100;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File(tmp.getRoot(), "cache");
+    }
+
+    @Test
+    public void missesUnknownKey() throws Exception {
+        final DexCache cache = new DexCache(TestApks.SILENT, dir, 1024 * 1024, DEFINITIONS_DIGEST, null);
+        assertNull(cache.get(cache.key(dex(1), false)));
+    }
+
+    @Test
+    public void hitsPutEntries() throws Exception {
+        final DexCache cache = new DexCache(TestApks.SILENT, dir, 1024 * 1024, DEFINITIONS_DIGEST, null);
+        final String rewritten = cache.key(dex(1), false);
+        cache.put(rewritten, 3, dex(2).array());
+        final String untouched = cache.key(dex(3), false);
+        cache.put(untouched, 0, null);
+
+        final DexCache.Entry entry = cache.get(rewritten);
+        assertEquals(3, entry.nInstrumented);
+        assertArrayEquals(dex(2).array(), entry.dex);
+        assertNull(cache.get(untouched).dex);
+        // shared by another instance on the same directory
+        assertEquals(3, new DexCache(TestApks.SILENT, dir, 1024 * 1024, DEFINITIONS_DIGEST, null)
+                .get(rewritten).nInstrumented);
+    }
+
+    @Test
+    public void keysDependOnEveryInput() throws Exception {
+        final DexCache cache = new DexCache(TestApks.SILENT, dir, 1024 * 1024, DEFINITIONS_DIGEST, null);
+        final String key = cache.key(dex(1), false);
+        assertEquals(key, cache.key(dex(1), false));
+        assertNotEquals(key, cache.key(dex(2), false));
+        assertNotEquals(key, cache.key(dex(1), true));
+        final byte[] otherDigest = DEFINITIONS_DIGEST.clone();
+        otherDigest[0] = 1;
+        assertNotEquals(key, new DexCache(TestApks.SILENT, dir, 1024 * 1024, otherDigest, null).key(dex(1), false));
+        final ClassFilter filter = new ClassFilter(Collections.singleton("Lcom/example/"),
+                                                   Collections.<String>emptySet());
+        assertNotEquals(key, new DexCache(TestApks.SILENT, dir, 1024 * 1024, DEFINITIONS_DIGEST, filter)
+                .key(dex(1), false));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() throws Exception {
+        // room for two entries: a 4-byte count and the dex each
+        final DexCache cache = new DexCache(TestApks.SILENT, dir, 2 * (4 + DEX_SIZE), DEFINITIONS_DIGEST, null);
+        final long now = System.currentTimeMillis();
+        final String first = cache.key(dex(1), false);
+        cache.put(first, 1, dex(1).array());
+        assertTrue(entryFile(first).setLastModified(now - 3000));
+        final String second = cache.key(dex(2), false);
+        cache.put(second, 2, dex(2).array());
+        assertTrue(entryFile(second).setLastModified(now - 2000));
+        // reading the first one makes the second the least recently used
+        assertNotNull(cache.get(first));
+        final String third = cache.key(dex(3), false);
+        cache.put(third, 3, dex(3).array());
+
+        assertNull(cache.get(second));
+        assertEquals(1, cache.get(first).nInstrumented);
+        assertEquals(3, cache.get(third).nInstrumented);
+    }
+
+    private File entryFile(String key) {
+        return new File(dir, key + ".entry");
+    }
+
+    private static ByteBuffer dex(int seed) {
+        final byte[] dex = new byte[DEX_SIZE];
+        Arrays.fill(dex, (byte) seed);
+        return ByteBuffer.wrap(dex);
+    }
+}
@@ -0,0 +1,151 @@
+package it.saonzo.andinst;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class InstrumenterDaemonTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private ForkJoinPool pool;
+    private ApkInstrumenter instrumenter;
+    private int port;
+    private File tokenFile;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ForkJoinPool(2);
+        instrumenter = new ApkInstrumenter(TestApks.SILENT, TestApks.definitions(tmp.getRoot()), pool,
+                                           ApkSigner.withTestKey(false, false), false, null, false,
+                                           Deflater.DEFAULT_COMPRESSION, false, null);
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        tokenFile = new File(tmp.getRoot(), "daemon.token");
+        final Thread daemon = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new InstrumenterDaemon(TestApks.SILENT, instrumenter, 1, tokenFile).serve(port);
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        daemon.setDaemon(true);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void instrumentsSubmittedJob() throws Exception {
+        final File input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(2));
+        final File output = new File(tmp.getRoot(), "out.apk");
+        final File report = new File(tmp.getRoot(), "report.json");
+        assertTrue(submit(input, output, report));
+
+        final File expected = tmp.newFile();
+        instrumenter.instrument(input, expected);
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(output.toPath()));
+        assertTrue(new String(Files.readAllBytes(report.toPath()), "UTF-8").contains("\"invokes_redirected\":2"));
+    }
+
+    @Test
+    public void reportsFailedJob() throws Exception {
+        final File input = new File(tmp.getRoot(), "missing.apk");
+        final File output = new File(tmp.getRoot(), "out.apk");
+        assertFalse(submit(input, output, null));
+        assertFalse(output.exists());
+    }
+
+    @Test
+    public void keepsExistingOutputOfFailedJob() throws Exception {
+        final File input = new File(tmp.getRoot(), "missing.apk");
+        final File output = tmp.newFile("out.apk");
+        Files.write(output.toPath(), new byte[] { 42 });
+        assertFalse(submit(input, output, null));
+        assertArrayEquals(new byte[] { 42 }, Files.readAllBytes(output.toPath()));
+        for (File file : tmp.getRoot().listFiles())
+            assertFalse(file.getName(), file.getName().endsWith(".part"));
+    }
+
+    @Test
+    public void refusesWrongToken() throws Exception {
+        final File input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(2));
+        final File output = new File(tmp.getRoot(), "out.apk");
+        assertTrue(submit(input, new File(tmp.getRoot(), "first.apk"), null));
+        final File wrongToken = tmp.newFile("wrong.token");
+        Files.write(wrongToken.toPath(), "0123".getBytes(StandardCharsets.US_ASCII));
+        assertFalse(InstrumenterDaemon.submit(TestApks.SILENT, port, wrongToken, input, output, null));
+        assertFalse(output.exists());
+    }
+
+    @Test
+    public void writesTokenReadableByOwnerOnly() throws Exception {
+        assertFalse(submit(new File(tmp.getRoot(), "missing.apk"), new File(tmp.getRoot(), "out.apk"), null));
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+            assertEquals(PosixFilePermissions.fromString("rw-------"),
+                         Files.getPosixFilePermissions(tokenFile.toPath()));
+    }
+
+    @Test
+    public void refusesOverlongRequest() throws Exception {
+        submit(new File(tmp.getRoot(), "missing.apk"), new File(tmp.getRoot(), "out.apk"), null);
+        final char[] path = new char[128 * 1024];
+        Arrays.fill(path, 'a');
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(10000);
+            try {
+                final OutputStream os = socket.getOutputStream();
+                os.write(("JOB\t" + new String(path) + "\n").getBytes(StandardCharsets.UTF_8));
+                os.flush();
+            } catch (IOException ignored) {
+                // the daemon may close the connection while the request is still being sent
+            }
+            int reply;
+            try {
+                reply = socket.getInputStream().read();
+            } catch (IOException e) {
+                reply = -1; // reset by the daemon, which left the rest of the request unread
+            }
+            assertEquals(-1, reply);
+        }
+    }
+
+    /**
+     * Submits the job, retrying while the daemon is not listening yet.
+     */
+    private boolean submit(File input, File output, File report) throws Exception {
+        for (int attempt = 0; ; ++attempt) {
+            try {
+                return InstrumenterDaemon.submit(TestApks.SILENT, port, tokenFile, input, output, report);
+            } catch (IOException e) {
+                if (attempt == 50)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+}
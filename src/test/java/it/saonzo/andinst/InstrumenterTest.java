@@ -0,0 +1,89 @@
+package it.saonzo.andinst;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * The in-memory library API gives the same bytes as the instrumentation of files with the same settings.
+ */
+public class InstrumenterTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File definitions;
+    private File input;
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        definitions = TestApks.definitionsApk(tmp.getRoot());
+        input = TestApks.appApk(tmp.getRoot(), "in.apk", TestApks.appDex(3));
+        pool = new ForkJoinPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void instrumentsApkInMemoryAsFromFile() throws Exception {
+        try (Instrumenter instrumenter = new Instrumenter(definitions.getPath())) {
+            final Instrumenter.Result result = instrumenter.instrumentApk(Files.readAllBytes(input.toPath()));
+            assertEquals(3, result.getInstrumentedInvocations());
+            assertArrayEquals(instrumentFile(false), result.getOutput());
+        }
+    }
+
+    @Test
+    public void signsWithV2InMemoryAsFromFile() throws Exception {
+        try (Instrumenter instrumenter = new Instrumenter(null, definitions.getPath(), 2, null, true,
+                                                          Deflater.DEFAULT_COMPRESSION)) {
+            final byte[] output = instrumenter.instrumentApk(Files.readAllBytes(input.toPath())).getOutput();
+            assertArrayEquals(instrumentFile(true), output);
+        }
+    }
+
+    @Test
+    public void instrumentsApkFromChannel() throws Exception {
+        try (Instrumenter instrumenter = new Instrumenter(definitions.getPath());
+             FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            assertArrayEquals(instrumentFile(false), instrumenter.instrumentApk(channel).getOutput());
+            assertEquals(0, channel.position());
+        }
+    }
+
+    @Test
+    public void instrumentsDex() throws Exception {
+        try (Instrumenter instrumenter = new Instrumenter(definitions.getPath())) {
+            final Instrumenter.Result result = instrumenter.instrumentDex(TestApks.appDex(2));
+            assertEquals(2, result.getInstrumentedInvocations());
+            assertEquals(TestApks.redirected(2),
+                         TestApks.invocations(result.getOutput(), TestApks.MAIN_CLASS, "run"));
+            assertTrue(TestApks.classTypes(result.getOutput()).contains(TestApks.HOOKS_CLASS));
+            assertEquals(Long.valueOf(2), result.getCounters().get("invokes_redirected"));
+            // the key of the --report of Main
+            assertTrue(result.toJson().startsWith("{\"invocationsInstrumented\":2,"));
+        }
+    }
+
+    private byte[] instrumentFile(boolean v2) throws Exception {
+        final File output = tmp.newFile();
+        new ApkInstrumenter(TestApks.SILENT, TestApks.definitions(tmp.getRoot()), pool,
+                            ApkSigner.withTestKey(v2, false), false, null, false, Deflater.DEFAULT_COMPRESSION,
+                            false, null).instrument(input, output);
+        return Files.readAllBytes(output.toPath());
+    }
+}
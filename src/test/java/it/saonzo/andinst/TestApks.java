@@ -0,0 +1,243 @@
+package it.saonzo.andinst;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.AnnotationVisibility;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.immutable.*;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction35c;
+import org.jf.dexlib2.immutable.value.ImmutableBooleanEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Deflater;
+
+/**
+ * Fixtures of the tests: an app whose Lapp/Main;->run invokes Lapp/Api;->call a given number of times, and the
+ * definitions, as InstrApp builds them, that redirect Lapp/Api;->call to the static Lhooks/Hooks;->call.
+ */
+final class TestApks {
+    static final String API_CLASS = "Lapp/Api;";
+    static final String MAIN_CLASS = "Lapp/Main;";
+    static final String HOOKS_CLASS = "Lhooks/Hooks;";
+    static final MethodReference HOOKED = new DexMethod(API_CLASS, "call", Collections.<String>emptyList(), "V");
+    static final MethodReference HOOK = new DexMethod(HOOKS_CLASS, "call", Collections.singletonList(API_CLASS),
+                                                      "V");
+    static final MethodReference NOT_HOOKED = new DexMethod(API_CLASS, "other", Collections.<String>emptyList(),
+                                                            "V");
+    static final String MANIFEST = "AndroidManifest.xml";
+
+    static final IOutput SILENT = new IFilteredOutput() {
+        @Override
+        public void printf(Level l, String format, Object... args) {
+        }
+
+        @Override
+        public boolean isEnabled(Level l) {
+            return false;
+        }
+    };
+
+    private static final Opcodes OPCODES = Opcodes.forApi(19);
+    private static final String CLASS_ANNOTATION = "Lit/saonzo/annotations/ClassWithInstrMethods;";
+    private static final String METHOD_ANNOTATION = "Lit/saonzo/annotations/InstrumentedMethod;";
+
+    private TestApks() {
+    }
+
+    /**
+     * @return a dex with Lapp/Api; and Lapp/Main;, whose static run(Lapp/Api;) invokes call nCalls times and
+     * other once
+     */
+    static byte[] appDex(int nCalls) throws IOException {
+        final List<Instruction> run = new ArrayList<>();
+        for (int i = 0; i < nCalls; ++i)
+            run.add(invokeVirtual(HOOKED));
+        run.add(invokeVirtual(NOT_HOOKED));
+        run.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+        final ClassDef main = new ImmutableClassDef(
+                MAIN_CLASS, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null, null, null,
+                Collections.singletonList(new ImmutableMethod(
+                        MAIN_CLASS, "run", parameters(API_CLASS), "V",
+                        AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null,
+                        new ImmutableMethodImplementation(1, run, null, null))));
+        final ClassDef api = new ImmutableClassDef(
+                API_CLASS, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null, null, null,
+                Arrays.asList(returnVoid(API_CLASS, "call", 0, Collections.<MethodParameter>emptyList()),
+                              returnVoid(API_CLASS, "other", 0, Collections.<MethodParameter>emptyList())));
+        return writeDex(Arrays.asList(main, api));
+    }
+
+    /**
+     * @return the dex of a definitions APK redirecting Lapp/Api;->call
+     */
+    static byte[] definitionsDex() throws IOException {
+        final Annotation annotation = new ImmutableAnnotation(
+                AnnotationVisibility.RUNTIME, METHOD_ANNOTATION, Arrays.asList(
+                new ImmutableAnnotationElement("isStatic", ImmutableBooleanEncodedValue.FALSE_VALUE),
+                new ImmutableAnnotationElement("isInit", ImmutableBooleanEncodedValue.FALSE_VALUE),
+                new ImmutableAnnotationElement("defClass", new ImmutableStringEncodedValue("app.Api"))));
+        final Method hook = new ImmutableMethod(HOOKS_CLASS, "call", parameters(API_CLASS), "V",
+                                                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(),
+                                                Collections.singleton(annotation),
+                                                new ImmutableMethodImplementation(
+                                                        1, Collections.<Instruction>singletonList(
+                                                        new ImmutableInstruction10x(Opcode.RETURN_VOID)),
+                                                        null, null));
+        return writeDex(Collections.<ClassDef>singletonList(new ImmutableClassDef(
+                HOOKS_CLASS, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null,
+                Collections.singleton(new ImmutableAnnotation(AnnotationVisibility.RUNTIME, CLASS_ANNOTATION, null)),
+                null, Collections.singletonList(hook))));
+    }
+
+    static File definitionsApk(File dir) throws IOException {
+        final File apk = new File(dir, "definitions.apk");
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put(MANIFEST, text(1024));
+        entries.put(MultiDex.entryName(1), definitionsDex());
+        writeApk(apk, entries);
+        return apk;
+    }
+
+    static InstrDefinitions definitions(File dir) throws IOException {
+        return InstrDefinitions.load(SILENT, definitionsApk(dir).getPath());
+    }
+
+    /**
+     * @return an APK with a manifest, the dex files in order, a stored resource and a deflated asset
+     */
+    static File appApk(File dir, String name, byte[]... dexFiles) throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put(MANIFEST, text(4096));
+        for (int i = 0; i < dexFiles.length; ++i)
+            entries.put(MultiDex.entryName(i + 1), dexFiles[i]);
+        final byte[] resource = new byte[10000];
+        new Random(42).nextBytes(resource);
+        entries.put("res/raw/blob.bin", resource);
+        entries.put("assets/notes.txt", text(20000));
+        final File apk = new File(dir, name);
+        writeApk(apk, entries);
+        return apk;
+    }
+
+    /**
+     * Writes the entries deflated, but those under res/raw/ which are stored, as aapt does for media files.
+     */
+    static void writeApk(File apk, Map<String, byte[]> entries) throws IOException {
+        try (ApkZipWriter writer = new ApkZipWriter(new FileOutputStream(apk).getChannel())) {
+            for (Map.Entry<String, byte[]> e : entries.entrySet())
+                writer.writeEntry(e.getKey(), e.getValue(), e.getKey().startsWith("res/raw/")
+                                                            ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION,
+                                  null);
+        }
+    }
+
+    /**
+     * @return the uncompressed content of every entry of an APK, in the order of its central directory
+     */
+    static Map<String, byte[]> readEntries(File apk) throws IOException {
+        try (ApkZipFile zip = ApkZipFile.open(apk)) {
+            final Map<String, byte[]> entries = new LinkedHashMap<>();
+            for (ApkZipFile.Entry entry : zip.getEntries())
+                try (InputStream in = zip.getInputStream(entry)) {
+                    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    StreamUtils.copy(in, bytes);
+                    entries.put(entry.name, bytes.toByteArray());
+                }
+            return entries;
+        }
+    }
+
+    static DexBackedDexFile readDex(byte[] dex) {
+        return new DexBackedDexFile(OPCODES, dex);
+    }
+
+    /**
+     * @return the methods invoked by a method of a dex, in instruction order
+     */
+    static List<String> invocations(byte[] dex, String type, String method) {
+        final List<String> invoked = new ArrayList<>();
+        for (ClassDef classDef : readDex(dex).getClasses())
+            if (classDef.getType().equals(type))
+                for (Method m : classDef.getMethods())
+                    if (m.getName().equals(method))
+                        for (Instruction instruction : m.getImplementation().getInstructions())
+                            if (instruction.getOpcode().referenceType == ReferenceType.METHOD)
+                                invoked.add(invocation(instruction.getOpcode(), (MethodReference)
+                                        ((ReferenceInstruction) instruction).getReference()));
+        return invoked;
+    }
+
+    /**
+     * @return the invocations of Lapp/Main;->run once nCalls calls are redirected
+     */
+    static List<String> redirected(int nCalls) {
+        final List<String> invocations = new ArrayList<>();
+        for (int i = 0; i < nCalls; ++i)
+            invocations.add(invocation(Opcode.INVOKE_STATIC, HOOK));
+        invocations.add(invocation(Opcode.INVOKE_VIRTUAL, NOT_HOOKED));
+        return invocations;
+    }
+
+    /**
+     * @return an invocation as {@link #invocations(byte[], String, String)} lists it, e.g.
+     * invoke-static Lhooks/Hooks;->call(Lapp/Api;)V
+     */
+    static String invocation(Opcode opcode, MethodReference method) {
+        return opcode.name + " " + ReferenceUtil.getMethodDescriptor(method);
+    }
+
+    static Set<String> classTypes(byte[] dex) {
+        final Set<String> types = new TreeSet<>();
+        for (ClassDef classDef : readDex(dex).getClasses())
+            types.add(classDef.getType());
+        return types;
+    }
+
+    static byte[] text(int size) {
+        final StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; sb.length() < size; ++i)
+            sb.append("<item name=\"key").append(i % 100).append("\">value</item>\n");
+        sb.setLength(size);
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] writeDex(Collection<? extends ClassDef> classes) throws IOException {
+        final MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(OPCODES, classes));
+        return dataStore.toByteArray();
+    }
+
+    private static Instruction invokeVirtual(MethodReference method) {
+        return new ImmutableInstruction35c(Opcode.INVOKE_VIRTUAL, 1, 0, 0, 0, 0, 0, method);
+    }
+
+    private static List<MethodParameter> parameters(String type) {
+        return Collections.<MethodParameter>singletonList(new ImmutableMethodParameter(type, null, null));
+    }
+
+    private static Method returnVoid(String type, String name, int accessFlags, List<MethodParameter> parameters) {
+        return new ImmutableMethod(type, name, parameters, "V", AccessFlags.PUBLIC.getValue() | accessFlags, null,
+                                   new ImmutableMethodImplementation(
+                                           1, Collections.<Instruction>singletonList(
+                                           new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null));
+    }
+}